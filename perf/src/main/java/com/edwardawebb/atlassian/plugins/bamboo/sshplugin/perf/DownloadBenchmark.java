@@ -0,0 +1,98 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin.perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.atlassian.bamboo.task.CommonTaskContext;
+import com.atlassian.bamboo.task.TaskResult;
+import com.edwardawebb.atlassian.plugins.bamboo.sshplugin.ReverseScpTask;
+
+/**
+ * <code>ReverseScpTask.execute</code> pulling a tree of <code>files</code> (count x size in bytes) from loopback,
+ * for each transfer engine. An empty pattern downloads the directory as one entry, <code>**</code> expands every
+ * file into its own download so the concurrent transfer threads come into play.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadBenchmark
+{
+    @Param({"1x67108864", "100x1048576", "1000x65536", "10000x1024"})
+    public String files;
+
+    @Param({"SCP", "SFTP", "TAR"})
+    public String transferEngine;
+
+    @Param({"", "**"})
+    public String remotePattern;
+
+    @Param({"4"})
+    public int transferThreads;
+
+    private File workDirectory;
+    private File localDirectory;
+    private LoopbackSshServer server;
+    private ReverseScpTask task;
+    private CommonTaskContext context;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        workDirectory = TaskContexts.temporaryDirectory("download-bench");
+        final File remote = new File(workDirectory, "remote");
+        final String[] matrix = files.split("x");
+        TaskContexts.createFiles(remote, Integer.parseInt(matrix[0]), Integer.parseInt(matrix[1]));
+        localDirectory = new File(workDirectory, "agent");
+        server = LoopbackSshServer.start(workDirectory);
+
+        final Map<String, String> config = TaskContexts.connection(server);
+        config.put("remotePath", remote.getAbsolutePath());
+        config.put("remotePattern", remotePattern);
+        config.put("localPath", "downloaded");
+        config.put("transferEngine", transferEngine);
+        config.put("transferThreads", Integer.toString(transferThreads));
+        context = TaskContexts.context(config, localDirectory);
+
+        task = new ReverseScpTask(TaskContexts.plainText());
+    }
+
+    @Setup(Level.Iteration)
+    public void emptyLocalDirectory() throws IOException
+    {
+        FileUtils.deleteDirectory(localDirectory);
+        localDirectory.mkdirs();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        server.stop();
+        FileUtils.deleteQuietly(workDirectory);
+    }
+
+    @Benchmark
+    public TaskResult download() throws Exception
+    {
+        return task.execute(context);
+    }
+}
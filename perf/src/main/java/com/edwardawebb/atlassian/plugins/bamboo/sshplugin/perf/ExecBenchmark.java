@@ -0,0 +1,98 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin.perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.atlassian.bamboo.task.CommonTaskContext;
+import com.atlassian.bamboo.task.TaskResult;
+import com.edwardawebb.atlassian.plugins.bamboo.sshplugin.SshTask;
+
+/**
+ * <code>SshTask.execute</code> end to end: connect (or reuse), authenticate, exec and read every output line.
+ * The script has <code>commands</code> lines that together print <code>outputLines</code> lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ExecBenchmark
+{
+    @Param({"1", "10"})
+    public int commands;
+
+    @Param({"10", "10000", "1000000"})
+    public int outputLines;
+
+    @Param({"PER_COMMAND", "BATCH"})
+    public String executionMode;
+
+    private File workDirectory;
+    private LoopbackSshServer server;
+    private SshTask task;
+    private CommonTaskContext context;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        workDirectory = TaskContexts.temporaryDirectory("exec-bench");
+        server = LoopbackSshServer.start(workDirectory);
+
+        final StringBuilder script = new StringBuilder();
+        for (int i = 0; i < commands; i++)
+        {
+            script.append("seq 1 ").append(Math.max(1, outputLines / commands)).append('\n');
+        }
+        final Map<String, String> config = TaskContexts.connection(server);
+        config.put("inlineScript", script.toString().trim());
+        config.put("timeout", "600");
+        config.put("executionMode", executionMode);
+        context = TaskContexts.context(config, workDirectory);
+
+        task = new SshTask();
+        task.setEncryptionService(TaskContexts.plainText());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        server.stop();
+        FileUtils.deleteQuietly(workDirectory);
+    }
+
+    /**
+     * Steady state on an agent: the pooled connection is reused, so this is exec and output handling only.
+     */
+    @Benchmark
+    public TaskResult pooledConnection() throws Exception
+    {
+        return task.execute(context);
+    }
+
+    /**
+     * Every execution pays for TCP connect, key exchange and authentication, as before pooling.
+     */
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dbamboo.ssh.pool.idleTimeout=0")
+    public TaskResult newConnection() throws Exception
+    {
+        return task.execute(context);
+    }
+}
@@ -0,0 +1,249 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin.perf;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.atlassian.bamboo.build.logger.BuildLogger;
+import com.atlassian.bamboo.task.CommonTaskContext;
+import com.atlassian.bamboo.task.CommonTaskType;
+import com.atlassian.bamboo.task.TaskResult;
+import com.atlassian.bamboo.task.TaskState;
+import com.edwardawebb.atlassian.plugins.bamboo.sshplugin.ReverseScpTask;
+import com.edwardawebb.atlassian.plugins.bamboo.sshplugin.SshTask;
+
+/**
+ * Many agents deploying to one host at the same moment. Every agent thread runs its tasks back to back against a
+ * {@link LoopbackSshServer} that enforces startup and session limits, then latency percentiles, throughput and the
+ * errors the tasks logged are printed.
+ * <p>
+ * Arguments are <code>name=value</code> pairs, see {@link #DEFAULTS}. For example
+ * <code>java -cp target/benchmarks.jar com.edwardawebb.atlassian.plugins.bamboo.sshplugin.perf.LoadHarness agents=50 maxStartups=10 latency=50</code>
+ * <p>
+ * Real agents are separate JVMs and do not share a connection pool, so unless <code>pooled=true</code> pooling is
+ * switched off and every execution opens its own connection.
+ */
+public class LoadHarness
+{
+    private static final Map<String, String> DEFAULTS = new TreeMap<String, String>();
+
+    static
+    {
+        DEFAULTS.put("agents", "20");              // concurrent agent threads
+        DEFAULTS.put("executions", "10");          // tasks each agent runs
+        DEFAULTS.put("task", "mixed");             // ssh, download or mixed (alternating)
+        DEFAULTS.put("maxStartups", "10");         // 0 for no limit
+        DEFAULTS.put("maxSessions", "10");         // 0 for no limit
+        DEFAULTS.put("latency", "20");             // milliseconds added to auth and exec
+        DEFAULTS.put("script", "uname -a;sleep 0.1;seq 1 1000"); // one command per ';' separated part
+        DEFAULTS.put("files", "20x65536");         // count x bytes served to the downloads
+        DEFAULTS.put("pooled", "false");
+    }
+
+    private final Map<String, String> settings;
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+    private final AtomicInteger failures = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> errors = new ConcurrentHashMap<String, AtomicInteger>();
+
+    LoadHarness(Map<String, String> settings)
+    {
+        this.settings = settings;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        final Map<String, String> settings = new TreeMap<String, String>(DEFAULTS);
+        for (String arg : args)
+        {
+            final int at = arg.indexOf('=');
+            if (at < 0 || !DEFAULTS.containsKey(arg.substring(0, at)))
+            {
+                System.err.println("Unknown argument " + arg + ", expected name=value with name one of " + DEFAULTS.keySet());
+                System.exit(2);
+            }
+            settings.put(arg.substring(0, at), arg.substring(at + 1));
+        }
+        if (!Boolean.parseBoolean(settings.get("pooled")))
+        {
+            System.setProperty("bamboo.ssh.pool.idleTimeout", "0");
+        }
+        System.out.println("Settings " + settings);
+        new LoadHarness(settings).run();
+        System.exit(0);
+    }
+
+    void run() throws Exception
+    {
+        final File workDirectory = TaskContexts.temporaryDirectory("load-harness");
+        final File remote = new File(workDirectory, "remote");
+        final String[] matrix = settings.get("files").split("x");
+        TaskContexts.createFiles(remote, Integer.parseInt(matrix[0]), Integer.parseInt(matrix[1]));
+
+        final LoopbackSshServer server = LoopbackSshServer.start(workDirectory, new LoopbackSshServer.Options()
+                .maxStartups(intSetting("maxStartups"))
+                .maxSessions(intSetting("maxSessions"))
+                .latency(intSetting("latency")));
+        final int agents = intSetting("agents");
+        final ExecutorService pool = Executors.newFixedThreadPool(agents);
+        final CountDownLatch start = new CountDownLatch(1);
+        try
+        {
+            for (int i = 0; i < agents; i++)
+            {
+                final File agentDirectory = new File(workDirectory, "agent-" + i);
+                final int agent = i;
+                pool.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            start.await();
+                            for (int execution = 0; execution < intSetting("executions"); execution++)
+                            {
+                                execute(server, remote, agentDirectory, (agent + execution) % 2 == 0);
+                            }
+                        }
+                        catch (InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            final long started = System.nanoTime();
+            start.countDown();
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.DAYS);
+            report(System.nanoTime() - started);
+        }
+        finally
+        {
+            server.stop();
+            FileUtils.deleteQuietly(workDirectory);
+        }
+    }
+
+    private void execute(LoopbackSshServer server, File remote, File agentDirectory, boolean even)
+    {
+        final String task = settings.get("task");
+        final boolean download = "download".equals(task) || ("mixed".equals(task) && !even);
+        final Map<String, String> config = TaskContexts.connection(server);
+        final CommonTaskType taskType;
+        if (download)
+        {
+            config.put("remotePath", remote.getAbsolutePath());
+            config.put("remotePattern", "");
+            config.put("localPath", "downloaded");
+            taskType = new ReverseScpTask(TaskContexts.plainText());
+        }
+        else
+        {
+            config.put("inlineScript", settings.get("script").replace(';', '\n'));
+            config.put("timeout", "600");
+            final SshTask sshTask = new SshTask();
+            sshTask.setEncryptionService(TaskContexts.plainText());
+            taskType = sshTask;
+        }
+        final CommonTaskContext context = TaskContexts.context(config, agentDirectory, errorCountingLogger());
+
+        final long started = System.nanoTime();
+        try
+        {
+            final TaskResult result = taskType.execute(context);
+            if (result.getTaskState() != TaskState.SUCCESS)
+            {
+                failures.incrementAndGet();
+            }
+        }
+        catch (Exception e)
+        {
+            failures.incrementAndGet();
+            countError(e.toString());
+        }
+        finally
+        {
+            latencies.add(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * A build logger that drops the build output but tallies every error entry by its message and cause.
+     */
+    private BuildLogger errorCountingLogger()
+    {
+        return mock(BuildLogger.class, withSettings().stubOnly().defaultAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                if (invocation.getMethod().getName().equals("addErrorLogEntry"))
+                {
+                    final Object[] arguments = invocation.getArguments();
+                    countError(arguments.length > 1 && arguments[1] != null ? arguments[0] + ": " + arguments[1] : String.valueOf(arguments[0]));
+                }
+                return null;
+            }
+        }));
+    }
+
+    private void countError(String message)
+    {
+        AtomicInteger count = errors.get(message);
+        if (count == null)
+        {
+            errors.putIfAbsent(message, new AtomicInteger());
+            count = errors.get(message);
+        }
+        count.incrementAndGet();
+    }
+
+    private void report(long elapsedNanos)
+    {
+        final List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+        final int executions = sorted.size();
+        System.out.println(String.format("Executions %d in %.1f s, %.1f per second", executions, elapsedNanos / 1e9, executions / (elapsedNanos / 1e9)));
+        System.out.println(String.format("Failed %d (%.1f%%)", failures.get(), executions == 0 ? 0 : 100.0 * failures.get() / executions));
+        System.out.println(String.format("Latency ms p50 %.1f  p90 %.1f  p99 %.1f  max %.1f",
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 100)));
+        for (Map.Entry<String, AtomicInteger> error : errors.entrySet())
+        {
+            System.out.println(String.format("%6d  %s", error.getValue().get(), error.getKey()));
+        }
+    }
+
+    private static double percentile(List<Long> sorted, int percentile)
+    {
+        if (sorted.isEmpty())
+        {
+            return 0;
+        }
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+    private int intSetting(String name)
+    {
+        return Integer.parseInt(settings.get(name).trim());
+    }
+}
@@ -0,0 +1,388 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin.perf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.channel.Channel;
+import org.apache.sshd.common.channel.ChannelListener;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.CommandFactory;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.scp.ScpCommandFactory;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.subsystem.sftp.SftpSubsystemFactory;
+
+/**
+ * An Apache MINA SSHD server on 127.0.0.1 that serves SCP, SFTP and exec of real <code>/bin/sh</code> commands,
+ * so the plugin's code paths run unchanged against it without network noise.
+ * Accepts any user with the password {@link #PASSWORD}.
+ * <p>
+ * {@link Options} add the OpenSSH style limits a busy bastion runs with (<code>MaxStartups</code>,
+ * <code>MaxSessions</code>) and a fixed delay on authentication and exec to stand in for a slow or distant host.
+ */
+public class LoopbackSshServer
+{
+    public static final String USERNAME = "bench";
+    public static final String PASSWORD = "bench";
+
+    private final SshServer sshd;
+
+    private LoopbackSshServer(SshServer sshd)
+    {
+        this.sshd = sshd;
+    }
+
+    public static LoopbackSshServer start(File workDirectory) throws IOException
+    {
+        return start(workDirectory, new Options());
+    }
+
+    public static LoopbackSshServer start(File workDirectory, final Options options) throws IOException
+    {
+        final SshServer sshd = SshServer.setUpDefaultServer();
+        sshd.setHost("127.0.0.1");
+        sshd.setPort(0);
+        sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(new File(workDirectory, "hostkey.ser").toPath()));
+        sshd.setPasswordAuthenticator(new PasswordAuthenticator()
+        {
+            @Override
+            public boolean authenticate(String username, String password, ServerSession session)
+            {
+                options.delay();
+                return PASSWORD.equals(password);
+            }
+        });
+        sshd.setCommandFactory(new ScpCommandFactory.Builder().withDelegate(new CommandFactory()
+        {
+            @Override
+            public Command createCommand(String command)
+            {
+                return new ShellCommand(command, options);
+            }
+        }).build());
+        if (options.maxStartups > 0)
+        {
+            sshd.addSessionListener(new StartupLimit(options.maxStartups));
+        }
+        if (options.maxSessions > 0)
+        {
+            sshd.addChannelListener(new ChannelLimit(options.maxSessions));
+        }
+        sshd.setSubsystemFactories(Collections.<NamedFactory<Command>>singletonList(new SftpSubsystemFactory()));
+        sshd.start();
+        return new LoopbackSshServer(sshd);
+    }
+
+    public String getHost()
+    {
+        return "127.0.0.1";
+    }
+
+    public int getPort()
+    {
+        return sshd.getPort();
+    }
+
+    public void stop() throws IOException
+    {
+        sshd.stop(true);
+    }
+
+    public static final class Options
+    {
+        private int maxStartups;
+        private int maxSessions;
+        private long latencyMillis;
+
+        /**
+         * @param maxStartups concurrent connections that may be unauthenticated, further ones are dropped; 0 for no limit
+         */
+        public Options maxStartups(int maxStartups)
+        {
+            this.maxStartups = maxStartups;
+            return this;
+        }
+
+        /**
+         * @param maxSessions open channels allowed per connection, further ones are closed; 0 for no limit
+         */
+        public Options maxSessions(int maxSessions)
+        {
+            this.maxSessions = maxSessions;
+            return this;
+        }
+
+        /**
+         * @param latencyMillis added to every authentication and before every command starts
+         */
+        public Options latency(long latencyMillis)
+        {
+            this.latencyMillis = latencyMillis;
+            return this;
+        }
+
+        void delay()
+        {
+            if (latencyMillis > 0)
+            {
+                try
+                {
+                    TimeUnit.MILLISECONDS.sleep(latencyMillis);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Like sshd's <code>MaxStartups</code> without the random early drop: connections beyond the limit that have not
+     * authenticated yet are closed straight away.
+     */
+    private static final class StartupLimit implements SessionListener
+    {
+        private final int limit;
+        private final AtomicInteger unauthenticated = new AtomicInteger();
+        private final ConcurrentMap<Session, Boolean> pending = new ConcurrentHashMap<Session, Boolean>();
+
+        StartupLimit(int limit)
+        {
+            this.limit = limit;
+        }
+
+        @Override
+        public void sessionCreated(Session session)
+        {
+            pending.put(session, Boolean.TRUE);
+            if (unauthenticated.incrementAndGet() > limit)
+            {
+                session.close(true);
+            }
+        }
+
+        @Override
+        public void sessionEvent(Session session, Event event)
+        {
+            if (event == Event.Authenticated)
+            {
+                settled(session);
+            }
+        }
+
+        @Override
+        public void sessionException(Session session, Throwable t)
+        {
+        }
+
+        @Override
+        public void sessionClosed(Session session)
+        {
+            settled(session);
+        }
+
+        private void settled(Session session)
+        {
+            if (pending.remove(session) != null)
+            {
+                unauthenticated.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Like sshd's <code>MaxSessions</code>: a channel opened beyond the limit on one connection is closed again.
+     */
+    private static final class ChannelLimit implements ChannelListener
+    {
+        private final int limit;
+        private final ConcurrentMap<Session, AtomicInteger> open = new ConcurrentHashMap<Session, AtomicInteger>();
+
+        ChannelLimit(int limit)
+        {
+            this.limit = limit;
+        }
+
+        @Override
+        public void channelInitialized(Channel channel)
+        {
+        }
+
+        @Override
+        public void channelOpenSuccess(Channel channel)
+        {
+            AtomicInteger count = open.get(channel.getSession());
+            if (count == null)
+            {
+                open.putIfAbsent(channel.getSession(), new AtomicInteger());
+                count = open.get(channel.getSession());
+            }
+            if (count.incrementAndGet() > limit)
+            {
+                channel.close(true);
+            }
+        }
+
+        @Override
+        public void channelOpenFailure(Channel channel, Throwable reason)
+        {
+        }
+
+        @Override
+        public void channelStateChanged(Channel channel, String hint)
+        {
+        }
+
+        @Override
+        public void channelClosed(Channel channel, Throwable reason)
+        {
+            final AtomicInteger count = open.get(channel.getSession());
+            if (count != null && count.decrementAndGet() <= 0)
+            {
+                open.remove(channel.getSession(), count);
+            }
+        }
+    }
+
+    /**
+     * Runs an exec request through <code>/bin/sh -c</code> with byte-exact streams, no tty translation,
+     * so binary output such as a tar stream survives.
+     */
+    private static final class ShellCommand implements Command
+    {
+        private final String command;
+        private final Options options;
+        private final ExecutorService pumps = Executors.newFixedThreadPool(3);
+        private InputStream in;
+        private OutputStream out;
+        private OutputStream err;
+        private ExitCallback callback;
+        private volatile Process process;
+
+        ShellCommand(String command, Options options)
+        {
+            this.command = command;
+            this.options = options;
+        }
+
+        @Override
+        public void setInputStream(InputStream in)
+        {
+            this.in = in;
+        }
+
+        @Override
+        public void setOutputStream(OutputStream out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void setErrorStream(OutputStream err)
+        {
+            this.err = err;
+        }
+
+        @Override
+        public void setExitCallback(ExitCallback callback)
+        {
+            this.callback = callback;
+        }
+
+        @Override
+        public void start(Environment env)
+        {
+            // off the server's IO threads, the artificial latency must not hold up other connections
+            new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    int status = 255;
+                    try
+                    {
+                        options.delay();
+                        process = new ProcessBuilder("/bin/sh", "-c", command).start();
+                        pumps.submit(new Copy(in, process.getOutputStream(), true));
+                        final Future<?> stdout = pumps.submit(new Copy(process.getInputStream(), out, false));
+                        final Future<?> stderr = pumps.submit(new Copy(process.getErrorStream(), err, false));
+                        status = process.waitFor();
+                        stdout.get();
+                        stderr.get();
+                    }
+                    catch (Exception e)
+                    {
+                        // report what we have, the client sees the exit status
+                    }
+                    pumps.shutdownNow();
+                    callback.onExit(status);
+                }
+            }, "loopback-exec").start();
+        }
+
+        @Override
+        public void destroy()
+        {
+            if (process != null)
+            {
+                process.destroy();
+            }
+            pumps.shutdownNow();
+        }
+    }
+
+    private static final class Copy implements Runnable
+    {
+        private final InputStream from;
+        private final OutputStream to;
+        private final boolean closeWhenDone;
+
+        Copy(InputStream from, OutputStream to, boolean closeWhenDone)
+        {
+            this.from = from;
+            this.to = to;
+            this.closeWhenDone = closeWhenDone;
+        }
+
+        @Override
+        public void run()
+        {
+            final byte[] buffer = new byte[32 * 1024];
+            try
+            {
+                int read;
+                while ((read = from.read(buffer)) != -1)
+                {
+                    to.write(buffer, 0, read);
+                    to.flush();
+                }
+                if (closeWhenDone)
+                {
+                    to.close();
+                }
+            }
+            catch (IOException e)
+            {
+                // the channel or the process went away
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin.perf;
+
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.atlassian.bamboo.build.logger.BuildLogger;
+import com.atlassian.bamboo.configuration.ConfigurationMapImpl;
+import com.atlassian.bamboo.security.EncryptionService;
+import com.atlassian.bamboo.task.CommonTaskContext;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Just enough Bamboo around a task to call <code>execute</code> outside of an agent.
+ * The mocks are stub-only so they do not record the millions of invocations a benchmark makes.
+ */
+public final class TaskContexts
+{
+    private TaskContexts()
+    {
+    }
+
+    public static CommonTaskContext context(Map<String, String> config, File workingDirectory)
+    {
+        return context(config, workingDirectory, mock(BuildLogger.class, withSettings().stubOnly()));
+    }
+
+    public static CommonTaskContext context(Map<String, String> config, File workingDirectory, BuildLogger buildLogger)
+    {
+        final CommonTaskContext context = mock(CommonTaskContext.class, withSettings().stubOnly());
+        when(context.getConfigurationMap()).thenReturn(new ConfigurationMapImpl(config));
+        when(context.getBuildLogger()).thenReturn(buildLogger);
+        when(context.getWorkingDirectory()).thenReturn(workingDirectory);
+        return context;
+    }
+
+    /**
+     * The tasks store encrypted secrets, for benchmarks the "encrypted" value is the secret itself.
+     */
+    public static EncryptionService plainText()
+    {
+        final EncryptionService encryptionService = mock(EncryptionService.class, withSettings().stubOnly());
+        when(encryptionService.decrypt(anyString())).thenAnswer(returnsFirstArg());
+        return encryptionService;
+    }
+
+    public static Map<String, String> connection(LoopbackSshServer server)
+    {
+        final Map<String, String> config = new HashMap<String, String>();
+        config.put("host", server.getHost());
+        config.put("port", Integer.toString(server.getPort()));
+        config.put("username", LoopbackSshServer.USERNAME);
+        config.put("authType", "PASSWORD");
+        config.put("password", LoopbackSshServer.PASSWORD);
+        return config;
+    }
+
+    /**
+     * Fills the directory with <code>count</code> files of <code>size</code> random bytes, spread over subdirectories
+     * of at most 1000 files like a build output would be.
+     */
+    public static void createFiles(File directory, int count, int size) throws IOException
+    {
+        final Random random = new Random(count * 31L + size);
+        final byte[] content = new byte[size];
+        for (int i = 0; i < count; i++)
+        {
+            random.nextBytes(content);
+            FileUtils.writeByteArrayToFile(new File(directory, "d" + i / 1000 + "/f" + i + ".bin"), content);
+        }
+    }
+
+    public static File temporaryDirectory(String prefix) throws IOException
+    {
+        final File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdirs())
+        {
+            throw new IOException("Cannot create " + directory);
+        }
+        return directory;
+    }
+}
@@ -0,0 +1,422 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.SocketFactory;
+
+/**
+ * Connects to whichever of a host's addresses answers first ("happy eyeballs", RFC 8305), so one dead address in DNS
+ * costs a short stagger instead of a full TCP timeout. Attempts start one after another, the next one as soon as the
+ * previous fails or after {@link #DEFAULT_STAGGER_MILLIS} at the latest, alternating between IPv6 and IPv4.
+ * The first socket to connect wins and the other attempts are closed.
+ * <p>
+ * sshj opens its own socket through a {@link SocketFactory}, {@link #socketFactory(List, int)} hands it a socket that
+ * runs the race when connected and then delegates to the winner.
+ */
+public final class AddressRacer
+{
+    public static final long DEFAULT_STAGGER_MILLIS = 250;
+
+    private static final ExecutorService ATTEMPTS = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "ssh-connect-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private AddressRacer()
+    {
+    }
+
+    /**
+     * @param timeoutMillis for the whole race, 0 waits as long as the operating system does
+     * @throws IOException the last failure if no address could be connected to
+     */
+    public static Socket connect(List<InetAddress> addresses, int port, int timeoutMillis, long staggerMillis) throws IOException
+    {
+        if (addresses.isEmpty())
+        {
+            throw new IOException("No addresses to connect to");
+        }
+        final List<InetAddress> ordered = interleave(addresses);
+        if (ordered.size() == 1)
+        {
+            final Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(ordered.get(0), port), timeoutMillis);
+            return socket;
+        }
+
+        final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+        final CompletionService<Socket> race = new ExecutorCompletionService<Socket>(ATTEMPTS);
+        final List<Future<Socket>> started = new ArrayList<Future<Socket>>();
+        final long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        Socket winner = null;
+        IOException lastFailure = null;
+        int next = 0;
+        int running = 0;
+        try
+        {
+            started.add(race.submit(attempt(ordered.get(next++), port, timeoutMillis, sockets)));
+            running++;
+            while (winner == null && (running > 0 || next < ordered.size()))
+            {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    break;
+                }
+                final Future<Socket> finished = race.poll(next < ordered.size() ? Math.min(staggerMillis, remaining) : remaining, TimeUnit.MILLISECONDS);
+                if (finished == null)
+                {
+                    if (next < ordered.size())
+                    {
+                        started.add(race.submit(attempt(ordered.get(next++), port, timeoutMillis, sockets)));
+                        running++;
+                    }
+                    continue;
+                }
+                running--;
+                try
+                {
+                    winner = finished.get();
+                }
+                catch (ExecutionException e)
+                {
+                    lastFailure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    if (next < ordered.size())
+                    {
+                        // no need to wait out the stagger once an attempt has failed
+                        started.add(race.submit(attempt(ordered.get(next++), port, timeoutMillis, sockets)));
+                        running++;
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            lastFailure = new IOException("Interrupted while connecting");
+        }
+        finally
+        {
+            for (Future<Socket> attempt : started)
+            {
+                attempt.cancel(true);
+            }
+            synchronized (sockets)
+            {
+                for (Socket socket : sockets)
+                {
+                    if (socket != winner)
+                    {
+                        closeQuietly(socket);
+                    }
+                }
+            }
+        }
+        if (winner != null)
+        {
+            return winner;
+        }
+        if (lastFailure == null)
+        {
+            throw new SocketTimeoutException("Could not connect to any of " + ordered + " within " + timeoutMillis + " ms");
+        }
+        throw lastFailure;
+    }
+
+    /**
+     * Alternates address families starting with the one DNS listed first, as RFC 8305 recommends.
+     */
+    static List<InetAddress> interleave(List<InetAddress> addresses)
+    {
+        final LinkedList<InetAddress> first = new LinkedList<InetAddress>();
+        final LinkedList<InetAddress> second = new LinkedList<InetAddress>();
+        final boolean firstIsV6 = addresses.get(0) instanceof Inet6Address;
+        for (InetAddress address : addresses)
+        {
+            ((address instanceof Inet6Address) == firstIsV6 ? first : second).add(address);
+        }
+        final List<InetAddress> ordered = new ArrayList<InetAddress>(addresses.size());
+        while (!first.isEmpty() || !second.isEmpty())
+        {
+            if (!first.isEmpty())
+            {
+                ordered.add(first.removeFirst());
+            }
+            if (!second.isEmpty())
+            {
+                ordered.add(second.removeFirst());
+            }
+        }
+        return ordered;
+    }
+
+    private static Callable<Socket> attempt(final InetAddress address, final int port, final int timeoutMillis, final List<Socket> sockets)
+    {
+        return new Callable<Socket>()
+        {
+            @Override
+            public Socket call() throws IOException
+            {
+                final Socket socket = new Socket();
+                sockets.add(socket);
+                socket.connect(new InetSocketAddress(address, port), timeoutMillis);
+                return socket;
+            }
+        };
+    }
+
+    private static void closeQuietly(Socket socket)
+    {
+        try
+        {
+            socket.close();
+        }
+        catch (IOException e)
+        {
+            // a losing attempt, nothing depends on it
+        }
+    }
+
+    /**
+     * @return a factory whose unconnected sockets race the given addresses when connected, whatever address they are asked to connect to
+     */
+    public static SocketFactory socketFactory(final List<InetAddress> addresses, final int timeoutMillis)
+    {
+        return new SocketFactory()
+        {
+            @Override
+            public Socket createSocket()
+            {
+                return new RacingSocket(addresses, timeoutMillis);
+            }
+
+            @Override
+            public Socket createSocket(String host, int port) throws IOException
+            {
+                return new Socket(host, port);
+            }
+
+            @Override
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+            {
+                return new Socket(host, port, localHost, localPort);
+            }
+
+            @Override
+            public Socket createSocket(InetAddress host, int port) throws IOException
+            {
+                return new Socket(host, port);
+            }
+
+            @Override
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+            {
+                return new Socket(address, port, localAddress, localPort);
+            }
+        };
+    }
+
+    /**
+     * Looks like a plain socket to sshj, everything is delegated to the socket that won the race.
+     */
+    private static final class RacingSocket extends Socket
+    {
+        private final List<InetAddress> addresses;
+        private final int timeoutMillis;
+        private Socket delegate;
+        // options set before connecting are applied to the winner
+        private Integer soTimeout;
+        private Boolean tcpNoDelay;
+        private Boolean keepAlive;
+
+        RacingSocket(List<InetAddress> addresses, int timeoutMillis)
+        {
+            this.addresses = addresses;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint) throws IOException
+        {
+            connect(endpoint, timeoutMillis);
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException
+        {
+            final Socket socket = AddressRacer.connect(addresses, ((InetSocketAddress) endpoint).getPort(),
+                    timeout > 0 ? timeout : timeoutMillis, DEFAULT_STAGGER_MILLIS);
+            if (soTimeout != null)
+            {
+                socket.setSoTimeout(soTimeout);
+            }
+            if (tcpNoDelay != null)
+            {
+                socket.setTcpNoDelay(tcpNoDelay);
+            }
+            if (keepAlive != null)
+            {
+                socket.setKeepAlive(keepAlive);
+            }
+            delegate = socket;
+        }
+
+        private Socket connected() throws SocketException
+        {
+            if (delegate == null)
+            {
+                throw new SocketException("Socket is not connected");
+            }
+            return delegate;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            return connected().getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException
+        {
+            return connected().getOutputStream();
+        }
+
+        @Override
+        public boolean isConnected()
+        {
+            return delegate != null && delegate.isConnected();
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return delegate != null && delegate.isClosed();
+        }
+
+        @Override
+        public InetAddress getInetAddress()
+        {
+            return delegate == null ? null : delegate.getInetAddress();
+        }
+
+        @Override
+        public int getPort()
+        {
+            return delegate == null ? 0 : delegate.getPort();
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress()
+        {
+            return delegate == null ? null : delegate.getRemoteSocketAddress();
+        }
+
+        @Override
+        public InetAddress getLocalAddress()
+        {
+            return delegate == null ? super.getLocalAddress() : delegate.getLocalAddress();
+        }
+
+        @Override
+        public int getLocalPort()
+        {
+            return delegate == null ? -1 : delegate.getLocalPort();
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException
+        {
+            soTimeout = timeout;
+            if (delegate != null)
+            {
+                delegate.setSoTimeout(timeout);
+            }
+        }
+
+        @Override
+        public int getSoTimeout() throws SocketException
+        {
+            return delegate != null ? delegate.getSoTimeout() : soTimeout == null ? 0 : soTimeout;
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException
+        {
+            tcpNoDelay = on;
+            if (delegate != null)
+            {
+                delegate.setTcpNoDelay(on);
+            }
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) throws SocketException
+        {
+            keepAlive = on;
+            if (delegate != null)
+            {
+                delegate.setKeepAlive(on);
+            }
+        }
+
+        @Override
+        public void shutdownInput() throws IOException
+        {
+            connected().shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException
+        {
+            connected().shutdownOutput();
+        }
+
+        @Override
+        public synchronized void close() throws IOException
+        {
+            if (delegate != null)
+            {
+                delegate.close();
+            }
+            super.close();
+        }
+
+        @Override
+        public String toString()
+        {
+            return delegate == null ? "unconnected race of " + addresses : delegate.toString();
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.atlassian.bamboo.security.EncryptionService;
 import com.atlassian.bamboo.task.AbstractTaskConfigurator;
 import com.atlassian.bamboo.task.TaskDefinition;
 import com.atlassian.bamboo.utils.error.ErrorCollection;
+import net.schmizz.sshj.DefaultConfig;
 import net.schmizz.sshj.SSHClient;
 import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
 import org.apache.commons.io.FileUtils;
@@ -18,6 +19,7 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 
 public class BaseSshTaskConfigurator extends AbstractTaskConfigurator
@@ -25,6 +27,10 @@ public class BaseSshTaskConfigurator extends AbstractTaskConfigurator
     private static final Logger log = Logger.getLogger(BaseSshTaskConfigurator.class);
 
     private static final EnumSet<AuthType> SUPPORTED_AUTH_TYPES = EnumSet.of(AuthType.PASSWORD, AuthType.KEY, AuthType.KEY_WITH_PASSPHRASE);
+    static final EnumSet<TransportProfile> TRANSPORT_PROFILES = EnumSet.allOf(TransportProfile.class);
+    static final EnumSet<CompressionMode> COMPRESSION_MODES = EnumSet.allOf(CompressionMode.class);
+    static final String[] TRANSPORT_FIELDS = {TransportProfile.CONFIG_KEY, "customCiphers", "customMacs", "customKex", CompressionMode.CONFIG_KEY,
+            TransportSettings.CHANNEL_WINDOW_KEY, TransportSettings.MAX_PACKET_KEY};
     public static final int DEFAULT_SSH_PORT_NUMBER = 22;
 
     private final EncryptionService encryptionService;
@@ -45,6 +51,14 @@ public class BaseSshTaskConfigurator extends AbstractTaskConfigurator
         config.put("host", params.getString("host"));
         config.put("username", params.getString("username"));
         config.put("port", Integer.toString(NumberUtils.toInt(params.getString("port"), DEFAULT_SSH_PORT_NUMBER)));
+        for (String field : TRANSPORT_FIELDS)
+        {
+            config.put(field, params.getString(field));
+        }
+        for (String field : JumpHost.CONFIG_KEYS)
+        {
+            config.put(field, params.getString(field));
+        }
 
         if ( null == previousTaskDefinition ){
             //brand new config, add password OR key, ignoring the other
@@ -123,6 +137,10 @@ public class BaseSshTaskConfigurator extends AbstractTaskConfigurator
     {
         super.populateContextForCreate(context);
         context.put("authenticationTypes", SUPPORTED_AUTH_TYPES);
+        context.put(TransportProfile.CONFIG_KEY, TransportProfile.COMPAT.getKey());
+        context.put("transportProfiles", TRANSPORT_PROFILES);
+        context.put(CompressionMode.CONFIG_KEY, CompressionMode.OFF.getKey());
+        context.put("compressionModes", COMPRESSION_MODES);
     }
 
     @Override
@@ -147,6 +165,23 @@ public class BaseSshTaskConfigurator extends AbstractTaskConfigurator
         context.put("remotePath", taskDefinition.getConfiguration().get("remotePath"));
         context.put("authType", taskDefinition.getConfiguration().get("authType"));
         context.put("authenticationTypes", SUPPORTED_AUTH_TYPES);
+        populateTransportContext(context, taskDefinition);
+    }
+
+    static void populateTransportContext(final Map<String, Object> context, final TaskDefinition taskDefinition)
+    {
+        for (String field : TRANSPORT_FIELDS)
+        {
+            context.put(field, taskDefinition.getConfiguration().get(field));
+        }
+        for (String field : JumpHost.CONFIG_KEYS)
+        {
+            context.put(field, taskDefinition.getConfiguration().get(field));
+        }
+        context.put(TransportProfile.CONFIG_KEY, TransportProfile.fromConfig(taskDefinition.getConfiguration().get(TransportProfile.CONFIG_KEY)).getKey());
+        context.put("transportProfiles", TRANSPORT_PROFILES);
+        context.put(CompressionMode.CONFIG_KEY, CompressionMode.fromConfig(taskDefinition.getConfiguration().get(CompressionMode.CONFIG_KEY)).getKey());
+        context.put("compressionModes", COMPRESSION_MODES);
     }
 
     @Override
@@ -187,6 +222,9 @@ public class BaseSshTaskConfigurator extends AbstractTaskConfigurator
             errorCollection.addError("username", "You must specify a username");
         }
 
+        validateTransport(params, errorCollection);
+        validateJumpHost(params, errorCollection);
+
         AuthType authType = AuthType.valueOf(params.getString("authType"));
         switch (authType)
         {
@@ -223,6 +261,54 @@ public class BaseSshTaskConfigurator extends AbstractTaskConfigurator
         }
     }
 
+    /**
+     * Custom algorithm lists may only name algorithms the client implements, otherwise connections would fail at runtime.
+     */
+    static void validateTransport(@NotNull final ActionParametersMap params, @NotNull final ErrorCollection errorCollection)
+    {
+        final String window = params.getString(TransportSettings.CHANNEL_WINDOW_KEY);
+        if (StringUtils.isNotEmpty(window) && NumberUtils.toInt(window.trim(), 0) < 1)
+        {
+            errorCollection.addError(TransportSettings.CHANNEL_WINDOW_KEY, "Window size must be a positive number of MB, or empty for the default");
+        }
+        final String packet = params.getString(TransportSettings.MAX_PACKET_KEY);
+        final int packetKb = StringUtils.isEmpty(packet) ? 0 : NumberUtils.toInt(packet.trim(), -1);
+        if (StringUtils.isNotEmpty(packet) && (packetKb < 1 || packetKb > TransportSettings.MAX_PACKET_LIMIT_KB))
+        {
+            errorCollection.addError(TransportSettings.MAX_PACKET_KEY, "Packet size must be between 1 and " + TransportSettings.MAX_PACKET_LIMIT_KB + " KB, or empty for the default");
+        }
+        if (TransportProfile.fromConfig(params.getString(TransportProfile.CONFIG_KEY)) != TransportProfile.CUSTOM)
+        {
+            return;
+        }
+        final DefaultConfig defaults = new DefaultConfig();
+        addUnsupported(errorCollection, "customCiphers", TransportProfile.unsupported(defaults.getCipherFactories(), params.getString("customCiphers")));
+        addUnsupported(errorCollection, "customMacs", TransportProfile.unsupported(defaults.getMACFactories(), params.getString("customMacs")));
+        addUnsupported(errorCollection, "customKex", TransportProfile.unsupported(defaults.getKeyExchangeFactories(), params.getString("customKex")));
+    }
+
+    static void validateJumpHost(@NotNull final ActionParametersMap params, @NotNull final ErrorCollection errorCollection)
+    {
+        final String port = params.getString(JumpHost.PORT_KEY);
+        if (StringUtils.isNotEmpty(port) && NumberUtils.toInt(port.trim(), -1) <= 0)
+        {
+            errorCollection.addError(JumpHost.PORT_KEY, "Port number must be a positive number");
+        }
+        if (StringUtils.isBlank(params.getString(JumpHost.HOST_KEY))
+                && (StringUtils.isNotBlank(port) || StringUtils.isNotBlank(params.getString(JumpHost.USERNAME_KEY))))
+        {
+            errorCollection.addError(JumpHost.HOST_KEY, "Specify the jump host, or leave its port and username empty");
+        }
+    }
+
+    private static void addUnsupported(final ErrorCollection errorCollection, final String field, final List<String> unsupported)
+    {
+        if (!unsupported.isEmpty())
+        {
+            errorCollection.addError(field, "Not supported by this client: " + StringUtils.join(unsupported, ", "));
+        }
+    }
+
     /**
      * Validates that if the key is supplied, it is usable
      * @param params
@@ -0,0 +1,202 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Turns a line separated inline script into a single remote shell script, so the whole script runs over one
+ * exec channel while keeping the per-line semantics of {@link ExecutionMode#PER_COMMAND}:
+ * every line is reported with its own exit status and the script stops at the first non-zero one.
+ * <p>
+ * Each line is bracketed by in-band marker lines on stdout that carry a random token, which {@link #accept(String)}
+ * strips from the output again. Because all lines run in the same shell, <code>cd</code> and <code>export</code>
+ * carry over to the following lines.
+ */
+public class BatchScript
+{
+    private static final String RC_VARIABLE = "__bamboo_rc";
+
+    private final String marker;
+    private final List<String> commands;
+    private final int[] exitStatus;
+    private int current = -1;
+    private int lastFinished = -1;
+
+    public BatchScript(String inlineScript)
+    {
+        this(inlineScript, "__BAMBOO_SSH_" + UUID.randomUUID().toString().replace("-", "") + "__");
+    }
+
+    BatchScript(String inlineScript, String marker)
+    {
+        this.marker = marker;
+        List<String> lines = new ArrayList<String>();
+        for (String line : inlineScript.split("\n"))
+        {
+            String command = line.replace("\r", "");
+            if (!command.trim().isEmpty())
+            {
+                lines.add(command);
+            }
+        }
+        this.commands = Collections.unmodifiableList(lines);
+        this.exitStatus = new int[lines.size()];
+    }
+
+    public List<String> getCommands()
+    {
+        return commands;
+    }
+
+    /**
+     * @return the script to hand to a single <code>exec</code>. It runs under /bin/sh whatever the login shell is, the
+     *         markers and exit status checks are POSIX syntax that csh or fish would not run
+     */
+    public String toRemoteScript()
+    {
+        return RemoteShell.posixShell(toShellScript());
+    }
+
+    String toShellScript()
+    {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < commands.size(); i++)
+        {
+            script.append("echo '").append(marker).append(" begin ").append(i).append("'\n");
+            script.append(commands.get(i)).append('\n');
+            script.append(RC_VARIABLE).append("=$?\n");
+            script.append("echo \"").append(marker).append(" end ").append(i).append(" $").append(RC_VARIABLE).append("\"\n");
+            script.append("[ $").append(RC_VARIABLE).append(" -eq 0 ] || exit $").append(RC_VARIABLE).append('\n');
+        }
+        return script.toString();
+    }
+
+    /**
+     * @return a line that prepares an interactive login shell for {@link #toShellCommand(int)}: no echo of what is
+     *         typed, no prompts, then a line {@link #isReady(String)} recognises
+     */
+    public String toShellSetup()
+    {
+        // quoted apart so the echo of this line itself does not look ready
+        return "stty -echo 2>/dev/null; bind 'set enable-bracketed-paste off' 2>/dev/null; PS1=''; PS2=''; unset PROMPT_COMMAND; echo '"
+                + marker + "'' ready'";
+    }
+
+    public boolean isReady(String line)
+    {
+        return line.endsWith(marker + " ready");
+    }
+
+    /**
+     * @return one line that runs the command in the interactive shell between its markers. A single line leaves nothing
+     *         typed ahead for a command that reads the terminal, and <code>eval</code> keeps a trailing comment from
+     *         hiding the end marker
+     */
+    public String toShellCommand(int index)
+    {
+        return "echo '" + marker + " begin " + index + "'; eval " + RemoteShell.quote(commands.get(index)) + "; "
+                + RC_VARIABLE + "=$?; echo \"" + marker + " end " + index + " $" + RC_VARIABLE + "\"";
+    }
+
+    /**
+     * Feeds one line of remote stdout through the marker parser.
+     *
+     * @return the event this line represents; output lines come back with any trailing marker stripped
+     */
+    public Event accept(String line)
+    {
+        int at = line.indexOf(marker);
+        if (at < 0)
+        {
+            return new Event(EventType.OUTPUT, current, line, 0);
+        }
+        // a command that does not end its output with a newline leaves the marker at the end of its last line
+        String before = line.substring(0, at);
+        String[] fields = line.substring(at + marker.length()).trim().split(" ");
+        int index = Integer.parseInt(fields[1]);
+        if ("begin".equals(fields[0]))
+        {
+            current = index;
+            return new Event(EventType.BEGIN, index, before, 0);
+        }
+        int status = Integer.parseInt(fields[2]);
+        exitStatus[index] = status;
+        lastFinished = index;
+        return new Event(EventType.END, index, before, status);
+    }
+
+    /**
+     * @return the index of the command that was running when the script stopped, or -1 if none started
+     */
+    public int getCurrent()
+    {
+        return current;
+    }
+
+    /**
+     * @return true once the command and all before it reported their exit status
+     */
+    public boolean hasFinished(int index)
+    {
+        return lastFinished >= index;
+    }
+
+    /**
+     * @return true once every command reported a zero exit status
+     */
+    public boolean isComplete()
+    {
+        return lastFinished == commands.size() - 1 && (commands.isEmpty() || exitStatus[lastFinished] == 0);
+    }
+
+    public int getExitStatus(int index)
+    {
+        return exitStatus[index];
+    }
+
+    public enum EventType
+    {
+        OUTPUT, BEGIN, END
+    }
+
+    public static final class Event
+    {
+        private final EventType type;
+        private final int command;
+        private final String output;
+        private final int exitStatus;
+
+        Event(EventType type, int command, String output, int exitStatus)
+        {
+            this.type = type;
+            this.command = command;
+            this.output = output;
+            this.exitStatus = exitStatus;
+        }
+
+        public EventType getType()
+        {
+            return type;
+        }
+
+        public int getCommand()
+        {
+            return command;
+        }
+
+        /**
+         * @return output text carried by this line, empty for a bare marker line
+         */
+        public String getOutput()
+        {
+            return output;
+        }
+
+        public int getExitStatus()
+        {
+            return exitStatus;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the output of one host during a multi-host run and writes it to the build log in one block,
+ * every line prefixed with the host, so concurrent hosts never interleave.
+ */
+public class BufferedHostLogger implements ScriptLogger
+{
+    private final String prefix;
+    private final List<String> lines = new ArrayList<String>();
+    private final List<Boolean> errors = new ArrayList<Boolean>();
+
+    public BufferedHostLogger(String host)
+    {
+        this.prefix = "[" + host + "] ";
+    }
+
+    @Override
+    public synchronized void addBuildLogEntry(String line)
+    {
+        lines.add(prefix + line);
+        errors.add(Boolean.FALSE);
+    }
+
+    @Override
+    public synchronized void addErrorLogEntry(String line)
+    {
+        lines.add(prefix + line);
+        errors.add(Boolean.TRUE);
+    }
+
+    public synchronized void flushTo(ScriptLogger logger)
+    {
+        for (int i = 0; i < lines.size(); i++)
+        {
+            if (errors.get(i))
+            {
+                logger.addErrorLogEntry(lines.get(i));
+            }
+            else
+            {
+                logger.addBuildLogEntry(lines.get(i));
+            }
+        }
+        lines.clear();
+        errors.clear();
+    }
+}
@@ -0,0 +1,28 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import com.atlassian.bamboo.build.logger.BuildLogger;
+
+/**
+ * Writes straight to the build log.
+ */
+public class BuildLogScriptLogger implements ScriptLogger
+{
+    private final BuildLogger buildLogger;
+
+    public BuildLogScriptLogger(BuildLogger buildLogger)
+    {
+        this.buildLogger = buildLogger;
+    }
+
+    @Override
+    public void addBuildLogEntry(String line)
+    {
+        buildLogger.addBuildLogEntry(line);
+    }
+
+    @Override
+    public void addErrorLogEntry(String line)
+    {
+        buildLogger.addErrorLogEntry(line);
+    }
+}
@@ -0,0 +1,281 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Signal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Enforces wall-clock deadlines on remote commands, independently of whether they produce output.
+ * Each command gets the per-command timeout, capped by whatever is left of the whole task's budget.
+ * <p>
+ * On expiry the command is sent <code>TERM</code>; many servers ignore channel signals, so if the command has not
+ * gone away after a short grace period its channel is closed, which ends the output streams the task is reading.
+ * A command in an interactive shell is sent Ctrl-C through its terminal instead.
+ */
+public class CommandWatchdog
+{
+    private static final Logger LOG = LoggerFactory.getLogger(CommandWatchdog.class);
+    static final long GRACE_SECONDS = 5;
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "ssh-command-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final long commandTimeout;
+    private final TimeUnit unit;
+    private final long taskDeadlineNanos;
+
+    /**
+     * @param commandTimeoutSeconds limit for a single command, 0 or less for none
+     * @param taskTimeoutSeconds limit for everything run through this watchdog from now on, 0 or less for none
+     */
+    public CommandWatchdog(long commandTimeoutSeconds, long taskTimeoutSeconds)
+    {
+        this(commandTimeoutSeconds, taskTimeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    CommandWatchdog(long commandTimeout, long taskTimeout, TimeUnit unit)
+    {
+        this.commandTimeout = commandTimeout;
+        this.unit = unit;
+        this.taskDeadlineNanos = taskTimeout > 0 ? System.nanoTime() + unit.toNanos(taskTimeout) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @throws SSHExecutionException if the task's time budget is already used up, so no further command should start
+     */
+    public void checkTaskDeadline()
+    {
+        if (System.nanoTime() - taskDeadlineNanos >= 0 && taskDeadlineNanos != Long.MAX_VALUE)
+        {
+            throw new SSHExecutionException("Task timeout reached, not starting further commands");
+        }
+    }
+
+    /**
+     * Starts timing a command that was just exec'd. Close the returned watch once the command finished.
+     */
+    public Watch watch(final Session.Command cmd, String description, ScriptLogger logger)
+    {
+        return startWatch(new Target("TERM")
+        {
+            @Override
+            void stop() throws IOException
+            {
+                cmd.signal(Signal.TERM);
+            }
+
+            @Override
+            boolean isOpen()
+            {
+                return cmd.isOpen();
+            }
+
+            @Override
+            void close() throws IOException
+            {
+                cmd.close();
+            }
+        }, description, logger);
+    }
+
+    /**
+     * Starts timing the commands typed into an interactive shell, see {@link Watch#restart(String)}.
+     */
+    public Watch watch(final Session.Shell shell, String description, ScriptLogger logger)
+    {
+        return startWatch(new Target("Ctrl-C")
+        {
+            @Override
+            void stop() throws IOException
+            {
+                // the terminal turns this into SIGINT for the foreground command, whether or not the server passes on signals
+                shell.getOutputStream().write(3);
+                shell.getOutputStream().flush();
+            }
+
+            @Override
+            boolean isOpen()
+            {
+                return shell.isOpen();
+            }
+
+            @Override
+            void close() throws IOException
+            {
+                shell.close();
+            }
+        }, description, logger);
+    }
+
+    Watch startWatch(Target target, String description, ScriptLogger logger)
+    {
+        final Watch watch = new Watch(target, description, logger);
+        watch.restart();
+        return watch;
+    }
+
+    /**
+     * The channel a watch ends when its deadline passes.
+     */
+    abstract static class Target
+    {
+        private final String stopName;
+
+        Target(String stopName)
+        {
+            this.stopName = stopName;
+        }
+
+        abstract void stop() throws IOException;
+
+        abstract boolean isOpen();
+
+        abstract void close() throws IOException;
+    }
+
+    public final class Watch
+    {
+        private final Target cmd;
+        private final ScriptLogger logger;
+        private String description;
+        private ScheduledFuture<?> timer;
+        private volatile String expiry;
+        private boolean closed;
+
+        private Watch(Target cmd, String description, ScriptLogger logger)
+        {
+            this.cmd = cmd;
+            this.description = description;
+            this.logger = logger;
+        }
+
+        /**
+         * Gives the next command on the same channel its own per-command timeout, used when a whole script runs in one session.
+         */
+        public synchronized void restart(String nextDescription)
+        {
+            description = nextDescription;
+            restart();
+        }
+
+        private synchronized void restart()
+        {
+            cancelTimer();
+            if (expiry != null || closed)
+            {
+                return;
+            }
+            final long taskRemaining = taskDeadlineNanos - System.nanoTime();
+            final boolean commandLimited = commandTimeout > 0 && unit.toNanos(commandTimeout) <= taskRemaining;
+            if (!commandLimited && taskDeadlineNanos == Long.MAX_VALUE)
+            {
+                return;
+            }
+            final long delay = commandLimited ? unit.toNanos(commandTimeout) : Math.max(taskRemaining, 0);
+            final String reason = commandLimited ? "exceeded its timeout of " + commandTimeout + " " + unit.name().toLowerCase(Locale.ENGLISH)
+                    : "was stopped because the task timeout was reached";
+            timer = TIMER.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    expire(reason);
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Ends the command right away, e.g. because the build was stopped.
+         */
+        public void abort(String reason)
+        {
+            expire(reason);
+        }
+
+        /**
+         * @return why the command was ended, or null if it finished on its own
+         */
+        public String getExpiry()
+        {
+            return expiry;
+        }
+
+        /**
+         * Stops timing; a timer that is already firing no longer ends the command once this returned.
+         */
+        public synchronized void close()
+        {
+            closed = true;
+            cancelTimer();
+        }
+
+        private void expire(String reason)
+        {
+            synchronized (this)
+            {
+                if (expiry != null || closed)
+                {
+                    return;
+                }
+                expiry = "'" + description + "' " + reason;
+                timer = null;
+                // still holding the lock, so close() returns either before the command is stopped or after it was
+                logger.addErrorLogEntry("Command " + expiry + ", sending " + cmd.stopName);
+                try
+                {
+                    cmd.stop();
+                }
+                catch (IOException e)
+                {
+                    LOG.debug("Could not signal " + description, e);
+                }
+            }
+            TIMER.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (cmd.isOpen())
+                    {
+                        logger.addErrorLogEntry("Command still running after " + GRACE_SECONDS + " seconds, closing its channel");
+                        try
+                        {
+                            cmd.close();
+                        }
+                        catch (IOException e)
+                        {
+                            LOG.debug("Could not close channel of " + description, e);
+                        }
+                    }
+                }
+            }, GRACE_SECONDS, TimeUnit.SECONDS);
+        }
+
+        private void cancelTimer()
+        {
+            if (timer != null)
+            {
+                timer.cancel(false);
+                timer = null;
+            }
+        }
+    }
+}
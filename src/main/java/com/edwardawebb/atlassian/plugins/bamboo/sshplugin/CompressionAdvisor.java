@@ -0,0 +1,218 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Decides per host whether SSH compression pays off, for tasks set to {@link CompressionMode#ADAPTIVE}.
+ * <p>
+ * Compression is negotiated when a connection is opened, so the decision is made from a sample of a transfer and
+ * applies to the connections opened after it. On an uncompressed connection the first few MB give the link rate,
+ * and deflating the same bytes locally gives how well the data compresses and how fast zlib is on it; compression
+ * is switched on if the predicted rate, the slower of deflate and link rate times ratio, is clearly better.
+ * On a compressed connection the measured rate is compared with the link rate seen without compression, and
+ * compression is switched off again if it no longer helps. Decisions expire after an hour so changing links and
+ * data get re-measured.
+ */
+public class CompressionAdvisor
+{
+    static final long SAMPLE_BYTES = 4L * 1024 * 1024;
+    static final long MIN_SAMPLE_BYTES = 512L * 1024;
+    private static final double REQUIRED_GAIN = 1.2;
+    private static final long DECISION_TTL_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    private static final CompressionAdvisor INSTANCE = new CompressionAdvisor();
+
+    private final ConcurrentMap<String, Decision> decisions = new ConcurrentHashMap<String, Decision>();
+
+    public static CompressionAdvisor getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * @return whether new connections to the host should compress; hosts without a live decision start uncompressed
+     */
+    public boolean isCompressionPreferred(String host, int port)
+    {
+        final Decision decision = decisions.get(host + ":" + port);
+        return decision != null && System.nanoTime() - decision.decidedAt < DECISION_TTL_NANOS && decision.compress;
+    }
+
+    public Sample startSample(String host, int port, boolean compressed)
+    {
+        return new Sample(host + ":" + port, compressed);
+    }
+
+    private String decide(Sample sample)
+    {
+        final double seconds = Math.max(sample.lastEnd - sample.firstStart, 1) / 1e9;
+        final double rate = sample.transferred / seconds;
+        final Decision previous = decisions.get(sample.hostKey);
+        final Decision decision;
+        final String reason;
+        if (!sample.compressed)
+        {
+            final double ratio = sample.sampled / (double) Math.max(sample.deflated, 1);
+            final double deflateRate = sample.sampled / (Math.max(sample.deflateNanos, 1) / 1e9);
+            final double predicted = Math.min(deflateRate, rate * ratio);
+            decision = new Decision(predicted > rate * REQUIRED_GAIN, rate);
+            reason = String.format("link %.1f MB/s, data compresses %.1f:1, zlib %.1f MB/s, predicted %.1f MB/s compressed",
+                    megabytes(rate), ratio, megabytes(deflateRate), megabytes(predicted));
+        }
+        else if (previous != null && previous.uncompressedRate > 0)
+        {
+            decision = new Decision(rate > previous.uncompressedRate * REQUIRED_GAIN, previous.uncompressedRate);
+            reason = String.format("%.1f MB/s compressed against %.1f MB/s uncompressed",
+                    megabytes(rate), megabytes(previous.uncompressedRate));
+        }
+        else
+        {
+            // compressed without a baseline to compare to, measure uncompressed next time
+            decision = new Decision(false, 0);
+            reason = String.format("%.1f MB/s compressed, no uncompressed baseline yet", megabytes(rate));
+        }
+        decisions.put(sample.hostKey, decision);
+        return "Adaptive compression for " + sample.hostKey + ": " + reason + " -> compression "
+                + (decision.compress ? "on" : "off") + " for new connections";
+    }
+
+    private static double megabytes(double bytesPerSecond)
+    {
+        return bytesPerSecond / (1024 * 1024);
+    }
+
+    /**
+     * Collects what was transferred over one connection until enough is known to decide.
+     */
+    public final class Sample
+    {
+        private final String hostKey;
+        private final boolean compressed;
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private final byte[] input = new byte[64 * 1024];
+        private final byte[] output = new byte[64 * 1024];
+        private long firstStart = Long.MAX_VALUE;
+        private long lastEnd = Long.MIN_VALUE;
+        private long transferred;
+        private long sampled;
+        private long deflated;
+        private long deflateNanos;
+        private boolean decided;
+
+        private Sample(String hostKey, boolean compressed)
+        {
+            this.hostKey = hostKey;
+            this.compressed = compressed;
+        }
+
+        /**
+         * Records a finished download of a file or directory tree.
+         *
+         * @return the decision to log once this sample is complete, otherwise null
+         */
+        public synchronized String record(File local, long startNanos, long endNanos)
+        {
+            if (decided)
+            {
+                return null;
+            }
+            firstStart = Math.min(firstStart, startNanos);
+            lastEnd = Math.max(lastEnd, endNanos);
+            add(local);
+            if (transferred < SAMPLE_BYTES)
+            {
+                return null;
+            }
+            return complete();
+        }
+
+        /**
+         * Decides on whatever was sampled when the transfer ends before a full sample, if that is enough to go on.
+         */
+        public synchronized String finish()
+        {
+            if (decided || transferred < MIN_SAMPLE_BYTES)
+            {
+                deflater.end();
+                return null;
+            }
+            return complete();
+        }
+
+        private String complete()
+        {
+            decided = true;
+            deflater.end();
+            return decide(this);
+        }
+
+        private void add(File local)
+        {
+            final File[] children = local.listFiles();
+            if (children != null)
+            {
+                for (File child : children)
+                {
+                    add(child);
+                }
+                return;
+            }
+            transferred += local.length();
+            if (!compressed && sampled < SAMPLE_BYTES && local.isFile())
+            {
+                deflate(local);
+            }
+        }
+
+        private void deflate(File file)
+        {
+            final long started = System.nanoTime();
+            try
+            {
+                final InputStream in = new FileInputStream(file);
+                try
+                {
+                    int read;
+                    while (sampled < SAMPLE_BYTES && (read = in.read(input, 0, (int) Math.min(input.length, SAMPLE_BYTES - sampled))) > 0)
+                    {
+                        deflater.setInput(input, 0, read);
+                        while (!deflater.needsInput())
+                        {
+                            deflated += deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+                        }
+                        sampled += read;
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            catch (IOException e)
+            {
+                // an unreadable file only makes the sample smaller
+            }
+            deflateNanos += System.nanoTime() - started;
+        }
+    }
+
+    private static final class Decision
+    {
+        private final boolean compress;
+        private final double uncompressedRate;
+        private final long decidedAt = System.nanoTime();
+
+        Decision(boolean compress, double uncompressedRate)
+        {
+            this.compress = compress;
+            this.uncompressedRate = uncompressedRate;
+        }
+    }
+}
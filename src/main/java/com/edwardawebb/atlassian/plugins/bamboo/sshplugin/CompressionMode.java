@@ -0,0 +1,38 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+public enum CompressionMode
+{
+    OFF("Off"),
+    ON("On (zlib)"),
+    ADAPTIVE("Adaptive, measured per host");
+
+    public static final String CONFIG_KEY = "compression";
+    private final String display;
+
+    CompressionMode(String display)
+    {
+        this.display = display;
+    }
+
+    public String getKey()
+    {
+        return name();
+    }
+
+    public String getDisplayName()
+    {
+        return display;
+    }
+
+    /**
+     * Tasks saved before compression could be chosen never compressed.
+     */
+    public static CompressionMode fromConfig(String value)
+    {
+        if (value == null || value.trim().isEmpty())
+        {
+            return OFF;
+        }
+        return valueOf(value.trim());
+    }
+}
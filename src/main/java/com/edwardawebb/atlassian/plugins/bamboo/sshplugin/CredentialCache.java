@@ -0,0 +1,117 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent-wide cache of decrypted credentials, so repeated executions of the same task neither decrypt the
+ * configuration again nor re-parse (and re-derive the passphrase of) the private key, which
+ * {@link SshCredentials} keeps once loaded.
+ * <p>
+ * Entries are keyed by a hash of the still encrypted configuration values, so a changed password or key is a
+ * different entry and nothing secret is used as a map key. Tune per agent with system properties:
+ * <ul>
+ *     <li><code>bamboo.ssh.credentials.ttl</code> - seconds an entry is reused (default 600, 0 disables the cache)</li>
+ *     <li><code>bamboo.ssh.credentials.maxEntries</code> - entries kept, least recently used are dropped first (default 64)</li>
+ * </ul>
+ */
+public class CredentialCache
+{
+    public static final int DEFAULT_TTL_SECONDS = 600;
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private static final CredentialCache INSTANCE = new CredentialCache(
+            Integer.getInteger("bamboo.ssh.credentials.ttl", DEFAULT_TTL_SECONDS),
+            Integer.getInteger("bamboo.ssh.credentials.maxEntries", DEFAULT_MAX_ENTRIES));
+
+    private final long ttlNanos;
+    private final Map<String, CachedCredentials> entries;
+
+    public static CredentialCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    CredentialCache(int ttlSeconds, int maxEntries)
+    {
+        this(ttlSeconds, TimeUnit.SECONDS, maxEntries);
+    }
+
+    CredentialCache(long ttl, TimeUnit unit, final int maxEntries)
+    {
+        this.ttlNanos = unit.toNanos(Math.max(0, ttl));
+        this.entries = new LinkedHashMap<String, CachedCredentials>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedCredentials> eldest)
+            {
+                return size() > Math.max(1, maxEntries);
+            }
+        };
+    }
+
+    /**
+     * @return the cached credentials for these encrypted values, decrypting them only if there is no live entry
+     */
+    public SshCredentials get(AuthType authType, String encryptedPassword, String encryptedPrivateKey, String encryptedPassphrase,
+            Decrypter decrypter)
+    {
+        final AuthType type = authType == null ? AuthType.PASSWORD : authType;
+        if (ttlNanos == 0)
+        {
+            return decrypt(type, encryptedPassword, encryptedPrivateKey, encryptedPassphrase, decrypter);
+        }
+        final String key = SshCredentials.sha256(type.name(), encryptedPassword, encryptedPrivateKey, encryptedPassphrase);
+        synchronized (entries)
+        {
+            final CachedCredentials entry = entries.get(key);
+            if (entry != null && System.nanoTime() - entry.loaded < ttlNanos)
+            {
+                return entry.credentials;
+            }
+        }
+        // decrypt outside the lock, two tasks racing for the same entry only cost one extra decryption
+        final SshCredentials credentials = decrypt(type, encryptedPassword, encryptedPrivateKey, encryptedPassphrase, decrypter);
+        synchronized (entries)
+        {
+            entries.put(key, new CachedCredentials(credentials, System.nanoTime()));
+        }
+        return credentials;
+    }
+
+    public void clear()
+    {
+        synchronized (entries)
+        {
+            entries.clear();
+        }
+    }
+
+    private static SshCredentials decrypt(AuthType authType, String encryptedPassword, String encryptedPrivateKey, String encryptedPassphrase,
+            Decrypter decrypter)
+    {
+        return new SshCredentials(authType, decrypter.decrypt(encryptedPassword), decrypter.decrypt(encryptedPrivateKey),
+                decrypter.decrypt(encryptedPassphrase));
+    }
+
+    /**
+     * Turns one stored configuration value into the secret, each task decides how to treat values that fail to decrypt.
+     */
+    public interface Decrypter
+    {
+        String decrypt(String encrypted);
+    }
+
+    private static final class CachedCredentials
+    {
+        private final SshCredentials credentials;
+        private final long loaded;
+
+        CachedCredentials(SshCredentials credentials, long loaded)
+        {
+            this.credentials = credentials;
+            this.loaded = loaded;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * Verifies downloads against <code>sha256sum</code> on the remote host without reading the local files again.
+ * <p>
+ * The downloaders write through {@link #digesting(File, OutputStream)}, which hashes the bytes on their way to disk,
+ * while {@link #startRemote(SSHClient, String)} runs <code>sha256sum</code> over the same entry on a second channel.
+ * Once both are done {@link #mismatches(Future, SSHClient, String, File)} compares them.
+ * Needs <code>find</code> and <code>sha256sum</code> on the remote host.
+ */
+public class DownloadChecksums
+{
+    private static final ExecutorService REMOTE = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "ssh-checksum-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Map<File, String> local = new ConcurrentHashMap<File, String>();
+
+    /**
+     * @return a stream that records the SHA-256 of everything written to the file once it is closed
+     */
+    public OutputStream digesting(File file, OutputStream out)
+    {
+        return new DigestingOutputStream(file.getAbsoluteFile(), out, newDigest());
+    }
+
+    /**
+     * For a download resumed at the end of the existing file: its content so far is read once to seed the digest.
+     *
+     * @param existingLength how much of the file is already there, it may have been extended since
+     */
+    public OutputStream appending(File file, long existingLength, OutputStream out) throws IOException
+    {
+        final MessageDigest digest = newDigest();
+        final InputStream in = new FileInputStream(file);
+        try
+        {
+            final byte[] buffer = new byte[64 * 1024];
+            long remaining = existingLength;
+            int read;
+            while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1)
+            {
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return new DigestingOutputStream(file.getAbsoluteFile(), out, digest);
+    }
+
+    /**
+     * Starts hashing every file below the remote entry, following links like the downloads do.
+     *
+     * @return remote file path to hex SHA-256
+     */
+    public Future<Map<String, String>> startRemote(final SSHClient ssh, final String remotePath)
+    {
+        return REMOTE.submit(new Callable<Map<String, String>>()
+        {
+            @Override
+            public Map<String, String> call() throws IOException
+            {
+                return remoteChecksums(ssh, remotePath);
+            }
+        });
+    }
+
+    /**
+     * Waits for the remote checksums and compares them with what was written locally. If the remote side failed, for
+     * instance because the connection dropped during the download, it is asked again over the given connection.
+     *
+     * @return descriptions of the files whose content differs, empty if all match
+     */
+    public List<String> mismatches(Future<Map<String, String>> remote, SSHClient ssh, String remotePath, File localDirectory) throws IOException
+    {
+        Map<String, String> remoteChecksums;
+        try
+        {
+            remoteChecksums = remote.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for remote checksums of " + remotePath);
+        }
+        catch (ExecutionException e)
+        {
+            remoteChecksums = remoteChecksums(ssh, remotePath);
+        }
+
+        final String root = trimSlash(remotePath);
+        final List<String> mismatches = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : remoteChecksums.entrySet())
+        {
+            final File file = ReverseScpTask.localFileFor(entry.getKey(), Collections.singletonList(root), localDirectory.getPath()).getAbsoluteFile();
+            String checksum = local.get(file);
+            if (checksum == null && file.isFile())
+            {
+                // skipped as complete by a resumed attempt, never written through here
+                checksum = RemoteManifest.sha256(file);
+            }
+            if (!entry.getValue().equals(checksum))
+            {
+                mismatches.add(entry.getKey() + " (remote " + entry.getValue() + ", local " + (checksum == null ? "missing" : checksum) + ")");
+            }
+        }
+        return mismatches;
+    }
+
+    static Map<String, String> remoteChecksums(SSHClient ssh, String remotePath) throws IOException
+    {
+        final String output = RemoteShell.executeForString(ssh, "find -L " + RemoteShell.quote(trimSlash(remotePath))
+                + " -type f -exec sha256sum {} +");
+        return parse(output);
+    }
+
+    /**
+     * Reads <code>sha256sum</code> output, "&lt;hash&gt;  &lt;path&gt;" per line. Names with a newline or backslash are
+     * escaped and the line is marked with a leading backslash.
+     */
+    static Map<String, String> parse(String output)
+    {
+        final Map<String, String> checksums = new LinkedHashMap<String, String>();
+        for (String line : output.split("\n"))
+        {
+            final boolean escaped = line.startsWith("\\");
+            final String record = escaped ? line.substring(1) : line;
+            if (record.length() > 66 && record.charAt(64) == ' ')
+            {
+                final String path = record.substring(66);
+                checksums.put(escaped ? unescape(path) : path, record.substring(0, 64));
+            }
+        }
+        return checksums;
+    }
+
+    private static String unescape(String path)
+    {
+        final StringBuilder name = new StringBuilder(path.length());
+        for (int i = 0; i < path.length(); i++)
+        {
+            final char c = path.charAt(i);
+            if (c == '\\' && i + 1 < path.length())
+            {
+                final char escaped = path.charAt(++i);
+                name.append(escaped == 'n' ? '\n' : escaped);
+            }
+            else
+            {
+                name.append(c);
+            }
+        }
+        return name.toString();
+    }
+
+    private static String trimSlash(String remotePath)
+    {
+        return remotePath.length() > 1 && remotePath.endsWith("/") ? remotePath.substring(0, remotePath.length() - 1) : remotePath;
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available on this JVM", e);
+        }
+    }
+
+    static String hex(byte[] digest)
+    {
+        return String.format("%064x", new BigInteger(1, digest));
+    }
+
+    private final class DigestingOutputStream extends FilterOutputStream
+    {
+        private final File file;
+        private final MessageDigest digest;
+        private boolean closed;
+
+        private DigestingOutputStream(File file, OutputStream out, MessageDigest digest)
+        {
+            super(out);
+            this.file = file;
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            digest.update((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            digest.update(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!closed)
+            {
+                closed = true;
+                // a failed attempt records what it wrote, the retry that completes the file replaces it
+                local.put(file, hex(digest.digest()));
+            }
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+public enum ExecutionMode
+{
+    PER_COMMAND("New session for every line"),
+    BATCH("Whole script in a single session"),
+    SHELL("Interactive shell answering prompts");
+
+    public static final String CONFIG_KEY = "executionMode";
+    private final String display;
+
+    ExecutionMode(String display)
+    {
+        this.display = display;
+    }
+
+    public String getKey()
+    {
+        return name();
+    }
+
+    public String getDisplayName()
+    {
+        return display;
+    }
+
+    /**
+     * Tasks saved before the mode existed ran one session per line, keep them that way.
+     */
+    public static ExecutionMode fromConfig(String value)
+    {
+        if (value == null || value.trim().isEmpty())
+        {
+            return PER_COMMAND;
+        }
+        return valueOf(value.trim());
+    }
+}
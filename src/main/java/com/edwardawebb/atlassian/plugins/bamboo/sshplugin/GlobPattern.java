@@ -0,0 +1,130 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.regex.Pattern;
+
+/**
+ * Ant-style path pattern matched against '/' separated relative paths.
+ * <ul>
+ *     <li><code>*</code> matches any characters within one path segment, <code>?</code> exactly one</li>
+ *     <li><code>[abc]</code> and <code>[!abc]</code> match a character class within a segment</li>
+ *     <li><code>**</code> as a whole segment matches zero or more directories</li>
+ *     <li>a trailing <code>/</code> is short for <code>/**</code></li>
+ * </ul>
+ * As in Ant, <code>*.log</code> only matches files directly in the base directory, use <code>**&#47;*.log</code> for all of them.
+ */
+public final class GlobPattern
+{
+    private final String pattern;
+    private final Pattern regex;
+    private final String staticPrefix;
+
+    private GlobPattern(String pattern, Pattern regex, String staticPrefix)
+    {
+        this.pattern = pattern;
+        this.regex = regex;
+        this.staticPrefix = staticPrefix;
+    }
+
+    public static boolean isPattern(String value)
+    {
+        return value.indexOf('*') >= 0 || value.indexOf('?') >= 0 || value.indexOf('[') >= 0;
+    }
+
+    public static GlobPattern compile(String pattern)
+    {
+        String normalized = pattern.trim();
+        while (normalized.startsWith("./"))
+        {
+            normalized = normalized.substring(2);
+        }
+        while (normalized.startsWith("/"))
+        {
+            normalized = normalized.substring(1);
+        }
+        if (normalized.endsWith("/"))
+        {
+            normalized += "**";
+        }
+
+        final String[] segments = normalized.split("/");
+        final StringBuilder regex = new StringBuilder();
+        final StringBuilder prefix = new StringBuilder();
+        boolean literal = true;
+        for (int i = 0; i < segments.length; i++)
+        {
+            final String segment = segments[i];
+            final boolean last = i == segments.length - 1;
+            if (literal && !last && !isPattern(segment))
+            {
+                prefix.append(prefix.length() == 0 ? "" : "/").append(segment);
+            }
+            else
+            {
+                literal = false;
+            }
+            if ("**".equals(segment))
+            {
+                regex.append(last ? ".*" : "(?:[^/]*/)*");
+                continue;
+            }
+            appendSegment(regex, segment);
+            if (!last)
+            {
+                regex.append('/');
+            }
+        }
+        return new GlobPattern(pattern, Pattern.compile(regex.toString()), prefix.toString());
+    }
+
+    private static void appendSegment(StringBuilder regex, String segment)
+    {
+        for (int i = 0; i < segment.length(); i++)
+        {
+            final char c = segment.charAt(i);
+            if (c == '*')
+            {
+                regex.append("[^/]*");
+            }
+            else if (c == '?')
+            {
+                regex.append("[^/]");
+            }
+            else if (c == '[' && segment.indexOf(']', i + 2) > 0)
+            {
+                final int end = segment.indexOf(']', i + 2);
+                String characters = segment.substring(i + 1, end);
+                regex.append('[');
+                if (characters.startsWith("!"))
+                {
+                    regex.append('^');
+                    characters = characters.substring(1);
+                }
+                regex.append(characters.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                i = end;
+            }
+            else
+            {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+    }
+
+    public boolean matches(String relativePath)
+    {
+        return regex.matcher(relativePath).matches();
+    }
+
+    /**
+     * @return the leading directories that contain no wildcards, only those need to be searched; empty for the base directory
+     */
+    public String getStaticPrefix()
+    {
+        return staticPrefix;
+    }
+
+    @Override
+    public String toString()
+    {
+        return pattern;
+    }
+}
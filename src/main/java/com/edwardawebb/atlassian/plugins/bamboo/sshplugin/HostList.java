@@ -0,0 +1,117 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * Parses the hosts a task should run against. Hosts are separated by commas, whitespace or new lines and may carry
+ * their own port as <code>host:port</code> or <code>[ipv6]:port</code>. Bamboo substitutes variables in task
+ * configuration before the task runs, so <code>${bamboo.deploy.hosts}</code> works anywhere a host does.
+ * A hosts file holds one host per line, <code>#</code> starts a comment.
+ */
+public final class HostList
+{
+    private static final Pattern BRACKETED = Pattern.compile("^\\[(.+)\\](?::(\\d+))?$");
+    private static final Pattern HOST_PORT = Pattern.compile("^([^:]+):(\\d+)$");
+
+    private HostList()
+    {
+    }
+
+    public static List<Host> resolve(String hosts, File hostsFile, int defaultPort) throws IOException
+    {
+        final Set<Host> resolved = new LinkedHashSet<Host>();
+        if (StringUtils.isNotBlank(hosts))
+        {
+            addAll(resolved, hosts, defaultPort);
+        }
+        if (hostsFile != null)
+        {
+            for (String line : Files.readAllLines(hostsFile.toPath(), StandardCharsets.UTF_8))
+            {
+                int comment = line.indexOf('#');
+                addAll(resolved, comment < 0 ? line : line.substring(0, comment), defaultPort);
+            }
+        }
+        return new ArrayList<Host>(resolved);
+    }
+
+    private static void addAll(Set<Host> resolved, String hosts, int defaultPort)
+    {
+        for (String entry : StringUtils.split(hosts, ", \t\r\n"))
+        {
+            resolved.add(parse(entry, defaultPort));
+        }
+    }
+
+    static Host parse(String entry, int defaultPort)
+    {
+        Matcher bracketed = BRACKETED.matcher(entry);
+        if (bracketed.matches())
+        {
+            return new Host(bracketed.group(1), NumberUtils.toInt(bracketed.group(2), defaultPort));
+        }
+        Matcher hostPort = HOST_PORT.matcher(entry);
+        if (hostPort.matches())
+        {
+            return new Host(hostPort.group(1), NumberUtils.toInt(hostPort.group(2), defaultPort));
+        }
+        return new Host(entry, defaultPort);
+    }
+
+    public static final class Host
+    {
+        private final String name;
+        private final int port;
+
+        Host(String name, int port)
+        {
+            this.name = name;
+            this.port = port;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public int getPort()
+        {
+            return port;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Host))
+            {
+                return false;
+            }
+            Host that = (Host) o;
+            return port == that.port && name.equals(that.name);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * name.hashCode() + port;
+        }
+
+        @Override
+        public String toString()
+        {
+            return port == BaseSshTaskConfigurator.DEFAULT_SSH_PORT_NUMBER ? name : name + ":" + port;
+        }
+    }
+}
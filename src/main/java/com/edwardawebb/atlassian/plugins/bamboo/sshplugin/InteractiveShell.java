@@ -0,0 +1,181 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.sf.expectit.Expect;
+import net.sf.expectit.ExpectBuilder;
+import net.sf.expectit.Result;
+import net.sf.expectit.matcher.Matcher;
+import net.sf.expectit.matcher.Matchers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drives a script through one login shell on a pseudo-terminal, for commands that only work interactively such as
+ * <code>sudo</code> asking for a password. Commands are typed one at a time, each wrapped in the {@link BatchScript}
+ * markers that report its exit status, so no further channel is opened per command.
+ * <p>
+ * Output is read with expectit against the pattern of {@link PromptResponses}: a waiting prompt is answered, a line
+ * end or an overlong line is handed on. Everything matched is consumed, so only the current line is held in memory
+ * however much a command prints.
+ */
+public class InteractiveShell
+{
+    private static final Logger LOG = LoggerFactory.getLogger(InteractiveShell.class);
+    private static final long POLL_MILLIS = 1000;
+    // terminal escape sequences and carriage returns, a pseudo-terminal adds both to plain output
+    private static final Pattern TERMINAL_CONTROL = Pattern.compile("\u001B\\[[0-9;?]*[A-Za-z]|\u001B\\][^\u0007]*\u0007|\r");
+
+    private final Session.Shell shell;
+    private final BatchScript script;
+    private final PromptResponses responses;
+    private final SshCredentials credentials;
+    private final ScriptLogger logger;
+    private final Expect expect;
+    private final Expect polling;
+    private final Matcher<Result> matcher;
+
+    public InteractiveShell(Session.Shell shell, BatchScript script, PromptResponses responses, SshCredentials credentials,
+            ScriptLogger logger) throws IOException
+    {
+        this.shell = shell;
+        this.script = script;
+        this.responses = responses;
+        this.credentials = credentials;
+        this.logger = logger;
+        this.expect = new ExpectBuilder()
+                .withOutput(shell.getOutputStream())
+                .withInputs(shell.getInputStream())
+                .withCharset(StandardCharsets.UTF_8)
+                .build();
+        // short waits, so a stopped build or a closed shell is noticed while a command is quiet
+        this.polling = expect.withTimeout(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        this.matcher = Matchers.regexp(responses.getPattern());
+    }
+
+    /**
+     * Turns off echo and prompts and skips whatever the login printed, such as the message of the day.
+     */
+    public void start(CommandWatchdog.Watch watch) throws IOException
+    {
+        expect.sendLine(script.toShellSetup());
+        while (true)
+        {
+            final String line = read(watch, null);
+            if (line != null && script.isReady(line))
+            {
+                return;
+            }
+            LOG.debug("Skipping shell login output: {}", line);
+        }
+    }
+
+    /**
+     * Types one command and hands every line of its output, markers included, to the handler until it has finished.
+     *
+     * @return the command's exit status
+     */
+    public int run(int index, StreamPump.LineHandler handler, CommandWatchdog.Watch watch) throws IOException
+    {
+        expect.sendLine(script.toShellCommand(index));
+        final int[] answers = new int[responses.size()];
+        boolean answered = false;
+        while (!script.hasFinished(index))
+        {
+            final String line = read(watch, answers);
+            if (line == null)
+            {
+                answered = true;
+                continue;
+            }
+            if (answered && line.isEmpty())
+            {
+                // the line end that followed the answer
+                answered = false;
+                continue;
+            }
+            answered = false;
+            handler.line(line, false);
+        }
+        return script.getExitStatus(index);
+    }
+
+    /**
+     * @param answers how often each prompt was answered for the current command, null to leave prompts unanswered
+     * @return the next line of output, or null after answering a prompt (which is logged as a line of its own)
+     */
+    private String read(CommandWatchdog.Watch watch, int[] answers) throws IOException
+    {
+        Result result;
+        while (!(result = polling.expect(matcher)).isSuccessful())
+        {
+            if (Thread.currentThread().isInterrupted())
+            {
+                // Bamboo interrupts the task when the build is stopped, do not leave the command running
+                watch.abort("was stopped because the build was stopped");
+                throw new InterruptedIOException("Interrupted while reading shell output");
+            }
+            if (!shell.isOpen())
+            {
+                throw new EOFException("The shell ended");
+            }
+        }
+        final int rule = responses.ruleFor(result);
+        if (rule < 0)
+        {
+            return clean(result.getBefore() + (responses.isCut(result) ? result.group() : ""));
+        }
+        final String prompt = clean(result.getBefore() + result.group());
+        if (answers == null)
+        {
+            return prompt;
+        }
+        if (++answers[rule] > PromptResponses.MAX_ANSWERS)
+        {
+            throw new SSHExecutionException("Prompt '" + prompt.trim() + "' came back after " + PromptResponses.MAX_ANSWERS + " answers");
+        }
+        logger.addBuildLogEntry(prompt);
+        // the response may hold the password, it is never logged
+        expect.sendLine(credentials.fillPassword(responses.getResponse(rule)));
+        logger.addBuildLogEntry("Answered prompt matching " + responses.getPrompt(rule));
+        return null;
+    }
+
+    private static String clean(String output)
+    {
+        return TERMINAL_CONTROL.matcher(output).replaceAll("");
+    }
+
+    /**
+     * Logs out and stops reading, the session is closed by the caller.
+     */
+    public void close()
+    {
+        try
+        {
+            if (shell.isOpen())
+            {
+                expect.sendLine("exit");
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.debug("Could not log out of the shell", e);
+        }
+        try
+        {
+            expect.close();
+        }
+        catch (IOException e)
+        {
+            LOG.debug("Could not stop reading the shell", e);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * A bastion that targets are reached through, like <code>ssh -J</code>. Part of {@link SshConnectionKey}, so pooled
+ * connections are only reused by tasks that go through the same bastion.
+ * The bastion is logged into with the task's own credentials.
+ */
+public final class JumpHost
+{
+    public static final String HOST_KEY = "jumpHost";
+    public static final String PORT_KEY = "jumpPort";
+    public static final String USERNAME_KEY = "jumpUsername";
+    static final String[] CONFIG_KEYS = {HOST_KEY, PORT_KEY, USERNAME_KEY};
+
+    private final String host;
+    private final int port;
+    private final String username;
+
+    public JumpHost(String host, int port, String username)
+    {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+    }
+
+    /**
+     * @param defaultUsername used when no separate bastion user is configured
+     * @return null unless the task goes through a bastion
+     */
+    public static JumpHost fromConfig(Map<String, String> config, String defaultUsername)
+    {
+        final String host = config.get(HOST_KEY);
+        if (StringUtils.isBlank(host))
+        {
+            return null;
+        }
+        final String username = config.get(USERNAME_KEY);
+        return new JumpHost(host.trim(), NumberUtils.toInt(config.get(PORT_KEY), BaseSshTaskConfigurator.DEFAULT_SSH_PORT_NUMBER),
+                StringUtils.isBlank(username) ? defaultUsername : username.trim());
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public String getUsername()
+    {
+        return username;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (!(o instanceof JumpHost))
+        {
+            return false;
+        }
+        JumpHost that = (JumpHost) o;
+        return port == that.port
+                && host.equals(that.host)
+                && username.equals(that.username);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = host.hashCode();
+        result = 31 * result + port;
+        result = 31 * result + username.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return username + "@" + host + ":" + port;
+    }
+}
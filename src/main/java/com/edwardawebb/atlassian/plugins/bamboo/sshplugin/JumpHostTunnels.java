@@ -0,0 +1,456 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.SocketFactory;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.channel.direct.DirectConnection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One authenticated connection per jump host, shared by every connection on this agent that goes through it.
+ * <p>
+ * A connection to a target runs over its own direct-tcpip channel of the jump host connection, handed to sshj as a
+ * socket from {@link Lease#socketFactory()}, so the jump host handshake happens once no matter how many targets, tasks
+ * and pooled connections use it, and nothing listens on a local port. The jump host connection stays open while any
+ * connection through it is open, pooled ones included, and is closed with the last of them. A closed tunnel is
+ * forgotten, the next connection through that jump host starts a new one.
+ */
+class JumpHostTunnels
+{
+    private static final Logger LOG = LoggerFactory.getLogger(JumpHostTunnels.class);
+
+    private final SshConnector connector;
+    private final ConcurrentMap<SshConnectionKey, Tunnel> tunnels = new ConcurrentHashMap<SshConnectionKey, Tunnel>();
+
+    JumpHostTunnels(SshConnector connector)
+    {
+        this.connector = connector;
+    }
+
+    /**
+     * Connects to the jump host unless a connection to it is already open.
+     *
+     * @return a lease to connect to the target through, release it once the connection to the target is closed
+     */
+    Lease open(SshConnectionKey key, SshCredentials credentials, TaskMetrics metrics) throws IOException
+    {
+        final SshConnectionKey jumpHostKey = key.getJumpHostKey();
+        while (true)
+        {
+            Tunnel tunnel = tunnels.get(jumpHostKey);
+            if (tunnel == null)
+            {
+                Tunnel created = new Tunnel(jumpHostKey);
+                tunnel = tunnels.putIfAbsent(jumpHostKey, created);
+                if (tunnel == null)
+                {
+                    tunnel = created;
+                }
+            }
+            final SSHClient client = tunnel.acquire(credentials, metrics);
+            if (client != null)
+            {
+                return new Lease(tunnel, client, key.getHost(), key.getPort());
+            }
+            // the tunnel closed with its last lease after it was looked up, it is already out of the map
+        }
+    }
+
+    /**
+     * @return the number of jump hosts with a tunnel open or opening
+     */
+    int size()
+    {
+        return tunnels.size();
+    }
+
+    private final class Tunnel
+    {
+        private final SshConnectionKey jumpHostKey;
+        private FutureTask<SSHClient> client;
+        private int leases;
+        // set with the last lease, a closed tunnel is never opened again
+        private boolean retired;
+
+        private Tunnel(SshConnectionKey jumpHostKey)
+        {
+            this.jumpHostKey = jumpHostKey;
+        }
+
+        /**
+         * @return the jump host connection, counted as one more lease, or null if this tunnel closed in the meantime
+         */
+        SSHClient acquire(final SshCredentials credentials, final TaskMetrics metrics) throws IOException
+        {
+            final FutureTask<SSHClient> connecting;
+            final boolean connectsHere;
+            synchronized (this)
+            {
+                if (retired)
+                {
+                    return null;
+                }
+                if (client != null && client.isDone() && !isConnected(client))
+                {
+                    LOG.debug("Connection to jump host {} was lost, reconnecting", jumpHostKey);
+                    close(client);
+                    client = null;
+                }
+                connectsHere = client == null;
+                if (connectsHere)
+                {
+                    client = new FutureTask<SSHClient>(new Callable<SSHClient>()
+                    {
+                        @Override
+                        public SSHClient call() throws IOException
+                        {
+                            return connector.connect(jumpHostKey, credentials, metrics);
+                        }
+                    });
+                }
+                connecting = client;
+                leases++;
+            }
+            // the handshake happens outside the lock, concurrent tasks wait for it instead of each opening their own
+            if (connectsHere)
+            {
+                connecting.run();
+            }
+            try
+            {
+                final SSHClient ssh = connecting.get();
+                if (connectsHere)
+                {
+                    LOG.debug("Opened jump host connection to {}", jumpHostKey);
+                }
+                else
+                {
+                    metrics.connectionReused();
+                }
+                return ssh;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                release();
+                throw new InterruptedIOException("Interrupted while connecting to jump host " + jumpHostKey);
+            }
+            catch (ExecutionException e)
+            {
+                synchronized (this)
+                {
+                    if (client == connecting)
+                    {
+                        // the next task tries again
+                        client = null;
+                    }
+                }
+                release();
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+
+        synchronized void release()
+        {
+            if (--leases > 0)
+            {
+                return;
+            }
+            retired = true;
+            tunnels.remove(jumpHostKey, this);
+            if (client != null)
+            {
+                LOG.debug("Closing jump host connection to {}, nothing goes through it anymore", jumpHostKey);
+                close(client);
+                client = null;
+            }
+        }
+
+        private boolean isConnected(FutureTask<SSHClient> connection)
+        {
+            try
+            {
+                return connection.get().isConnected();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            catch (ExecutionException e)
+            {
+                return false;
+            }
+        }
+
+        private void close(FutureTask<SSHClient> connection)
+        {
+            if (connection.isDone())
+            {
+                try
+                {
+                    SshConnector.closeQuietly(connection.get());
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                catch (ExecutionException e)
+                {
+                    // never connected, nothing to close
+                }
+            }
+        }
+    }
+
+    /**
+     * A connection's hold on a jump host. Connect the target's client with {@link #socketFactory()} to
+     * {@link #getTargetAddress()}, the address is only a label and never resolved here.
+     */
+    static final class Lease
+    {
+        private final Tunnel tunnel;
+        private final SSHClient client;
+        private final String targetHost;
+        private final int targetPort;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Lease(Tunnel tunnel, SSHClient client, String targetHost, int targetPort)
+        {
+            this.tunnel = tunnel;
+            this.client = client;
+            this.targetHost = targetHost;
+            this.targetPort = targetPort;
+        }
+
+        /**
+         * @return the target under its own name, the jump host resolves it
+         */
+        InetAddress getTargetAddress() throws IOException
+        {
+            return InetAddress.getByAddress(targetHost, new byte[4]);
+        }
+
+        /**
+         * @return a factory whose sockets open a channel to the target through the jump host, wherever they are asked to connect to
+         */
+        SocketFactory socketFactory()
+        {
+            return new SocketFactory()
+            {
+                @Override
+                public Socket createSocket()
+                {
+                    return new ChannelSocket(client, targetHost, targetPort);
+                }
+
+                @Override
+                public Socket createSocket(String host, int port) throws IOException
+                {
+                    return connected();
+                }
+
+                @Override
+                public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+                {
+                    return connected();
+                }
+
+                @Override
+                public Socket createSocket(InetAddress host, int port) throws IOException
+                {
+                    return connected();
+                }
+
+                @Override
+                public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+                {
+                    return connected();
+                }
+
+                private Socket connected() throws IOException
+                {
+                    final Socket socket = createSocket();
+                    socket.connect(null);
+                    return socket;
+                }
+            };
+        }
+
+        /**
+         * Safe to call more than once, a disconnected client may be disconnected again.
+         */
+        void release()
+        {
+            if (released.compareAndSet(false, true))
+            {
+                tunnel.release();
+            }
+        }
+    }
+
+    /**
+     * Looks like a plain socket to sshj, the streams are those of a direct-tcpip channel of the jump host connection.
+     */
+    private static final class ChannelSocket extends Socket
+    {
+        private final SSHClient client;
+        private final String targetHost;
+        private final int targetPort;
+        private DirectConnection channel;
+        private boolean closed;
+        // channels have no read timeout, the value is only kept for sshj to read back
+        private int soTimeout;
+
+        ChannelSocket(SSHClient client, String targetHost, int targetPort)
+        {
+            this.client = client;
+            this.targetHost = targetHost;
+            this.targetPort = targetPort;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint) throws IOException
+        {
+            connect(endpoint, 0);
+        }
+
+        @Override
+        public synchronized void connect(SocketAddress endpoint, int timeout) throws IOException
+        {
+            if (closed)
+            {
+                throw new SocketException("Socket is closed");
+            }
+            // the channel open request is bounded by the jump host connection's own timeout
+            channel = client.newDirectConnection(targetHost, targetPort);
+        }
+
+        private DirectConnection connected() throws SocketException
+        {
+            if (channel == null)
+            {
+                throw new SocketException("Socket is not connected");
+            }
+            return channel;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            return connected().getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException
+        {
+            return connected().getOutputStream();
+        }
+
+        @Override
+        public boolean isConnected()
+        {
+            return channel != null;
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return closed;
+        }
+
+        @Override
+        public InetAddress getInetAddress()
+        {
+            try
+            {
+                return InetAddress.getByAddress(targetHost, new byte[4]);
+            }
+            catch (IOException e)
+            {
+                return null;
+            }
+        }
+
+        @Override
+        public int getPort()
+        {
+            return targetPort;
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress()
+        {
+            return InetSocketAddress.createUnresolved(targetHost, targetPort);
+        }
+
+        @Override
+        public void setSoTimeout(int timeout)
+        {
+            soTimeout = timeout;
+        }
+
+        @Override
+        public int getSoTimeout()
+        {
+            return soTimeout;
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on)
+        {
+            // the jump host connection's socket carries the bytes
+        }
+
+        @Override
+        public void setKeepAlive(boolean on)
+        {
+            // the jump host connection has its own keep-alive
+        }
+
+        @Override
+        public synchronized void close() throws IOException
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            try
+            {
+                if (channel != null && channel.isOpen())
+                {
+                    channel.close();
+                }
+            }
+            finally
+            {
+                super.close();
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "channel to " + targetHost + ":" + targetPort + " through a jump host";
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves a comma separated list of local names and ant-style patterns against the working directory into the files
+ * to upload, each with the path it gets below the remote directory.
+ * <ul>
+ *     <li>a file keeps its name: <code>target/app.jar</code> becomes <code>app.jar</code></li>
+ *     <li>a directory is copied with its name: <code>dist</code> becomes <code>dist/...</code></li>
+ *     <li>a pattern keeps the path below its literal leading directories: <code>target/**&#47;*.jar</code> makes
+ *     <code>target/lib/a.jar</code> into <code>lib/a.jar</code></li>
+ *     <li>entries starting with <code>!</code> exclude matching paths (relative to the working directory) again</li>
+ * </ul>
+ */
+public class LocalFileSet
+{
+    private final Map<File, String> files = new LinkedHashMap<File, String>();
+    private final List<String> missing = new ArrayList<String>();
+
+    public static LocalFileSet resolve(File baseDirectory, String entries)
+    {
+        final List<String> names = new ArrayList<String>();
+        final List<GlobPattern> includes = new ArrayList<GlobPattern>();
+        final List<GlobPattern> excludes = new ArrayList<GlobPattern>();
+        for (String entry : entries.split(","))
+        {
+            final String name = entry.trim();
+            if (name.isEmpty())
+            {
+                continue;
+            }
+            if (name.startsWith("!"))
+            {
+                excludes.add(GlobPattern.compile(name.substring(1)));
+            }
+            else if (GlobPattern.isPattern(name))
+            {
+                includes.add(GlobPattern.compile(name));
+            }
+            else
+            {
+                names.add(name);
+            }
+        }
+
+        final LocalFileSet fileSet = new LocalFileSet();
+        for (String name : names)
+        {
+            final File file = new File(baseDirectory, name);
+            if (!file.exists())
+            {
+                fileSet.missing.add(name);
+            }
+            else
+            {
+                fileSet.add(baseDirectory, file, file.getParentFile(), excludes);
+            }
+        }
+        for (GlobPattern include : includes)
+        {
+            final File root = include.getStaticPrefix().isEmpty() ? baseDirectory : new File(baseDirectory, include.getStaticPrefix());
+            fileSet.addMatching(baseDirectory, root, root, include, excludes);
+        }
+        return fileSet;
+    }
+
+    private void add(File baseDirectory, File file, File destinationRoot, List<GlobPattern> excludes)
+    {
+        final File[] children = file.listFiles();
+        if (children != null)
+        {
+            Arrays.sort(children);
+            for (File child : children)
+            {
+                add(baseDirectory, child, destinationRoot, excludes);
+            }
+        }
+        else if (file.isFile() && !isExcluded(relativePath(baseDirectory, file), excludes))
+        {
+            put(file, relativePath(destinationRoot, file));
+        }
+    }
+
+    private void addMatching(File baseDirectory, File directory, File destinationRoot, GlobPattern include, List<GlobPattern> excludes)
+    {
+        final File[] children = directory.listFiles();
+        if (children == null)
+        {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children)
+        {
+            if (child.isDirectory())
+            {
+                addMatching(baseDirectory, child, destinationRoot, include, excludes);
+                continue;
+            }
+            final String relative = relativePath(baseDirectory, child);
+            if (child.isFile() && include.matches(relative) && !isExcluded(relative, excludes))
+            {
+                put(child, relativePath(destinationRoot, child));
+            }
+        }
+    }
+
+    private void put(File file, String destination)
+    {
+        // the first entry naming a file decides where it goes
+        if (!files.containsKey(file))
+        {
+            files.put(file, destination);
+        }
+    }
+
+    private static boolean isExcluded(String relativePath, List<GlobPattern> excludes)
+    {
+        for (GlobPattern exclude : excludes)
+        {
+            if (exclude.matches(relativePath))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String relativePath(File directory, File file)
+    {
+        final String base = directory.getAbsoluteFile().toURI().normalize().getPath();
+        final String path = file.getAbsoluteFile().toURI().normalize().getPath();
+        return path.startsWith(base) ? path.substring(base.length()) : file.getName();
+    }
+
+    /**
+     * @return every selected file and its '/' separated path below the remote directory, in a stable order
+     */
+    public Map<File, String> getFiles()
+    {
+        return Collections.unmodifiableMap(files);
+    }
+
+    /**
+     * @return literal names that do not exist locally
+     */
+    public List<String> getMissing()
+    {
+        return Collections.unmodifiableList(missing);
+    }
+}
@@ -0,0 +1,185 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * How downloads write local files: straight into a {@link FileChannel} through one large buffer instead of the
+ * unbuffered <code>FileOutputStream</code> sshj's <code>FileSystemFile</code> hands out, optionally reserving the final
+ * length up front when the remote size is known, and hashing the bytes on the way when checksums are verified.
+ * Files and bytes are counted for the task's {@link TaskMetrics} as they are written.
+ * <p>
+ * A reserved file is cut back to what was actually written when it is closed, so a download that breaks off leaves
+ * a file whose length is the point a retry resumes from.
+ */
+public class LocalFileWriter
+{
+    public static final int DEFAULT_BUFFER_KB = 256;
+    private static final int MIN_BUFFER_SIZE = 8 * 1024;
+
+    public static final LocalFileWriter DEFAULT = new LocalFileWriter(DEFAULT_BUFFER_KB * 1024, false, null, null);
+
+    private final int bufferSize;
+    private final boolean preallocate;
+    private final DownloadChecksums checksums;
+    private final TaskMetrics metrics;
+
+    /**
+     * @param preallocate set the file to its final length before writing when the size is known
+     * @param checksums hashes every file as it is written, null to skip that
+     * @param metrics counts what is written, null to skip that
+     */
+    public LocalFileWriter(int bufferSize, boolean preallocate, DownloadChecksums checksums, TaskMetrics metrics)
+    {
+        this.bufferSize = Math.max(MIN_BUFFER_SIZE, bufferSize);
+        this.preallocate = preallocate;
+        this.checksums = checksums;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param expectedSize the size the file will have, or a negative number if it is not known
+     * @return a stream that writes the file from the start, replacing any previous content
+     */
+    public OutputStream create(File file, long expectedSize) throws IOException
+    {
+        final OutputStream out = open(file, false, expectedSize);
+        if (metrics != null)
+        {
+            // a resumed download appends to the same file, it is not counted again
+            metrics.countFile();
+        }
+        return checksums == null ? out : checksums.digesting(file, out);
+    }
+
+    /**
+     * @return a stream that continues the file at its current end
+     */
+    public OutputStream append(File file, long expectedSize) throws IOException
+    {
+        final long existing = file.length();
+        final OutputStream out = open(file, true, expectedSize);
+        return checksums == null ? out : checksums.appending(file, existing, out);
+    }
+
+    private OutputStream open(File file, boolean append, long expectedSize) throws IOException
+    {
+        final long reserve = preallocate ? expectedSize : -1;
+        // no point holding a large buffer for a small file
+        final int buffer = expectedSize >= 0 && expectedSize < bufferSize ? (int) Math.max(MIN_BUFFER_SIZE, expectedSize) : bufferSize;
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try
+        {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final long start = append ? channel.size() : 0;
+            if (!append)
+            {
+                channel.truncate(0);
+            }
+            if (reserve > start)
+            {
+                randomAccessFile.setLength(reserve);
+            }
+            channel.position(start);
+            return new ChannelOutputStream(randomAccessFile, channel, buffer, reserve > start, metrics);
+        }
+        catch (IOException e)
+        {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    private static final class ChannelOutputStream extends OutputStream
+    {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final boolean reserved;
+        private final TaskMetrics metrics;
+        private boolean closed;
+
+        private ChannelOutputStream(RandomAccessFile file, FileChannel channel, int bufferSize, boolean reserved, TaskMetrics metrics)
+        {
+            this.file = file;
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(bufferSize);
+            this.reserved = reserved;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            if (!buffer.hasRemaining())
+            {
+                drain();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            int written = 0;
+            while (written < length)
+            {
+                if (!buffer.hasRemaining())
+                {
+                    drain();
+                }
+                final int chunk = Math.min(buffer.remaining(), length - written);
+                buffer.put(bytes, offset + written, chunk);
+                written += chunk;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            drain();
+        }
+
+        private void drain() throws IOException
+        {
+            buffer.flip();
+            final int count = buffer.remaining();
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            buffer.clear();
+            if (metrics != null)
+            {
+                metrics.countBytes(count);
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            try
+            {
+                drain();
+                if (reserved)
+                {
+                    // the remote file may have been shorter than announced, or the download broke off
+                    channel.truncate(channel.position());
+                }
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+    }
+}
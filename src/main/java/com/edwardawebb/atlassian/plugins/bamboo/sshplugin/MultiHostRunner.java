@@ -0,0 +1,200 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * Runs the same script on many hosts at once. At most <code>parallelism</code> hosts run concurrently, each host's
+ * output is buffered and written to the build log as one block when that host finishes, and a pass/fail summary
+ * closes the run. Once more hosts have failed than the threshold allows, hosts that have not started yet are skipped.
+ */
+public class MultiHostRunner
+{
+    public static final int DEFAULT_PARALLELISM = 10;
+
+    private final int parallelism;
+    private final String failureThreshold;
+
+    public MultiHostRunner(int parallelism, String failureThreshold)
+    {
+        this.parallelism = Math.max(1, parallelism);
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * @return true if no more hosts failed than the threshold allows and none were skipped
+     */
+    public boolean run(final List<HostList.Host> hosts, final HostTask hostTask, final ScriptLogger logger)
+    {
+        final int allowedFailures = allowedFailures(failureThreshold, hosts.size());
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicBoolean abort = new AtomicBoolean(false);
+
+        logger.addBuildLogEntry("Running on " + hosts.size() + " hosts, " + Math.min(parallelism, hosts.size())
+                + " at a time, tolerating " + allowedFailures + " failed hosts");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, hosts.size()), new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "ssh-fan-out-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final CompletionService<HostOutcome> completion = new ExecutorCompletionService<HostOutcome>(executor);
+        final Map<HostList.Host, Outcome> outcomes = new LinkedHashMap<HostList.Host, Outcome>();
+        for (final HostList.Host host : hosts)
+        {
+            outcomes.put(host, Outcome.SKIPPED);
+            completion.submit(new Callable<HostOutcome>()
+            {
+                @Override
+                public HostOutcome call()
+                {
+                    final BufferedHostLogger hostLogger = new BufferedHostLogger(host.toString());
+                    if (abort.get())
+                    {
+                        return new HostOutcome(host, Outcome.SKIPPED, hostLogger);
+                    }
+                    boolean passed;
+                    try
+                    {
+                        passed = hostTask.run(host, hostLogger);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        hostLogger.addErrorLogEntry("Unexpected failure: " + e);
+                        passed = false;
+                    }
+                    if (!passed && failures.incrementAndGet() > allowedFailures)
+                    {
+                        abort.set(true);
+                    }
+                    return new HostOutcome(host, passed ? Outcome.PASSED : Outcome.FAILED, hostLogger);
+                }
+            });
+        }
+        executor.shutdown();
+
+        try
+        {
+            for (int i = 0; i < hosts.size(); i++)
+            {
+                HostOutcome outcome = completion.take().get();
+                outcomes.put(outcome.host, outcome.outcome);
+                outcome.output.flushTo(logger);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            logger.addErrorLogEntry("Interrupted, abandoning hosts that have not finished");
+            return false;
+        }
+        catch (ExecutionException e)
+        {
+            // the callable catches everything itself
+            throw new IllegalStateException(e.getCause());
+        }
+
+        return summarize(outcomes, allowedFailures, logger);
+    }
+
+    private boolean summarize(Map<HostList.Host, Outcome> outcomes, int allowedFailures, ScriptLogger logger)
+    {
+        int passed = 0;
+        int failed = 0;
+        int skipped = 0;
+        logger.addBuildLogEntry("Host summary:");
+        for (Map.Entry<HostList.Host, Outcome> entry : outcomes.entrySet())
+        {
+            switch (entry.getValue())
+            {
+                case PASSED:
+                    passed++;
+                    logger.addBuildLogEntry("  PASS " + entry.getKey());
+                    break;
+                case FAILED:
+                    failed++;
+                    logger.addErrorLogEntry("  FAIL " + entry.getKey());
+                    break;
+                default:
+                    skipped++;
+                    logger.addErrorLogEntry("  SKIP " + entry.getKey());
+            }
+        }
+        logger.addBuildLogEntry(passed + " passed, " + failed + " failed, " + skipped + " skipped");
+        if (skipped > 0 || failed > allowedFailures)
+        {
+            logger.addErrorLogEntry("More hosts failed than the allowed " + allowedFailures);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param threshold blank for none, a host count such as <code>2</code> or a percentage such as <code>10%</code>
+     */
+    static int allowedFailures(String threshold, int hostCount)
+    {
+        if (StringUtils.isBlank(threshold))
+        {
+            return 0;
+        }
+        String value = threshold.trim();
+        if (value.endsWith("%"))
+        {
+            int percent = NumberUtils.toInt(value.substring(0, value.length() - 1).trim(), 0);
+            return (int) Math.floor(hostCount * Math.max(0, Math.min(100, percent)) / 100.0);
+        }
+        return Math.max(0, NumberUtils.toInt(value, 0));
+    }
+
+    /**
+     * The work done for each host.
+     */
+    public interface HostTask
+    {
+        /**
+         * @return true if the host passed
+         */
+        boolean run(HostList.Host host, ScriptLogger logger);
+    }
+
+    private enum Outcome
+    {
+        PASSED, FAILED, SKIPPED
+    }
+
+    private static final class HostOutcome
+    {
+        private final HostList.Host host;
+        private final Outcome outcome;
+        private final BufferedHostLogger output;
+
+        private HostOutcome(HostList.Host host, Outcome outcome, BufferedHostLogger output)
+        {
+            this.host = host;
+            this.outcome = outcome;
+            this.output = output;
+        }
+    }
+}
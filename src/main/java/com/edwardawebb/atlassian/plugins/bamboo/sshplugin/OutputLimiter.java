@@ -0,0 +1,160 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the build log of very chatty commands bounded: the first lines of a section are passed through, after that
+ * only the most recent lines are held in a fixed-size ring buffer and everything older is dropped and counted.
+ * When the section ends with {@link #flush()} a "lines suppressed" marker is logged followed by the buffered tail.
+ * <p>
+ * Lines matching the keep pattern are never dropped. The buffered lines before them are logged first, so they
+ * come with some context and the log stays in order.
+ */
+public class OutputLimiter implements ScriptLogger
+{
+    private final ScriptLogger delegate;
+    private final Policy policy;
+    private final String[] tail;
+    private final boolean[] tailIsError;
+    private int tailStart;
+    private int tailSize;
+    private int headLogged;
+    private long suppressed;
+
+    public OutputLimiter(ScriptLogger delegate, Policy policy)
+    {
+        this.delegate = delegate;
+        this.policy = policy;
+        this.tail = new String[policy.tailLines];
+        this.tailIsError = new boolean[policy.tailLines];
+    }
+
+    @Override
+    public synchronized void addBuildLogEntry(String line)
+    {
+        accept(line, false);
+    }
+
+    @Override
+    public synchronized void addErrorLogEntry(String line)
+    {
+        accept(line, true);
+    }
+
+    /**
+     * Ends the current section, logging the suppressed marker and the buffered tail; the next line starts a new head.
+     */
+    public synchronized void flush()
+    {
+        flushTail();
+        headLogged = 0;
+    }
+
+    private void accept(String line, boolean error)
+    {
+        if (policy.isUnlimited() || headLogged < policy.headLines)
+        {
+            headLogged++;
+            log(line, error);
+            return;
+        }
+        if (policy.keep != null && policy.keep.matcher(line).find())
+        {
+            flushTail();
+            log(line, error);
+            return;
+        }
+        if (tail.length == 0)
+        {
+            suppressed++;
+            return;
+        }
+        if (tailSize == tail.length)
+        {
+            tailStart = (tailStart + 1) % tail.length;
+            tailSize--;
+            suppressed++;
+        }
+        final int slot = (tailStart + tailSize) % tail.length;
+        tail[slot] = line;
+        tailIsError[slot] = error;
+        tailSize++;
+    }
+
+    private void flushTail()
+    {
+        if (suppressed > 0)
+        {
+            delegate.addBuildLogEntry("[... " + suppressed + " lines suppressed ...]");
+            suppressed = 0;
+        }
+        for (int i = 0; i < tailSize; i++)
+        {
+            final int slot = (tailStart + i) % tail.length;
+            log(tail[slot], tailIsError[slot]);
+            tail[slot] = null;
+        }
+        tailStart = 0;
+        tailSize = 0;
+    }
+
+    private void log(String line, boolean error)
+    {
+        if (error)
+        {
+            delegate.addErrorLogEntry(line);
+        }
+        else
+        {
+            delegate.addBuildLogEntry(line);
+        }
+    }
+
+    /**
+     * How many lines to keep from the start and the end of each command's output.
+     */
+    public static final class Policy
+    {
+        public static final Policy UNLIMITED = new Policy(-1, 0, null);
+
+        private final int headLines;
+        private final int tailLines;
+        private final Pattern keep;
+
+        public Policy(int headLines, int tailLines, Pattern keep)
+        {
+            this.headLines = headLines;
+            this.tailLines = Math.max(tailLines, 0);
+            this.keep = keep;
+        }
+
+        /**
+         * Builds a policy from task configuration, a blank head and tail keeps every line as before.
+         *
+         * @throws java.util.regex.PatternSyntaxException if the keep pattern is not a valid regular expression
+         */
+        public static Policy fromConfig(String headLines, String tailLines, String keepPattern)
+        {
+            if (isBlank(headLines) && isBlank(tailLines))
+            {
+                return UNLIMITED;
+            }
+            return new Policy(toInt(headLines), toInt(tailLines), isBlank(keepPattern) ? null : Pattern.compile(keepPattern));
+        }
+
+        public boolean isUnlimited()
+        {
+            return headLines < 0;
+        }
+
+        private static boolean isBlank(String value)
+        {
+            return value == null || value.trim().isEmpty();
+        }
+
+        private static int toInt(String value)
+        {
+            return isBlank(value) ? 0 : Integer.parseInt(value.trim());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.schmizz.sshj.sftp.RemoteFile;
+
+/**
+ * Reads a byte range of an open remote file with several read requests in flight, from any offset. sshj's own
+ * read-ahead stream always starts at the beginning of the file, its offset stream waits a round trip per buffer.
+ * <p>
+ * Data is handed on strictly in order, so whatever has been handed on is a complete prefix of the range and a retry
+ * can continue right after it.
+ */
+final class PipelinedRemoteReader
+{
+    // the read length every SFTP server has to serve in full
+    static final int READ_SIZE = 32 * 1024;
+    // sshj's reads block, so every read in flight holds a thread until its response arrives. Shared by all tasks on
+    // the agent, reads beyond this wait in line instead of growing the pool by hundreds of threads
+    static final int MAX_READ_THREADS = 64;
+
+    private static final ThreadPoolExecutor READS = new ThreadPoolExecutor(MAX_READ_THREADS, MAX_READ_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "ssh-read-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static
+    {
+        // idle threads go away between downloads
+        READS.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Receives the data of a range in order.
+     */
+    interface Sink
+    {
+        void write(long position, byte[] data, int length) throws IOException;
+    }
+
+    private PipelinedRemoteReader()
+    {
+    }
+
+    /**
+     * Reads from <code>from</code> up to <code>end</code>, which the remote file must still reach.
+     *
+     * @return bytes read
+     * @throws EOFException if the remote file ends before <code>end</code>
+     */
+    static long read(final RemoteFile remoteFile, String remotePath, long from, long end, int readsInFlight, Sink sink) throws IOException
+    {
+        final Deque<Future<Chunk>> inFlight = new ArrayDeque<Future<Chunk>>();
+        try
+        {
+            long requested = from;
+            long position = from;
+            while (position < end)
+            {
+                while (inFlight.size() < Math.max(1, Math.min(MAX_READ_THREADS, readsInFlight)) && requested < end)
+                {
+                    final long offset = requested;
+                    final int length = (int) Math.min(READ_SIZE, end - offset);
+                    inFlight.add(READS.submit(new Callable<Chunk>()
+                    {
+                        @Override
+                        public Chunk call() throws IOException
+                        {
+                            return Chunk.read(remoteFile, offset, length);
+                        }
+                    }));
+                    requested += length;
+                }
+                final Chunk chunk = next(inFlight, remotePath);
+                int read = chunk.read;
+                if (read < chunk.data.length && read != -1)
+                {
+                    // the server sent less than asked for, fill in the rest before anything after it counts
+                    final int rest = remoteFile.read(chunk.offset + read, chunk.data, read, chunk.data.length - read);
+                    read = rest == -1 ? read : read + rest;
+                }
+                if (read <= 0)
+                {
+                    throw new EOFException("'" + remotePath + "' ended at " + position + ", it was " + end + " bytes or longer when the download started");
+                }
+                sink.write(position, chunk.data, read);
+                position += read;
+                if (read < chunk.data.length)
+                {
+                    // still short, ask again from where the data stopped
+                    cancel(inFlight);
+                    requested = position;
+                }
+            }
+            return position - from;
+        }
+        finally
+        {
+            cancel(inFlight);
+        }
+    }
+
+    private static Chunk next(Deque<Future<Chunk>> inFlight, String remotePath) throws IOException
+    {
+        try
+        {
+            return inFlight.removeFirst().get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading '" + remotePath + "'");
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private static void cancel(Deque<Future<Chunk>> inFlight)
+    {
+        for (Future<Chunk> ahead : inFlight)
+        {
+            ahead.cancel(false);
+        }
+        inFlight.clear();
+    }
+
+    /**
+     * One read request.
+     */
+    private static final class Chunk
+    {
+        private final long offset;
+        private final byte[] data;
+        private final int read;
+
+        private Chunk(long offset, byte[] data, int read)
+        {
+            this.offset = offset;
+            this.data = data;
+            this.read = read;
+        }
+
+        static Chunk read(RemoteFile remoteFile, long offset, int length) throws IOException
+        {
+            final byte[] data = new byte[length];
+            return new Chunk(offset, data, remoteFile.read(offset, data, 0, length));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * A connection leased from the {@link SshConnectionPool}. The lease must end with exactly one call to either
+ * {@link #release()} (connection is fine, hand it to the next task) or {@link #invalidate()} (something went wrong,
+ * throw it away). Further calls are ignored so a finally block can always release.
+ */
+public class PooledSshConnection
+{
+    private final SshConnectionPool pool;
+    private final SshConnectionKey key;
+    private final SSHClient client;
+    private final boolean reused;
+    private final AtomicBoolean returned = new AtomicBoolean(false);
+
+    PooledSshConnection(SshConnectionPool pool, SshConnectionKey key, SSHClient client, boolean reused)
+    {
+        this.pool = pool;
+        this.key = key;
+        this.client = client;
+        this.reused = reused;
+    }
+
+    public SSHClient getClient()
+    {
+        return client;
+    }
+
+    public SshConnectionKey getKey()
+    {
+        return key;
+    }
+
+    /**
+     * @return true if an idle connection was handed over, false if it was freshly opened for this lease
+     */
+    public boolean isReused()
+    {
+        return reused;
+    }
+
+    public void release()
+    {
+        if (returned.compareAndSet(false, true))
+        {
+            pool.giveBack(key, client, true);
+        }
+    }
+
+    public void invalidate()
+    {
+        if (returned.compareAndSet(false, true))
+        {
+            pool.giveBack(key, client, false);
+        }
+    }
+}
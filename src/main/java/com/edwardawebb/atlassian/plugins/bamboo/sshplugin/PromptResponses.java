@@ -0,0 +1,156 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * How {@link InteractiveShell} answers prompts, one rule per line as <code>regular expression =&gt; response</code>.
+ * A prompt only counts while it is the last thing the shell printed, that is while the command waits for input, so the
+ * same text in ordinary output is left alone. <code>${password}</code> in a response stands for the task's password.
+ * <p>
+ * All rules are combined into one pattern together with a line end and an overlong line, whichever comes first in the
+ * output is what the shell reacts to next.
+ */
+public final class PromptResponses
+{
+    public static final String CONFIG_KEY = "shellResponses";
+    public static final String PASSWORD = "${password}";
+    public static final String DEFAULT_RULES = "(?i)\\[sudo\\] password for [^:]*: => " + PASSWORD;
+    static final String SEPARATOR = "=>";
+    static final int MAX_ANSWERS = 3;
+    static final int MAX_LINE_LENGTH = 8192;
+
+    private final List<String> prompts;
+    private final List<String> responses;
+    private final int[] promptGroups;
+    private final int lineEndGroup;
+    private final int cutGroup;
+    private final Pattern pattern;
+
+    private PromptResponses(List<String> prompts, List<String> responses)
+    {
+        this.prompts = Collections.unmodifiableList(prompts);
+        this.responses = Collections.unmodifiableList(responses);
+        this.promptGroups = new int[prompts.size()];
+        final StringBuilder regex = new StringBuilder();
+        int group = 1;
+        for (int i = 0; i < prompts.size(); i++)
+        {
+            promptGroups[i] = group;
+            regex.append('(').append(prompts.get(i)).append(")[ \\t]*\\z|");
+            group += 1 + Pattern.compile(prompts.get(i)).matcher("").groupCount();
+        }
+        lineEndGroup = group;
+        cutGroup = group + 1;
+        // everything before the match is consumed, so a line that never ends is cut at the start of the input
+        regex.append("(\\n)|\\A([^\\n]{").append(MAX_LINE_LENGTH).append("})");
+        this.pattern = Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @param rules one rule per line, blank lines are skipped; null or blank for none
+     * @throws IllegalArgumentException if a rule has no response or its prompt is not a valid regular expression
+     */
+    public static PromptResponses parse(String rules)
+    {
+        final List<String> prompts = new ArrayList<String>();
+        final List<String> responses = new ArrayList<String>();
+        if (rules != null)
+        {
+            for (String line : rules.split("\n"))
+            {
+                final String rule = line.trim();
+                if (rule.isEmpty())
+                {
+                    continue;
+                }
+                final int separator = rule.indexOf(SEPARATOR);
+                if (separator <= 0)
+                {
+                    throw new IllegalArgumentException("'" + rule + "' is not of the form prompt " + SEPARATOR + " response");
+                }
+                final String prompt = rule.substring(0, separator).trim();
+                Pattern.compile(prompt);
+                prompts.add(prompt);
+                // an empty response just presses enter
+                responses.add(rule.substring(separator + SEPARATOR.length()).trim());
+            }
+        }
+        return new PromptResponses(prompts, responses);
+    }
+
+    /**
+     * @return why the rules cannot be used, null if they can
+     */
+    public static String validate(String rules)
+    {
+        try
+        {
+            parse(rules);
+            return null;
+        }
+        catch (PatternSyntaxException e)
+        {
+            return "Not a valid regular expression: " + e.getDescription();
+        }
+        catch (IllegalArgumentException e)
+        {
+            return e.getMessage();
+        }
+    }
+
+    public Pattern getPattern()
+    {
+        return pattern;
+    }
+
+    public int size()
+    {
+        return prompts.size();
+    }
+
+    /**
+     * @return the rule whose prompt was matched, -1 for a line end or a cut line
+     */
+    public int ruleFor(MatchResult match)
+    {
+        for (int i = 0; i < promptGroups.length; i++)
+        {
+            if (match.group(promptGroups[i]) != null)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the match is the start of a line too long to wait for its end
+     */
+    public boolean isCut(MatchResult match)
+    {
+        return match.group(cutGroup) != null;
+    }
+
+    public boolean isLineEnd(MatchResult match)
+    {
+        return match.group(lineEndGroup) != null;
+    }
+
+    public String getPrompt(int rule)
+    {
+        return prompts.get(rule);
+    }
+
+    /**
+     * @return the response as configured, still with the password placeholder
+     */
+    public String getResponse(int rule)
+    {
+        return responses.get(rule);
+    }
+}
@@ -0,0 +1,15 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * Copies one remote file or directory tree into a local directory, the way <code>scp -r remote localDirectory</code>
+ * would: the entry keeps its name inside the local directory.
+ */
+public interface RemoteDownloader
+{
+    void download(SSHClient ssh, String remotePath, File localDirectory) throws IOException;
+}
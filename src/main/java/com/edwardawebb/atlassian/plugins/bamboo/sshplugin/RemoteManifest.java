@@ -0,0 +1,257 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * Size, modification time and optionally SHA-256 of every regular file below a set of remote roots,
+ * fetched with a single remote command. Needs GNU find (and sha256sum for hashes) on the remote host.
+ * <p>
+ * Whatever find cannot read (a directory without permission, a file removed while it was listed) is left out and
+ * reported in {@link #getWarnings()}, one unreadable subdirectory does not fail the whole listing.
+ */
+public class RemoteManifest
+{
+    private static final String HASH_SECTION = "--sha256--";
+    // find exits with 1 when it skipped something it could not read, and so does the listing script
+    private static final int SKIPPED_STATUS = 1;
+
+    private final Map<String, Entry> entries;
+    private final List<String> warnings;
+
+    RemoteManifest(Map<String, Entry> entries)
+    {
+        this(entries, Collections.<String>emptyList());
+    }
+
+    RemoteManifest(Map<String, Entry> entries, List<String> warnings)
+    {
+        this.entries = Collections.unmodifiableMap(entries);
+        this.warnings = Collections.unmodifiableList(warnings);
+    }
+
+    public static RemoteManifest fetch(SSHClient ssh, Collection<String> roots, boolean withHashes) throws IOException
+    {
+        return fetch(ssh, roots, withHashes, false);
+    }
+
+    /**
+     * @param skipMissingRoots quietly ignore roots that do not exist instead of failing, for directories derived from patterns
+     */
+    public static RemoteManifest fetch(SSHClient ssh, Collection<String> roots, boolean withHashes, boolean skipMissingRoots) throws IOException
+    {
+        final RemoteShell.Result result = RemoteShell.run(ssh, command(roots, withHashes, skipMissingRoots));
+        final Integer status = result.getExitStatus();
+        if (status == null || (status != 0 && status != SKIPPED_STATUS))
+        {
+            throw result.failure();
+        }
+        final RemoteManifest manifest;
+        try
+        {
+            manifest = parse(result.getStdoutAsString());
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw status == 0 ? new IOException("Unexpected remote file listing: " + e.getMessage(), e) : result.failure();
+        }
+        return status == 0 ? manifest : new RemoteManifest(manifest.entries, warnings(result.getStderr()));
+    }
+
+    /**
+     * Lists each root on its own so one that cannot be read does not stop the others, and exits with 1 if anything
+     * was skipped. Runs under /bin/sh whatever the login shell is.
+     */
+    static String command(Collection<String> roots, boolean withHashes, boolean skipMissingRoots)
+    {
+        final StringBuilder quotedRoots = new StringBuilder();
+        for (String root : roots)
+        {
+            quotedRoots.append(' ').append(RemoteShell.quote(root));
+        }
+        final String missing = skipMissingRoots ? ":" : "echo \"No such file or directory: $r\" >&2; exit 2";
+        // NUL separated so any file name survives, hashes follow in a second section
+        String script = "s=0; for r in" + quotedRoots + "; do if [ -e \"$r\" ]; then find \"$r\" -type f -printf '%s %T@ %p\\0' || s=1; else "
+                + missing + "; fi; done";
+        if (withHashes)
+        {
+            script += "; printf '%s\\0' " + HASH_SECTION + "; for r in" + quotedRoots
+                    + "; do [ ! -e \"$r\" ] || find \"$r\" -type f -exec sha256sum {} + || s=1; done";
+        }
+        return RemoteShell.posixShell(script + "; exit $s");
+    }
+
+    /**
+     * @return the distinct non-blank lines of the listing's stderr, the hash pass repeats those of the listing
+     */
+    static List<String> warnings(String stderr)
+    {
+        final Set<String> warnings = new LinkedHashSet<String>();
+        for (String line : stderr.split("\n"))
+        {
+            if (!line.trim().isEmpty())
+            {
+                warnings.add(line.trim());
+            }
+        }
+        return new ArrayList<String>(warnings);
+    }
+
+    /**
+     * @throws IllegalArgumentException if a record is not "size mtime path"
+     */
+    static RemoteManifest parse(String output)
+    {
+        final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        final String[] records = output.split("\0", -1);
+        int i = 0;
+        for (; i < records.length; i++)
+        {
+            String record = records[i];
+            if (record.isEmpty())
+            {
+                continue;
+            }
+            if (HASH_SECTION.equals(record))
+            {
+                i++;
+                break;
+            }
+            int sizeEnd = record.indexOf(' ');
+            int timeEnd = record.indexOf(' ', sizeEnd + 1);
+            if (sizeEnd < 0 || timeEnd < 0)
+            {
+                throw new IllegalArgumentException("not a file record: " + record);
+            }
+            long size = Long.parseLong(record.substring(0, sizeEnd));
+            long mtime = (long) Double.parseDouble(record.substring(sizeEnd + 1, timeEnd));
+            String path = record.substring(timeEnd + 1);
+            entries.put(path, new Entry(path, size, mtime, null));
+        }
+        if (i < records.length)
+        {
+            // sha256sum prints "<hash>  <path>" one per line
+            for (String line : records[i].split("\n"))
+            {
+                if (line.length() > 66 && line.charAt(64) == ' ')
+                {
+                    String path = line.substring(66);
+                    Entry entry = entries.get(path);
+                    if (entry != null)
+                    {
+                        entries.put(path, new Entry(path, entry.size, entry.mtime, line.substring(0, 64)));
+                    }
+                }
+            }
+        }
+        return new RemoteManifest(entries);
+    }
+
+    public Collection<Entry> getEntries()
+    {
+        return entries.values();
+    }
+
+    /**
+     * @return what the remote listing had to skip, empty if it read everything
+     */
+    public List<String> getWarnings()
+    {
+        return warnings;
+    }
+
+    /**
+     * @return true if the local file already holds the same content as the remote entry
+     */
+    public static boolean isUnchanged(Entry remote, File local) throws IOException
+    {
+        if (!local.isFile() || local.length() != remote.size)
+        {
+            return false;
+        }
+        if (remote.sha256 != null)
+        {
+            return remote.sha256.equals(sha256(local));
+        }
+        // downloads keep the remote modification time, allow for file systems with coarse timestamps
+        return Math.abs(local.lastModified() / 1000L - remote.mtime) <= 1;
+    }
+
+    static String sha256(File file) throws IOException
+    {
+        try
+        {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final InputStream in = new DigestInputStream(new FileInputStream(file), digest);
+            try
+            {
+                final byte[] buffer = new byte[64 * 1024];
+                while (in.read(buffer) != -1)
+                {
+                    // digest is updated as the stream is read
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            return String.format("%064x", new BigInteger(1, digest.digest()));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available on this JVM", e);
+        }
+    }
+
+    public static final class Entry
+    {
+        private final String path;
+        private final long size;
+        private final long mtime;
+        private final String sha256;
+
+        Entry(String path, long size, long mtime, String sha256)
+        {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.sha256 = sha256;
+        }
+
+        public String getPath()
+        {
+            return path;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public long getMtime()
+        {
+            return mtime;
+        }
+
+        public String getSha256()
+        {
+            return sha256;
+        }
+    }
+}
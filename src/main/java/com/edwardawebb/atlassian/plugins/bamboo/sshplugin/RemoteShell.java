@@ -0,0 +1,207 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.channel.direct.Session;
+
+/**
+ * Helpers for running small housekeeping commands (listings, checksums) on the remote host.
+ */
+public final class RemoteShell
+{
+    private static final int EXIT_TIMEOUT_SECONDS = 30;
+    // enough for a screenful of warnings, the rest is read and dropped
+    private static final int MAX_STDERR_BYTES = 64 * 1024;
+    private static final ExecutorService STDERR_READERS = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "ssh-stderr-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private RemoteShell()
+    {
+    }
+
+    /**
+     * Quotes a value for a POSIX shell so it is passed as a single literal word.
+     */
+    public static String quote(String value)
+    {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Wraps a script so a POSIX shell runs it, the login shell on the remote host may be csh or fish.
+     */
+    public static String posixShell(String script)
+    {
+        return "exec /bin/sh -c " + quote(script);
+    }
+
+    /**
+     * Runs the command to completion and collects its stdout.
+     *
+     * @throws IOException if the command cannot be run or exits with a non-zero status
+     */
+    public static byte[] execute(SSHClient ssh, String command) throws IOException
+    {
+        final Result result = run(ssh, command);
+        if (result.getExitStatus() == null || result.getExitStatus() != 0)
+        {
+            throw result.failure();
+        }
+        return result.getStdout();
+    }
+
+    /**
+     * Runs the command to completion and collects its stdout and stderr, whatever its exit status.
+     * <p>
+     * Stderr is read on its own thread while stdout is read here: read one after the other, a command writing lots of
+     * warnings fills the stderr channel window, blocks, and never finishes its stdout.
+     *
+     * @throws IOException if the command cannot be run
+     */
+    public static Result run(SSHClient ssh, String command) throws IOException
+    {
+        final Session session = ssh.startSession();
+        try
+        {
+            final Session.Command cmd = session.exec(command);
+            final Future<String> stderr = STDERR_READERS.submit(drain(cmd.getErrorStream()));
+            final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            try
+            {
+                copy(cmd.getInputStream(), stdout);
+                cmd.join(EXIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                return new Result(command, cmd.getExitStatus(), stdout.toByteArray(), stderr.get(EXIT_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + command);
+            }
+            catch (ExecutionException e)
+            {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+            catch (TimeoutException e)
+            {
+                throw new IOException("Remote command did not close its stderr: " + command);
+            }
+            finally
+            {
+                stderr.cancel(true);
+            }
+        }
+        finally
+        {
+            session.close();
+        }
+    }
+
+    public static String executeForString(SSHClient ssh, String command) throws IOException
+    {
+        return new String(execute(ssh, command), StandardCharsets.UTF_8);
+    }
+
+    private static void copy(InputStream in, ByteArrayOutputStream out) throws IOException
+    {
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+        {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static Callable<String> drain(final InputStream in)
+    {
+        return new Callable<String>()
+        {
+            @Override
+            public String call() throws IOException
+            {
+                final ByteArrayOutputStream kept = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                {
+                    kept.write(buffer, 0, Math.max(0, Math.min(read, MAX_STDERR_BYTES - kept.size())));
+                }
+                return new String(kept.toByteArray(), StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    /**
+     * What a finished command printed, and how it exited.
+     */
+    public static final class Result
+    {
+        private final String command;
+        private final Integer exitStatus;
+        private final byte[] stdout;
+        private final String stderr;
+
+        Result(String command, Integer exitStatus, byte[] stdout, String stderr)
+        {
+            this.command = command;
+            this.exitStatus = exitStatus;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+
+        /**
+         * @return null if the command was killed by a signal or did not finish in time
+         */
+        public Integer getExitStatus()
+        {
+            return exitStatus;
+        }
+
+        public byte[] getStdout()
+        {
+            return stdout;
+        }
+
+        public String getStdoutAsString()
+        {
+            return new String(stdout, StandardCharsets.UTF_8);
+        }
+
+        public String getStderr()
+        {
+            return stderr;
+        }
+
+        /**
+         * @return the exception to throw when this exit status means the command failed
+         */
+        public IOException failure()
+        {
+            return new IOException("Remote command failed with status " + exitStatus + ": " + command
+                    + (stderr.trim().isEmpty() ? "" : " (" + stderr.trim() + ")"));
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes local files to exact remote paths. One uploader is used by one transfer thread for all of its files,
+ * so it may hold on to a channel between them. Callers upload under a temporary name and rename afterwards.
+ */
+public interface RemoteUploader extends Closeable
+{
+    void upload(File local, String remotePath) throws IOException;
+}
@@ -0,0 +1,18 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * A downloader that can continue an interrupted download of the same entry instead of starting over.
+ */
+public interface ResumableDownloader extends RemoteDownloader
+{
+    /**
+     * Only for an entry this task already started downloading: what is already there locally is taken to be
+     * the start of the remote content.
+     */
+    void resume(SSHClient ssh, String remotePath, File localDirectory) throws IOException;
+}
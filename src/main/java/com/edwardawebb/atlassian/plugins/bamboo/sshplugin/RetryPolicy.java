@@ -0,0 +1,86 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.math.NumberUtils;
+
+/**
+ * How often, and how patiently, a failed transfer is tried again. The wait doubles after every failed attempt up to
+ * a ceiling, and a random part of it is taken off so that transfer threads which failed together, because their
+ * shared connection dropped, do not all hit the host again at the same moment.
+ */
+public class RetryPolicy
+{
+    public static final int DEFAULT_ATTEMPTS = 3;
+    public static final int DEFAULT_BACKOFF_SECONDS = 2;
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    static final double DEFAULT_JITTER = 0.5;
+
+    private final int attempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double jitter;
+    private final Random random;
+
+    /**
+     * @param attempts total attempts, 1 never retries
+     * @param jitter fraction of each wait that may randomly be taken off, between 0 and 1
+     */
+    public RetryPolicy(int attempts, long initialBackoffMillis, long maxBackoffMillis, double jitter)
+    {
+        this(attempts, initialBackoffMillis, maxBackoffMillis, jitter, new Random());
+    }
+
+    RetryPolicy(int attempts, long initialBackoffMillis, long maxBackoffMillis, double jitter, Random random)
+    {
+        this.attempts = Math.max(1, attempts);
+        this.initialBackoffMillis = Math.max(0, initialBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.initialBackoffMillis, maxBackoffMillis);
+        this.jitter = Math.min(1, Math.max(0, jitter));
+        this.random = random;
+    }
+
+    /**
+     * Tasks saved before retries existed get the defaults, an explicit 1 switches retrying off.
+     */
+    public static RetryPolicy fromConfig(String attempts, String backoffSeconds)
+    {
+        return new RetryPolicy(NumberUtils.toInt(attempts, DEFAULT_ATTEMPTS),
+                TimeUnit.SECONDS.toMillis(NumberUtils.toInt(backoffSeconds, DEFAULT_BACKOFF_SECONDS)),
+                MAX_BACKOFF_MILLIS, DEFAULT_JITTER);
+    }
+
+    public int getAttempts()
+    {
+        return attempts;
+    }
+
+    /**
+     * @param attempt how many attempts have been made so far
+     */
+    public boolean canRetry(int attempt)
+    {
+        return attempt < attempts;
+    }
+
+    /**
+     * @param attempt how many attempts have failed so far, at least 1
+     * @return how long to wait before the next attempt
+     */
+    public long backoffMillis(int attempt)
+    {
+        long backoff = initialBackoffMillis;
+        for (int i = 1; i < attempt && backoff < maxBackoffMillis; i++)
+        {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, maxBackoffMillis);
+        final double random;
+        synchronized (this.random)
+        {
+            random = this.random.nextDouble();
+        }
+        return backoff - (long) (backoff * jitter * random);
+    }
+}
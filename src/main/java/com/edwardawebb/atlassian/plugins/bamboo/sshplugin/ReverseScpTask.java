@@ -1,21 +1,29 @@
 package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.security.PublicKey;
+import java.net.SocketException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.transport.verification.HostKeyVerifier;
-import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
-import net.schmizz.sshj.userauth.password.PasswordUtils;
-import net.schmizz.sshj.xfer.FileSystemFile;
-import net.schmizz.sshj.xfer.LocalDestFile;
-import net.schmizz.sshj.xfer.scp.SCPDownloadClient;
-import net.schmizz.sshj.xfer.scp.SCPFileTransfer;
+import net.schmizz.sshj.common.SSHException;
+import net.schmizz.sshj.sftp.SFTPException;
+import net.schmizz.sshj.xfer.scp.SCPException;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.NumberUtils;
@@ -30,19 +38,24 @@ import com.atlassian.bamboo.task.TaskContext;
 import com.atlassian.bamboo.task.TaskException;
 import com.atlassian.bamboo.task.TaskResult;
 import com.atlassian.bamboo.task.TaskResultBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Uses remote file path and names to download those files that would match useing shell pattern matching.
- * Because all source files are remote we can;t leverage bamboo's FileVisitor for ant-style glob matching of files.
+ * Because all source files are remote we can;t leverage bamboo's FileVisitor for ant-style glob matching of files,
+ * so entries containing wildcards are matched by {@link GlobPattern} against a single remote listing of the
+ * directories the patterns can reach. Entries starting with <code>!</code> exclude matching files again.
  * 
  */
 public class ReverseScpTask implements CommonTaskType
 {
     private final EncryptionService encryptionService;
     private static final Logger LOG = LoggerFactory.getLogger(ReverseScpTask.class);
+    public static final int DEFAULT_TRANSFER_THREADS = 4;
 
     public ReverseScpTask(EncryptionService encryptionService)
     {
@@ -67,45 +80,63 @@ public class ReverseScpTask implements CommonTaskType
             portNumber = NumberUtils.toInt(port, BaseSshTaskConfigurator.DEFAULT_SSH_PORT_NUMBER);
         }
         final String username = config.get("username");
-        final String password = encryptionService.decrypt(config.get("password"));
-        final String privateKey = encryptionService.decrypt(config.get("private_key"));
-        final String passphrase = encryptionService.decrypt(config.get("passphrase"));
-
-        final SSHClient ssh = new SSHClient();
-
-        //Always validate
-        ssh.addHostKeyVerifier(new HostKeyVerifier()
+        final SshCredentials credentials = CredentialCache.getInstance().get(AuthType.valueOf(config.get(AuthType.CONFIG_KEY)),
+                config.get("password"), config.get("private_key"), config.get("passphrase"), new CredentialCache.Decrypter()
+                {
+                    @Override
+                    public String decrypt(final String encrypted)
+                    {
+                        return encryptionService.decrypt(encrypted);
+                    }
+                });
+        final CompressionMode compressionMode = CompressionMode.fromConfig(config.get(CompressionMode.CONFIG_KEY));
+        TransportSettings transport = TransportSettings.fromConfig(config);
+        CompressionAdvisor.Sample compressionSample = null;
+        if (compressionMode == CompressionMode.ADAPTIVE)
         {
-            @Override
-            public boolean verify(final String s, final int i, final PublicKey publicKey)
-            {
-                return true;
-            }
-        });
+            transport = transport.withCompression(CompressionAdvisor.getInstance().isCompressionPreferred(host, portNumber));
+            compressionSample = CompressionAdvisor.getInstance().startSample(host, portNumber, transport.isCompression());
+            buildLogger.addBuildLogEntry("Adaptive compression: connecting " + (transport.isCompression() ? "with" : "without")
+                    + " compression, the first " + CompressionAdvisor.SAMPLE_BYTES / (1024 * 1024) + " MB decide for later connections");
+        }
+        final SshConnectionKey connectionKey = new SshConnectionKey(host, portNumber, username, credentials.getFingerprint(), transport,
+                JumpHost.fromConfig(config, username));
+        final TaskMetrics metrics = new TaskMetrics();
 
+        final SharedConnection connection;
         try
         {
-            ssh.connect(host, portNumber);
-            if (AuthType.valueOf(config.get(AuthType.CONFIG_KEY)) == AuthType.PASSWORD)
-            {
-                ssh.authPassword(username, password);
-            } 
-            else
-            {
-                SSHClient client = new SSHClient();
-                KeyProvider provider = client.loadKeys(privateKey,null, PasswordUtils.createOneOff(passphrase.toCharArray()));
-                ssh.authPublickey(username, provider);
-            }
+            connection = new SharedConnection(SshConnectionPool.getInstance(), connectionKey, credentials, metrics);
         }
         catch (IOException e)
         {
             buildLogger.addErrorLogEntry("Failed to connect to host", e);
+            publish(metrics, taskResultBuilder, buildLogger);
             return taskResultBuilder.failedWithError().build();
         }
 
-        final Set<String> failedToDownload = Sets.newHashSet();
-        transferFiles(ssh, taskContext, taskResultBuilder, failedToDownload, buildLogger);
+        final Set<String> failedToDownload = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final long transferStarted = metrics.start();
+        try
+        {
+            transferFiles(connection, taskContext, taskResultBuilder, failedToDownload, compressionSample, metrics, buildLogger);
+        }
+        finally
+        {
+            metrics.stop(TaskMetrics.Phase.TRANSFER, transferStarted);
+            if (compressionSample != null)
+            {
+                final String decision = compressionSample.finish();
+                if (decision != null)
+                {
+                    buildLogger.addBuildLogEntry(decision);
+                }
+            }
+            // a failed transfer may have left the connection in an unknown state
+            connection.close(failedToDownload.isEmpty());
+        }
 
+        publish(metrics, taskResultBuilder, buildLogger);
         if (!failedToDownload.isEmpty())
         {
             buildLogger.addErrorLogEntry("Copy Failed. Some files were not downloaded successfully.");
@@ -115,14 +146,21 @@ public class ReverseScpTask implements CommonTaskType
         return taskResultBuilder.success().build();
     }
 
-    private void transferFiles(final SSHClient ssh, final CommonTaskContext taskContext, final TaskResultBuilder taskResultBuilder, final Set<String> failedToDownload, final BuildLogger buildLogger)
+    private static void publish(TaskMetrics metrics, TaskResultBuilder taskResultBuilder, BuildLogger buildLogger)
+    {
+        buildLogger.addBuildLogEntry(metrics.summary());
+        taskResultBuilder.setCustomResultData(metrics.toResultData());
+    }
+
+    private void transferFiles(final SharedConnection connection, final CommonTaskContext taskContext, final TaskResultBuilder taskResultBuilder, final Set<String> failedToDownload,
+            final CompressionAdvisor.Sample compressionSample, final TaskMetrics metrics, final BuildLogger buildLogger)
     {
         final String localPath = taskContext.getConfigurationMap().get("localPath");
         final String remotePath = taskContext.getConfigurationMap().get("remotePath");
         final String remoteNames = taskContext.getConfigurationMap().get("remotePattern");
 
         
-        final Set<String> remoteFilesCopied = Sets.newHashSet();
+        final Set<String> remoteFilesCopied = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         final Set<String> localDirectoriesCreated = Sets.newHashSet();
 
         final String baseDirectory = taskContext.getWorkingDirectory().getAbsolutePath();
@@ -137,65 +175,457 @@ public class ReverseScpTask implements CommonTaskType
             }
         });
         
+        final List<GlobPattern> includes = Lists.newArrayList();
+        final List<GlobPattern> excludes = Lists.newArrayList();
         if(StringUtils.isEmpty(remoteNames)){
         	names.add(remotePath.trim());
         }else{
 	        StringTokenizer tokenizer = new StringTokenizer(remoteNames,",");
 	        while(tokenizer.hasMoreTokens()){
-	        	names.add(remotePath + "/" + tokenizer.nextToken().trim());
+	        	final String name = tokenizer.nextToken().trim();
+	        	if (name.startsWith("!")) {
+	        		excludes.add(GlobPattern.compile(name.substring(1)));
+	        	} else if (GlobPattern.isPattern(name)) {
+	        		includes.add(GlobPattern.compile(name));
+	        	} else {
+	        		names.add(remotePath + "/" + name);
+	        	}
+	        }
+	        if (names.isEmpty() && includes.isEmpty()) {
+	        	includes.add(GlobPattern.compile("**"));
 	        }
         }
 
+        final String localDirectory = baseDirectory + "/" + localPath;
+        final boolean incremental = Boolean.parseBoolean(taskContext.getConfigurationMap().get("incrementalSync"));
+        final boolean incrementalHash = Boolean.parseBoolean(taskContext.getConfigurationMap().get("incrementalHash"));
+        final Map<String, String> downloads = Maps.newLinkedHashMap();
+        for (String name : names)
+        {
+            downloads.put(name, localDirectory);
+        }
+        if (incremental && !names.isEmpty())
+        {
+            try
+            {
+                final Map<String, String> changed = changedFiles(connection.getClient(), names, localDirectory, incrementalHash, buildLogger);
+                downloads.clear();
+                downloads.putAll(changed);
+            }
+            catch (IOException e)
+            {
+                buildLogger.addErrorLogEntry("Could not list remote files for an incremental sync, downloading everything: " + e.getMessage());
+            }
+        }
+        if (!includes.isEmpty())
+        {
+            try
+            {
+                downloads.putAll(matchingFiles(connection.getClient(), remotePath.trim(), includes, excludes, localDirectory, incremental, incrementalHash, buildLogger));
+            }
+            catch (IOException e)
+            {
+                buildLogger.addErrorLogEntry("Could not list remote files matching " + includes + ": " + e.getMessage());
+                failedToDownload.add(remotePath);
+                return;
+            }
+        }
+        if (downloads.isEmpty())
+        {
+            return;
+        }
+
+        final int threads = Math.max(1, Math.min(downloads.size(), NumberUtils.toInt(taskContext.getConfigurationMap().get("transferThreads"), DEFAULT_TRANSFER_THREADS)));
+        final boolean continueOnError = Boolean.parseBoolean(taskContext.getConfigurationMap().get("continueOnError"));
+        final AtomicBoolean abort = new AtomicBoolean(false);
+        final DownloadChecksums checksums = Boolean.parseBoolean(taskContext.getConfigurationMap().get("verifyChecksums")) ? new DownloadChecksums() : null;
+        final LocalFileWriter writer = new LocalFileWriter(
+                NumberUtils.toInt(taskContext.getConfigurationMap().get("writeBuffer"), LocalFileWriter.DEFAULT_BUFFER_KB) * 1024,
+                Boolean.parseBoolean(taskContext.getConfigurationMap().get("preallocate")), checksums, metrics);
+        RemoteDownloader downloader = createDownloader(taskContext.getConfigurationMap(), writer, buildLogger);
+        final RetryPolicy retryPolicy = RetryPolicy.fromConfig(taskContext.getConfigurationMap().get("retryAttempts"),
+                taskContext.getConfigurationMap().get("retryBackoff"));
+        // retries continue over SFTP from where the failed attempt stopped, a tar stream can only start over,
+        // and so does any engine on a host without SFTP
+        ResumableDownloader resumer = TransferEngine.fromConfig(taskContext.getConfigurationMap().get(TransferEngine.CONFIG_KEY)) == TransferEngine.TAR ? null
+                : new SftpDownloader(NumberUtils.toInt(taskContext.getConfigurationMap().get("sftpReadAhead"), SftpDownloader.DEFAULT_READ_AHEAD),
+                        new BuildLogScriptLogger(buildLogger), writer);
+        if (Boolean.parseBoolean(taskContext.getConfigurationMap().get("segmentedDownload")))
+        {
+            final SegmentedDownloader segmented = new SegmentedDownloader(connection, downloader, resumer,
+                    NumberUtils.toLong(taskContext.getConfigurationMap().get("segmentThreshold"), SegmentedDownloader.DEFAULT_THRESHOLD_MB) * 1024 * 1024,
+                    NumberUtils.toInt(taskContext.getConfigurationMap().get("segments"), SegmentedDownloader.DEFAULT_SEGMENTS),
+                    metrics, new BuildLogScriptLogger(buildLogger));
+            downloader = segmented;
+            resumer = segmented;
+        }
+        final RemoteDownloader fileDownloader = downloader;
+        final ResumableDownloader fileResumer = resumer;
+
+        final ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "reverse-scp-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final List<Future<?>> running = Lists.newArrayList();
+        for (final Map.Entry<String, String> download : downloads.entrySet())
+        {
+            final String remoteFileName = download.getKey();
+            // every worker opens its own channel, multiplexed over the one connection
+            running.add(workers.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (abort.get())
+                    {
+                        buildLogger.addBuildLogEntry("Skipping '" + remoteFileName + "' after an earlier failure");
+                        return;
+                    }
+                    final long started = System.nanoTime();
+                    if (!transferFile(connection, fileDownloader, fileResumer, retryPolicy, checksums, download.getValue(), remoteFileName, localDirectoriesCreated, remoteFilesCopied, failedToDownload, metrics, buildLogger))
+                    {
+                        if (!continueOnError)
+                        {
+                            abort.set(true);
+                        }
+                    }
+                    else if (compressionSample != null)
+                    {
+                        final String decision = compressionSample.record(new File(download.getValue(), SftpDownloader.baseName(remoteFileName)),
+                                started, System.nanoTime());
+                        if (decision != null)
+                        {
+                            buildLogger.addBuildLogEntry(decision);
+                        }
+                    }
+                }
+            }));
+        }
+        workers.shutdown();
+
         try
         {
-        	for(String remoteFileName : names){
-        		transferFile(ssh,  baseDirectory, localPath, remoteFileName, localDirectoriesCreated, remoteFilesCopied, failedToDownload, buildLogger);
-        	}
-            
+            for (Future<?> download : running)
+            {
+                download.get();
+            }
         }
         catch (InterruptedException e)
         {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+            failedToDownload.add(remotePath);
             taskResultBuilder.failedWithError().build();
         }
+        catch (ExecutionException e)
+        {
+            workers.shutdownNow();
+            buildLogger.addErrorLogEntry("Unexpected failure while downloading", e.getCause());
+            failedToDownload.add(remotePath);
+        }
+
+        if (!failedToDownload.isEmpty())
+        {
+            buildLogger.addErrorLogEntry(failedToDownload.size() + " file(s) failed to download: " + StringUtils.join(Sets.newTreeSet(failedToDownload), ", "));
+        }
+    }
+
+    /**
+     * Downloads one entry, retrying failures caused by the connection (reconnecting first if it dropped)
+     * as often as the retry policy allows. Retries resume where the failed attempt stopped.
+     * With checksums the remote <code>sha256sum</code> runs on a second channel while the file downloads.
+     *
+     * @return true if the file was downloaded (and matches the remote checksums) or had already been copied
+     */
+    private boolean transferFile(SharedConnection connection, RemoteDownloader downloader, ResumableDownloader resumer, RetryPolicy retryPolicy,
+            DownloadChecksums checksums, String destFileName, String sourceFileName, Set<String> localDirectoriesCreated, Set<String> remoteFilesCopied, Set<String> failedToDownload, TaskMetrics metrics, BuildLogger buildLogger)
+    {
+        if (!remoteFilesCopied.add(sourceFileName))
+        {
+            buildLogger.addBuildLogEntry("File '" + sourceFileName + "' already copied, skipping...");
+            return true;
+        }
+
+        createLocalDirectoryIfNotExists(destFileName, localDirectoriesCreated, buildLogger);
+
+        buildLogger.addBuildLogEntry("Downloading '" + sourceFileName + "'...");
+        SSHClient ssh = connection.getClient();
+        final Future<Map<String, String>> remoteChecksums = checksums == null ? null : checksums.startRemote(ssh, sourceFileName);
+        for (int attempt = 1; ; attempt++)
+        {
+            final long backoff;
+            try
+            {
+                if (attempt == 1 || resumer == null)
+                {
+                    downloader.download(ssh, sourceFileName, new File(destFileName));
+                }
+                else
+                {
+                    resume(downloader, resumer, ssh, sourceFileName, destFileName, buildLogger);
+                }
+                if (checksums != null && !verify(checksums, remoteChecksums, ssh, sourceFileName, destFileName, buildLogger))
+                {
+                    remoteFilesCopied.remove(sourceFileName);
+                    failedToDownload.add(sourceFileName);
+                    return false;
+                }
+                buildLogger.addBuildLogEntry("'" + sourceFileName + "' was downloaded successfully" + (checksums != null ? " and matches its remote SHA-256." : "."));
+                return true;
+            }
+            catch (IOException e)
+            {
+                if (!retryPolicy.canRetry(attempt) || !isRetryable(ssh, e))
+                {
+                    buildLogger.addErrorLogEntry("Failed to download file '" + sourceFileName + "'", e);
+                    remoteFilesCopied.remove(sourceFileName);
+                    failedToDownload.add(sourceFileName);
+                    return false;
+                }
+                backoff = retryPolicy.backoffMillis(attempt);
+                buildLogger.addBuildLogEntry("Download of '" + sourceFileName + "' failed (" + e.getMessage() + "), attempt "
+                        + (attempt + 1) + " of " + retryPolicy.getAttempts() + " in " + backoff + " ms");
+            }
+            try
+            {
+                Thread.sleep(backoff);
+                ssh = connection.reconnect(ssh);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                remoteFilesCopied.remove(sourceFileName);
+                failedToDownload.add(sourceFileName);
+                return false;
+            }
+            catch (IOException e)
+            {
+                // counts as the next failed attempt, the one after that reconnects again
+                buildLogger.addErrorLogEntry("Could not reconnect: " + e.getMessage());
+            }
+        }
     }
 
-    private void transferFile(SSHClient ssh,  String baseDirectory, String localPath, String sourceFileName, Set<String> localDirectoriesCreated, Set<String> remoteFilesCopied, Set<String> failedToDownload, BuildLogger buildLogger) throws InterruptedException
+    /**
+     * Resumes over SFTP, or starts over with the configured engine on a host that offers SCP or tar but no SFTP.
+     */
+    private static void resume(RemoteDownloader downloader, ResumableDownloader resumer, SSHClient ssh, String sourceFileName,
+            String destFileName, BuildLogger buildLogger) throws IOException
     {
         try
         {
-           
-            if (remoteFilesCopied.contains(sourceFileName))
+            resumer.resume(ssh, sourceFileName, new File(destFileName));
+        }
+        catch (SftpDownloader.SftpUnavailableException e)
+        {
+            buildLogger.addBuildLogEntry("Cannot resume '" + sourceFileName + "' (" + e.getMessage() + "), downloading it again");
+            downloader.download(ssh, sourceFileName, new File(destFileName));
+        }
+    }
+
+    private static boolean verify(DownloadChecksums checksums, Future<Map<String, String>> remoteChecksums, SSHClient ssh,
+            String sourceFileName, String destFileName, BuildLogger buildLogger)
+    {
+        final List<String> mismatches;
+        try
+        {
+            mismatches = checksums.mismatches(remoteChecksums, ssh, sourceFileName, new File(destFileName));
+        }
+        catch (IOException e)
+        {
+            buildLogger.addErrorLogEntry("Could not verify '" + sourceFileName + "' against its remote checksums", e);
+            return false;
+        }
+        for (String mismatch : mismatches)
+        {
+            buildLogger.addErrorLogEntry("Checksum mismatch: " + mismatch);
+        }
+        return mismatches.isEmpty();
+    }
+
+    /**
+     * A dropped connection or a broken stream is worth another attempt, the remote side refusing the file is not.
+     */
+    static boolean isRetryable(SSHClient ssh, IOException e)
+    {
+        if (Thread.currentThread().isInterrupted())
+        {
+            return false;
+        }
+        if (!ssh.isConnected())
+        {
+            return true;
+        }
+        if (e instanceof SFTPException || e instanceof SCPException)
+        {
+            return false;
+        }
+        return e instanceof SSHException || e instanceof SocketException || e instanceof EOFException;
+    }
+
+    /**
+     * Compares a remote manifest of everything below the requested entries with what is already in the local directory,
+     * and returns only the files that are new or changed, each mapped to the local directory it belongs in.
+     */
+    private Map<String, String> changedFiles(final SSHClient ssh, final Set<String> names, final String localDirectory, final boolean withHashes, final BuildLogger buildLogger) throws IOException
+    {
+        final List<String> roots = Lists.newArrayList();
+        for (String name : names)
+        {
+            roots.add(name.length() > 1 && name.endsWith("/") ? name.substring(0, name.length() - 1) : name);
+        }
+        final RemoteManifest manifest = RemoteManifest.fetch(ssh, roots, withHashes);
+        logSkipped(manifest, buildLogger);
+
+        final Map<String, String> changed = Maps.newLinkedHashMap();
+        long unchangedFiles = 0;
+        long unchangedBytes = 0;
+        for (RemoteManifest.Entry entry : manifest.getEntries())
+        {
+            final File local = localFileFor(entry.getPath(), roots, localDirectory);
+            if (RemoteManifest.isUnchanged(entry, local))
             {
-                buildLogger.addBuildLogEntry("File '" + sourceFileName + "' already copied, skipping...");
-                return;
+                unchangedFiles++;
+                unchangedBytes += entry.getSize();
+            }
+            else
+            {
+                changed.put(entry.getPath(), local.getParent());
             }
+        }
+        buildLogger.addBuildLogEntry("Incremental sync: " + unchangedFiles + " unchanged files (" + unchangedBytes
+                + " bytes) skipped, " + changed.size() + " new or changed files to download");
+        return changed;
+    }
 
-           
-            String destFileName = baseDirectory + "/" + localPath ;
-            LocalDestFile destinationFile = new FileSystemFile(destFileName);
+    /**
+     * Expands the wildcard entries with one remote listing, walking only the directories the patterns can reach,
+     * and maps every matching file to the local directory that keeps its path relative to the remote directory.
+     */
+    private Map<String, String> matchingFiles(final SSHClient ssh, final String remotePath, final List<GlobPattern> includes, final List<GlobPattern> excludes,
+            final String localDirectory, final boolean incremental, final boolean withHashes, final BuildLogger buildLogger) throws IOException
+    {
+        final String base = remotePath.length() > 1 && remotePath.endsWith("/") ? remotePath.substring(0, remotePath.length() - 1) : remotePath;
+        final Set<String> roots = Sets.newTreeSet();
+        for (GlobPattern include : includes)
+        {
+            roots.add(include.getStaticPrefix().isEmpty() ? base : base + "/" + include.getStaticPrefix());
+        }
+        // a root below another root would only list the same files twice
+        final Set<String> searched = Sets.newLinkedHashSet();
+        for (String root : roots)
+        {
+            boolean nested = false;
+            for (String other : roots)
+            {
+                nested |= !other.equals(root) && root.startsWith(other + "/");
+            }
+            if (!nested)
+            {
+                searched.add(root);
+            }
+        }
+        final RemoteManifest manifest = RemoteManifest.fetch(ssh, searched, incremental && withHashes, true);
+        // an unreadable directory below a pattern's root only loses its own files, say which
+        logSkipped(manifest, buildLogger);
 
-            createLocalDirectoryIfNotExists(destFileName, localDirectoriesCreated, buildLogger);
-            
+        final Map<String, String> matched = Maps.newLinkedHashMap();
+        long unchangedFiles = 0;
+        for (RemoteManifest.Entry entry : manifest.getEntries())
+        {
+            if (!entry.getPath().startsWith(base + "/"))
+            {
+                continue;
+            }
+            final String relative = entry.getPath().substring(base.length() + 1);
+            if (!matchesAny(includes, relative) || matchesAny(excludes, relative))
+            {
+                continue;
+            }
+            final File local = new File(localDirectory, relative);
+            if (incremental && RemoteManifest.isUnchanged(entry, local))
+            {
+                unchangedFiles++;
+                continue;
+            }
+            matched.put(entry.getPath(), local.getParent());
+        }
+        buildLogger.addBuildLogEntry("Patterns " + includes + (excludes.isEmpty() ? "" : " excluding " + excludes) + " matched "
+                + (matched.size() + unchangedFiles) + " files below " + searched
+                + (incremental ? ", " + unchangedFiles + " of them unchanged" : ""));
+        return matched;
+    }
 
-            buildLogger.addBuildLogEntry("Downloading '" + sourceFileName + "'...");
-            SCPFileTransfer transfer = ssh.newSCPFileTransfer();
-            //transfer.download(sourceFileName,destFileName);           
-            SCPDownloadClient client = transfer.newSCPDownloadClient();
-            client.setRecursiveMode(true);
-            
-            client.copy(sourceFileName, destinationFile);
-            buildLogger.addBuildLogEntry("'" + sourceFileName + "' was downloaded successfully.");
-            remoteFilesCopied.add(sourceFileName);
+    /**
+     * Files the remote listing could not read are left out of the transfer, says which ones.
+     */
+    private static void logSkipped(final RemoteManifest manifest, final BuildLogger buildLogger)
+    {
+        for (String warning : manifest.getWarnings())
+        {
+            buildLogger.addErrorLogEntry("Skipped on the remote host: " + warning);
         }
-        catch (IOException e)
+    }
+
+    private static boolean matchesAny(final List<GlobPattern> patterns, final String relativePath)
+    {
+        for (GlobPattern pattern : patterns)
+        {
+            if (pattern.matches(relativePath))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Where a file found below one of the requested entries ends up locally, matching a recursive download of that entry.
+     */
+    static File localFileFor(final String remoteFile, final List<String> roots, final String localDirectory)
+    {
+        String root = null;
+        for (String candidate : roots)
+        {
+            if ((remoteFile.equals(candidate) || remoteFile.startsWith(candidate + "/"))
+                    && (root == null || candidate.length() > root.length()))
+            {
+                root = candidate;
+            }
+        }
+        if (root == null)
+        {
+            return new File(localDirectory, SftpDownloader.baseName(remoteFile));
+        }
+        final File rootLocal = new File(localDirectory, SftpDownloader.baseName(root));
+        return remoteFile.equals(root) ? rootLocal : new File(rootLocal, remoteFile.substring(root.length() + 1));
+    }
+
+    private RemoteDownloader createDownloader(final ConfigurationMap config, final LocalFileWriter writer, final BuildLogger buildLogger)
+    {
+        final TransferEngine engine = TransferEngine.fromConfig(config.get(TransferEngine.CONFIG_KEY));
+        buildLogger.addBuildLogEntry("Transferring with " + engine.getDisplayName());
+        if (engine == TransferEngine.SFTP)
+        {
+            return new SftpDownloader(NumberUtils.toInt(config.get("sftpReadAhead"), SftpDownloader.DEFAULT_READ_AHEAD),
+                    new BuildLogScriptLogger(buildLogger), writer);
+        }
+        if (engine == TransferEngine.TAR)
         {
-            buildLogger.addErrorLogEntry("Failed to download file '" + sourceFileName + "'", e);
-            failedToDownload.add(sourceFileName);
-            throw new InterruptedException("Download failed");
+            return new TarDownloader(Boolean.parseBoolean(config.get("tarGzip")), new BuildLogScriptLogger(buildLogger), writer);
         }
+        return new ScpDownloader(writer);
     }
 
-    private void createLocalDirectoryIfNotExists( final String fullLocalFilePath,  final Set<String> localDirectoriesCreated, final BuildLogger buildLogger) throws InterruptedException
+    private synchronized void createLocalDirectoryIfNotExists( final String fullLocalFilePath,  final Set<String> localDirectoriesCreated, final BuildLogger buildLogger)
     {
     	File localPath = new File(fullLocalFilePath);
     	String absPath = localPath.getAbsolutePath();
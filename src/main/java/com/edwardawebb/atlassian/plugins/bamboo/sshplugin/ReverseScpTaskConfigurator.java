@@ -5,13 +5,17 @@ import com.atlassian.bamboo.security.EncryptionService;
 import com.atlassian.bamboo.task.TaskDefinition;
 import com.atlassian.bamboo.utils.error.ErrorCollection;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.EnumSet;
 import java.util.Map;
 
 public class ReverseScpTaskConfigurator extends BaseSshTaskConfigurator
 {
+    private static final EnumSet<TransferEngine> TRANSFER_ENGINES = EnumSet.allOf(TransferEngine.class);
+
     public ReverseScpTaskConfigurator(EncryptionService encryptionService)
     {
         super(encryptionService);
@@ -25,6 +29,21 @@ public class ReverseScpTaskConfigurator extends BaseSshTaskConfigurator
         config.put("localPath", params.getString("localPath"));
         config.put("remotePath", params.getString("remotePath"));
         config.put("remotePattern", params.getString("remotePattern"));
+        config.put("transferThreads", params.getString("transferThreads"));
+        config.put("continueOnError", Boolean.toString(params.getBoolean("continueOnError")));
+        config.put("retryAttempts", params.getString("retryAttempts"));
+        config.put("retryBackoff", params.getString("retryBackoff"));
+        config.put(TransferEngine.CONFIG_KEY, params.getString(TransferEngine.CONFIG_KEY));
+        config.put("sftpReadAhead", params.getString("sftpReadAhead"));
+        config.put("tarGzip", Boolean.toString(params.getBoolean("tarGzip")));
+        config.put("incrementalSync", Boolean.toString(params.getBoolean("incrementalSync")));
+        config.put("incrementalHash", Boolean.toString(params.getBoolean("incrementalHash")));
+        config.put("verifyChecksums", Boolean.toString(params.getBoolean("verifyChecksums")));
+        config.put("writeBuffer", params.getString("writeBuffer"));
+        config.put("preallocate", Boolean.toString(params.getBoolean("preallocate")));
+        config.put("segmentedDownload", Boolean.toString(params.getBoolean("segmentedDownload")));
+        config.put("segmentThreshold", params.getString("segmentThreshold"));
+        config.put("segments", params.getString("segments"));
         return config;
     }
 
@@ -35,6 +54,37 @@ public class ReverseScpTaskConfigurator extends BaseSshTaskConfigurator
         context.put("localPath", taskDefinition.getConfiguration().get("localPath"));
         context.put("remotePath", taskDefinition.getConfiguration().get("remotePath"));
         context.put("remotePattern", taskDefinition.getConfiguration().get("remotePattern"));
+        context.put("transferThreads", taskDefinition.getConfiguration().get("transferThreads"));
+        context.put("continueOnError", taskDefinition.getConfiguration().get("continueOnError"));
+        context.put("retryAttempts", taskDefinition.getConfiguration().get("retryAttempts"));
+        context.put("retryBackoff", taskDefinition.getConfiguration().get("retryBackoff"));
+        context.put(TransferEngine.CONFIG_KEY, TransferEngine.fromConfig(taskDefinition.getConfiguration().get(TransferEngine.CONFIG_KEY)).getKey());
+        context.put("sftpReadAhead", taskDefinition.getConfiguration().get("sftpReadAhead"));
+        context.put("tarGzip", taskDefinition.getConfiguration().get("tarGzip"));
+        context.put("incrementalSync", taskDefinition.getConfiguration().get("incrementalSync"));
+        context.put("incrementalHash", taskDefinition.getConfiguration().get("incrementalHash"));
+        context.put("verifyChecksums", taskDefinition.getConfiguration().get("verifyChecksums"));
+        context.put("writeBuffer", taskDefinition.getConfiguration().get("writeBuffer"));
+        context.put("preallocate", taskDefinition.getConfiguration().get("preallocate"));
+        context.put("segmentedDownload", taskDefinition.getConfiguration().get("segmentedDownload"));
+        context.put("segmentThreshold", taskDefinition.getConfiguration().get("segmentThreshold"));
+        context.put("segments", taskDefinition.getConfiguration().get("segments"));
+        context.put("transferEngines", TRANSFER_ENGINES);
+    }
+
+    @Override
+    public void populateContextForCreate(@NotNull final Map<String, Object> context)
+    {
+        super.populateContextForCreate(context);
+        context.put("transferThreads", ReverseScpTask.DEFAULT_TRANSFER_THREADS);
+        context.put("retryAttempts", RetryPolicy.DEFAULT_ATTEMPTS);
+        context.put("retryBackoff", RetryPolicy.DEFAULT_BACKOFF_SECONDS);
+        context.put(TransferEngine.CONFIG_KEY, TransferEngine.SCP.getKey());
+        context.put("sftpReadAhead", SftpDownloader.DEFAULT_READ_AHEAD);
+        context.put("writeBuffer", LocalFileWriter.DEFAULT_BUFFER_KB);
+        context.put("segmentThreshold", SegmentedDownloader.DEFAULT_THRESHOLD_MB);
+        context.put("segments", SegmentedDownloader.DEFAULT_SEGMENTS);
+        context.put("transferEngines", TRANSFER_ENGINES);
     }
 
     @Override
@@ -44,6 +94,7 @@ public class ReverseScpTaskConfigurator extends BaseSshTaskConfigurator
         context.put("localPath", taskDefinition.getConfiguration().get("localPath"));
         context.put("remotePath", taskDefinition.getConfiguration().get("remotePath"));
         context.put("remotePattern", taskDefinition.getConfiguration().get("remotePattern"));
+        context.put(TransferEngine.CONFIG_KEY, TransferEngine.fromConfig(taskDefinition.getConfiguration().get(TransferEngine.CONFIG_KEY)).getDisplayName());
     }
 
     @Override
@@ -62,6 +113,43 @@ public class ReverseScpTaskConfigurator extends BaseSshTaskConfigurator
         {
             errorCollection.addError("remotePath", "You must specify the remote path on the server to download");
         }
+        String transferThreads = params.getString("transferThreads");
+        if (StringUtils.isNotEmpty(transferThreads) && NumberUtils.toInt(transferThreads, 0) < 1)
+        {
+            errorCollection.addError("transferThreads", "Concurrent downloads must be a positive number");
+        }
+
+        String retryAttempts = params.getString("retryAttempts");
+        if (StringUtils.isNotEmpty(retryAttempts) && NumberUtils.toInt(retryAttempts, 0) < 1)
+        {
+            errorCollection.addError("retryAttempts", "Attempts must be a positive number, 1 disables retries");
+        }
+        String retryBackoff = params.getString("retryBackoff");
+        if (StringUtils.isNotEmpty(retryBackoff) && NumberUtils.toInt(retryBackoff, -1) < 0)
+        {
+            errorCollection.addError("retryBackoff", "Wait must be zero or a positive number of seconds");
+        }
+
+        String readAhead = params.getString("sftpReadAhead");
+        if (StringUtils.isNotEmpty(readAhead) && NumberUtils.toInt(readAhead, 0) < 1)
+        {
+            errorCollection.addError("sftpReadAhead", "Outstanding reads must be a positive number");
+        }
+        String writeBuffer = params.getString("writeBuffer");
+        if (StringUtils.isNotEmpty(writeBuffer) && NumberUtils.toInt(writeBuffer, 0) < 8)
+        {
+            errorCollection.addError("writeBuffer", "Write buffer must be at least 8 KB");
+        }
+        String segmentThreshold = params.getString("segmentThreshold");
+        if (StringUtils.isNotEmpty(segmentThreshold) && NumberUtils.toInt(segmentThreshold, 0) < SegmentedDownloader.MIN_SEGMENT_SIZE / (1024 * 1024))
+        {
+            errorCollection.addError("segmentThreshold", "Files split into ranges must be at least " + SegmentedDownloader.MIN_SEGMENT_SIZE / (1024 * 1024) + " MB");
+        }
+        String segments = params.getString("segments");
+        if (StringUtils.isNotEmpty(segments) && (NumberUtils.toInt(segments, 0) < 2 || NumberUtils.toInt(segments, 0) > SegmentedDownloader.MAX_SEGMENTS))
+        {
+            errorCollection.addError("segments", "Ranges must be between 2 and " + SegmentedDownloader.MAX_SEGMENTS);
+        }
         /* String remotePattern = params.getString("remotePattern");
         if (StringUtils.isEmpty(remotePattern))
         {
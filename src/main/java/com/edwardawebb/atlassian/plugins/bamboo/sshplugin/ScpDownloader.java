@@ -0,0 +1,66 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.xfer.FileSystemFile;
+import net.schmizz.sshj.xfer.LocalDestFile;
+import net.schmizz.sshj.xfer.scp.SCPDownloadClient;
+import net.schmizz.sshj.xfer.scp.SCPFileTransfer;
+
+/**
+ * Recursive SCP download, one channel per call.
+ */
+public class ScpDownloader implements RemoteDownloader
+{
+    private final LocalFileWriter writer;
+
+    public ScpDownloader()
+    {
+        this(LocalFileWriter.DEFAULT);
+    }
+
+    public ScpDownloader(LocalFileWriter writer)
+    {
+        this.writer = writer;
+    }
+
+    @Override
+    public void download(SSHClient ssh, String remotePath, File localDirectory) throws IOException
+    {
+        LocalDestFile destinationFile = new ChannelFile(localDirectory, writer);
+        SCPFileTransfer transfer = ssh.newSCPFileTransfer();
+        SCPDownloadClient client = transfer.newSCPDownloadClient();
+        client.setRecursiveMode(true);
+        client.copy(remotePath, destinationFile);
+    }
+
+    /**
+     * Hands out the same kind of file for every target below it, so every file SCP writes goes through the writer.
+     * SCP announces sizes to the client but not to the destination file, so nothing is preallocated here.
+     */
+    private static final class ChannelFile extends FileSystemFile
+    {
+        private final LocalFileWriter writer;
+
+        ChannelFile(File file, LocalFileWriter writer)
+        {
+            super(file);
+            this.writer = writer;
+        }
+
+        @Override
+        public FileSystemFile getChild(String name)
+        {
+            return new ChannelFile(super.getChild(name).getFile(), writer);
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException
+        {
+            return writer.create(getFile(), -1);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.schmizz.sshj.SSHClient;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.atlassian.bamboo.build.logger.BuildLogger;
+import com.atlassian.bamboo.configuration.ConfigurationMap;
+import com.atlassian.bamboo.security.EncryptionService;
+import com.atlassian.bamboo.task.CommonTaskContext;
+import com.atlassian.bamboo.task.CommonTaskType;
+import com.atlassian.bamboo.task.TaskException;
+import com.atlassian.bamboo.task.TaskResult;
+import com.atlassian.bamboo.task.TaskResultBuilder;
+
+/**
+ * Uploads local files, selected by names and ant-style patterns relative to the working directory (see {@link LocalFileSet}),
+ * into a remote directory. Several files are uploaded at the same time, each transfer thread over its own channel.
+ * <p>
+ * Every file is written under a hidden temporary name next to its destination and moved into place with
+ * <code>mv -f</code> once complete, so nothing on the remote host ever sees a partially written file.
+ */
+public class ScpUploadTask implements CommonTaskType
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ScpUploadTask.class);
+    public static final int DEFAULT_TRANSFER_THREADS = 4;
+    private static final int DIRECTORIES_PER_MKDIR = 200;
+
+    private final EncryptionService encryptionService;
+
+    public ScpUploadTask(EncryptionService encryptionService)
+    {
+        this.encryptionService = encryptionService;
+    }
+
+    @NotNull
+    @java.lang.Override
+    public TaskResult execute(@NotNull final CommonTaskContext taskContext) throws TaskException
+    {
+        final TaskResultBuilder taskResultBuilder = TaskResultBuilder.newBuilder(taskContext);
+        final BuildLogger buildLogger = taskContext.getBuildLogger();
+        final ConfigurationMap config = taskContext.getConfigurationMap();
+
+        final LocalFileSet fileSet = LocalFileSet.resolve(taskContext.getWorkingDirectory(), StringUtils.defaultString(config.get("localPath")));
+        for (String missing : fileSet.getMissing())
+        {
+            buildLogger.addErrorLogEntry("Local file '" + missing + "' does not exist");
+        }
+        if (!fileSet.getMissing().isEmpty())
+        {
+            return taskResultBuilder.failedWithError().build();
+        }
+        if (fileSet.getFiles().isEmpty())
+        {
+            buildLogger.addErrorLogEntry("No local files match '" + config.get("localPath") + "'");
+            return taskResultBuilder.failedWithError().build();
+        }
+
+        final String host = config.get("host");
+        final int portNumber = NumberUtils.toInt(config.get("port"), BaseSshTaskConfigurator.DEFAULT_SSH_PORT_NUMBER);
+        final SshCredentials credentials = CredentialCache.getInstance().get(AuthType.valueOf(config.get(AuthType.CONFIG_KEY)),
+                config.get("password"), config.get("private_key"), config.get("passphrase"), new CredentialCache.Decrypter()
+                {
+                    @Override
+                    public String decrypt(final String encrypted)
+                    {
+                        return encryptionService.decrypt(encrypted);
+                    }
+                });
+        TransportSettings transport = TransportSettings.fromConfig(config);
+        if (CompressionMode.fromConfig(config.get(CompressionMode.CONFIG_KEY)) == CompressionMode.ADAPTIVE)
+        {
+            // uploads are not sampled, follow what downloads from the host have shown
+            transport = transport.withCompression(CompressionAdvisor.getInstance().isCompressionPreferred(host, portNumber));
+        }
+        final SshConnectionKey connectionKey = new SshConnectionKey(host, portNumber, config.get("username"), credentials.getFingerprint(), transport,
+                JumpHost.fromConfig(config, config.get("username")));
+        final TaskMetrics metrics = new TaskMetrics();
+
+        final PooledSshConnection connection;
+        try
+        {
+            connection = SshConnectionPool.getInstance().borrow(connectionKey, credentials, metrics);
+        }
+        catch (IOException e)
+        {
+            buildLogger.addErrorLogEntry("Failed to connect to host", e);
+            publish(metrics, taskResultBuilder, buildLogger);
+            return taskResultBuilder.failedWithError().build();
+        }
+
+        final Set<String> failedToUpload = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final long transferStarted = metrics.start();
+        try
+        {
+            transferFiles(connection.getClient(), config, fileSet.getFiles(), failedToUpload, metrics, buildLogger);
+        }
+        finally
+        {
+            metrics.stop(TaskMetrics.Phase.TRANSFER, transferStarted);
+            if (failedToUpload.isEmpty())
+            {
+                connection.release();
+            }
+            else
+            {
+                connection.invalidate();
+            }
+        }
+
+        publish(metrics, taskResultBuilder, buildLogger);
+        if (!failedToUpload.isEmpty())
+        {
+            buildLogger.addErrorLogEntry(failedToUpload.size() + " file(s) failed to upload: " + StringUtils.join(new TreeSet<String>(failedToUpload), ", "));
+            return taskResultBuilder.failedWithError().build();
+        }
+        return taskResultBuilder.success().build();
+    }
+
+    private void transferFiles(final SSHClient ssh, final ConfigurationMap config, final Map<File, String> files, final Set<String> failedToUpload,
+            final TaskMetrics metrics, final BuildLogger buildLogger)
+    {
+        final String remoteDirectory = remoteDirectory(config.get("remotePath"));
+        try
+        {
+            createRemoteDirectories(ssh, remoteDirectory, files.values());
+        }
+        catch (IOException e)
+        {
+            buildLogger.addErrorLogEntry("Could not create remote directories below " + remoteDirectory + ": " + e.getMessage());
+            failedToUpload.add(remoteDirectory);
+            return;
+        }
+
+        final Queue<Map.Entry<File, String>> pending = new ConcurrentLinkedQueue<Map.Entry<File, String>>(files.entrySet());
+        final int threads = Math.max(1, Math.min(files.size(), NumberUtils.toInt(config.get("transferThreads"), DEFAULT_TRANSFER_THREADS)));
+        final boolean continueOnError = Boolean.parseBoolean(config.get("continueOnError"));
+        final TransferEngine engine = TransferEngine.fromConfig(config.get(TransferEngine.CONFIG_KEY));
+        final int writeAhead = NumberUtils.toInt(config.get("sftpWriteAhead"), SftpUploader.DEFAULT_WRITE_AHEAD);
+        final String suffix = ".bamboo-" + UUID.randomUUID().toString().substring(0, 8) + ".part";
+        final AtomicBoolean abort = new AtomicBoolean(false);
+        buildLogger.addBuildLogEntry("Uploading " + files.size() + " file(s) to " + remoteDirectory + " over " + threads + " channel(s)");
+
+        final ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "scp-upload-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final List<Future<?>> running = new ArrayList<Future<?>>();
+        for (int i = 0; i < threads; i++)
+        {
+            running.add(workers.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    final RemoteUploader uploader;
+                    try
+                    {
+                        uploader = engine == TransferEngine.SFTP
+                                ? new SftpUploader(ssh, writeAhead, new BuildLogScriptLogger(buildLogger))
+                                : new ScpUploader(ssh);
+                    }
+                    catch (IOException e)
+                    {
+                        buildLogger.addErrorLogEntry("Could not open an upload channel: " + e.getMessage());
+                        failedToUpload.add(remoteDirectory);
+                        return;
+                    }
+                    try
+                    {
+                        Map.Entry<File, String> upload;
+                        while (!abort.get() && (upload = pending.poll()) != null)
+                        {
+                            final String remotePath = remoteDirectory + "/" + upload.getValue();
+                            if (transferFile(ssh, uploader, upload.getKey(), remotePath, suffix, buildLogger))
+                            {
+                                metrics.countFile();
+                                metrics.countBytes(upload.getKey().length());
+                            }
+                            else
+                            {
+                                failedToUpload.add(remotePath);
+                                if (!continueOnError)
+                                {
+                                    abort.set(true);
+                                }
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        closeQuietly(uploader);
+                    }
+                }
+            }));
+        }
+        workers.shutdown();
+
+        try
+        {
+            for (Future<?> worker : running)
+            {
+                worker.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+            failedToUpload.add(remoteDirectory);
+        }
+        catch (ExecutionException e)
+        {
+            workers.shutdownNow();
+            buildLogger.addErrorLogEntry("Unexpected failure while uploading", e.getCause());
+            failedToUpload.add(remoteDirectory);
+        }
+        if (abort.get() && !pending.isEmpty())
+        {
+            buildLogger.addErrorLogEntry("Skipped " + pending.size() + " file(s) after an earlier failure");
+        }
+    }
+
+    /**
+     * @return true if the file is in place under its final name
+     */
+    private boolean transferFile(SSHClient ssh, RemoteUploader uploader, File local, String remotePath, String suffix, BuildLogger buildLogger)
+    {
+        final int slash = remotePath.lastIndexOf('/');
+        final String temporaryPath = remotePath.substring(0, slash + 1) + "." + remotePath.substring(slash + 1) + suffix;
+        try
+        {
+            buildLogger.addBuildLogEntry("Uploading '" + local.getPath() + "' to '" + remotePath + "'...");
+            uploader.upload(local, temporaryPath);
+            RemoteShell.execute(ssh, "mv -f " + RemoteShell.quote(temporaryPath) + " " + RemoteShell.quote(remotePath));
+            return true;
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Upload of " + local + " to " + remotePath + " failed", e);
+            buildLogger.addErrorLogEntry("Failed to upload '" + local.getPath() + "': " + e.getMessage());
+            try
+            {
+                RemoteShell.execute(ssh, "rm -f " + RemoteShell.quote(temporaryPath));
+            }
+            catch (IOException cleanup)
+            {
+                buildLogger.addErrorLogEntry("Could not remove partial upload " + temporaryPath);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Creates every destination directory up front with a few <code>mkdir -p</code> calls,
+     * rather than letting each transfer thread check its own.
+     */
+    private static void createRemoteDirectories(SSHClient ssh, String remoteDirectory, Iterable<String> relativePaths) throws IOException
+    {
+        final Set<String> directories = new TreeSet<String>();
+        directories.add(remoteDirectory);
+        for (String relativePath : relativePaths)
+        {
+            final int slash = relativePath.lastIndexOf('/');
+            if (slash > 0)
+            {
+                directories.add(remoteDirectory + "/" + relativePath.substring(0, slash));
+            }
+        }
+        StringBuilder command = new StringBuilder("mkdir -p");
+        int count = 0;
+        for (String directory : directories)
+        {
+            command.append(' ').append(RemoteShell.quote(directory));
+            if (++count % DIRECTORIES_PER_MKDIR == 0)
+            {
+                RemoteShell.execute(ssh, command.toString());
+                command = new StringBuilder("mkdir -p");
+            }
+        }
+        if (count % DIRECTORIES_PER_MKDIR != 0)
+        {
+            RemoteShell.execute(ssh, command.toString());
+        }
+    }
+
+    static String remoteDirectory(String remotePath)
+    {
+        final String trimmed = StringUtils.defaultString(remotePath).trim();
+        return trimmed.length() > 1 && trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+    }
+
+    private static void closeQuietly(RemoteUploader uploader)
+    {
+        try
+        {
+            uploader.close();
+        }
+        catch (IOException e)
+        {
+            // the connection is released or invalidated by the task either way
+        }
+    }
+
+    private static void publish(TaskMetrics metrics, TaskResultBuilder taskResultBuilder, BuildLogger buildLogger)
+    {
+        buildLogger.addBuildLogEntry(metrics.summary());
+        taskResultBuilder.setCustomResultData(metrics.toResultData());
+    }
+}
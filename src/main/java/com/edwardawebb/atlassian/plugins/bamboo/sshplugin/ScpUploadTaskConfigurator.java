@@ -0,0 +1,94 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import com.atlassian.bamboo.collections.ActionParametersMap;
+import com.atlassian.bamboo.security.EncryptionService;
+import com.atlassian.bamboo.task.TaskDefinition;
+import com.atlassian.bamboo.utils.error.ErrorCollection;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.EnumSet;
+import java.util.Map;
+
+public class ScpUploadTaskConfigurator extends BaseSshTaskConfigurator
+{
+    private static final EnumSet<TransferEngine> TRANSFER_ENGINES = EnumSet.of(TransferEngine.SCP, TransferEngine.SFTP);
+
+    public ScpUploadTaskConfigurator(EncryptionService encryptionService)
+    {
+        super(encryptionService);
+    }
+
+    @NotNull
+    @Override
+    public Map<String, String> generateTaskConfigMap(@NotNull final ActionParametersMap params, @Nullable final TaskDefinition previousTaskDefinition)
+    {
+        final Map<String, String> config = super.generateTaskConfigMap(params, previousTaskDefinition);
+        config.put("localPath", params.getString("localPath"));
+        config.put("remotePath", params.getString("remotePath"));
+        config.put("transferThreads", params.getString("transferThreads"));
+        config.put("continueOnError", Boolean.toString(params.getBoolean("continueOnError")));
+        config.put(TransferEngine.CONFIG_KEY, params.getString(TransferEngine.CONFIG_KEY));
+        config.put("sftpWriteAhead", params.getString("sftpWriteAhead"));
+        return config;
+    }
+
+    @Override
+    public void populateContextForEdit(@NotNull final Map<String, Object> context, @NotNull final TaskDefinition taskDefinition)
+    {
+        super.populateContextForEdit(context, taskDefinition);
+        context.put("transferThreads", taskDefinition.getConfiguration().get("transferThreads"));
+        context.put("continueOnError", taskDefinition.getConfiguration().get("continueOnError"));
+        context.put(TransferEngine.CONFIG_KEY, TransferEngine.fromConfig(taskDefinition.getConfiguration().get(TransferEngine.CONFIG_KEY)).getKey());
+        context.put("sftpWriteAhead", taskDefinition.getConfiguration().get("sftpWriteAhead"));
+        context.put("transferEngines", TRANSFER_ENGINES);
+    }
+
+    @Override
+    public void populateContextForCreate(@NotNull final Map<String, Object> context)
+    {
+        super.populateContextForCreate(context);
+        context.put("transferThreads", ScpUploadTask.DEFAULT_TRANSFER_THREADS);
+        context.put(TransferEngine.CONFIG_KEY, TransferEngine.SFTP.getKey());
+        context.put("sftpWriteAhead", SftpUploader.DEFAULT_WRITE_AHEAD);
+        context.put("transferEngines", TRANSFER_ENGINES);
+    }
+
+    @Override
+    public void populateContextForView(@NotNull final Map<String, Object> context, @NotNull final TaskDefinition taskDefinition)
+    {
+        super.populateContextForView(context, taskDefinition);
+        context.put(TransferEngine.CONFIG_KEY, TransferEngine.fromConfig(taskDefinition.getConfiguration().get(TransferEngine.CONFIG_KEY)).getDisplayName());
+    }
+
+    @Override
+    public void validate(@NotNull final ActionParametersMap params, @NotNull final ErrorCollection errorCollection)
+    {
+        super.validate(params, errorCollection);
+
+        if (StringUtils.isBlank(params.getString("localPath")))
+        {
+            errorCollection.addError("localPath", "You must specify the local files to upload");
+        }
+        if (StringUtils.isBlank(params.getString("remotePath")))
+        {
+            errorCollection.addError("remotePath", "You must specify the remote directory to upload to");
+        }
+        String transferThreads = params.getString("transferThreads");
+        if (StringUtils.isNotEmpty(transferThreads) && NumberUtils.toInt(transferThreads, 0) < 1)
+        {
+            errorCollection.addError("transferThreads", "Concurrent uploads must be a positive number");
+        }
+        String writeAhead = params.getString("sftpWriteAhead");
+        if (StringUtils.isNotEmpty(writeAhead) && NumberUtils.toInt(writeAhead, 0) < 1)
+        {
+            errorCollection.addError("sftpWriteAhead", "Outstanding writes must be a positive number");
+        }
+        if (TransferEngine.fromConfig(params.getString(TransferEngine.CONFIG_KEY)) == TransferEngine.TAR)
+        {
+            errorCollection.addError(TransferEngine.CONFIG_KEY, "Uploads support SCP and SFTP");
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.xfer.FileSystemFile;
+
+/**
+ * SCP upload, one exec channel per file. Modification times are preserved.
+ */
+public class ScpUploader implements RemoteUploader
+{
+    private final SSHClient ssh;
+
+    public ScpUploader(SSHClient ssh)
+    {
+        this.ssh = ssh;
+    }
+
+    @Override
+    public void upload(File local, String remotePath) throws IOException
+    {
+        ssh.newSCPFileTransfer().upload(new FileSystemFile(local)
+        {
+            @Override
+            public InputStream getInputStream() throws IOException
+            {
+                return Channels.newInputStream(new FileInputStream(getFile()).getChannel());
+            }
+        }, remotePath);
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
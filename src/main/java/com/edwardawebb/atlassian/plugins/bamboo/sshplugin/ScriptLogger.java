@@ -0,0 +1,12 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+/**
+ * Where remote command output goes. Mirrors the two {@link com.atlassian.bamboo.build.logger.BuildLogger} methods
+ * the tasks use, so output can be buffered, prefixed or filtered on its way to the build log.
+ */
+public interface ScriptLogger
+{
+    void addBuildLogEntry(String line);
+
+    void addErrorLogEntry(String line);
+}
@@ -0,0 +1,406 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.FileMode;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.SFTPClient;
+
+/**
+ * Downloads a single remote file above a size threshold in byte ranges fetched at the same time, each over its own
+ * SFTP channel. The task's connection carries the first range, the others get connections of their own from the pool
+ * as far as the host's connection limit allows, so encryption is spread over several cores and TCP streams; ranges
+ * that get no connection of their own share one. Every range writes at its own position into one local file that is
+ * set to its final size up front. Within a range several reads are in flight at once, so each range keeps its link
+ * busy instead of waiting a round trip per buffer.
+ * <p>
+ * Directories and smaller files go to the engine's own downloader. A retry of a broken segmented download continues
+ * every range where it stopped. The result is checked against the remote size; with checksums the local file is hashed
+ * from disk afterwards, since ranges arrive out of order and cannot be hashed on the way.
+ */
+public class SegmentedDownloader implements ResumableDownloader
+{
+    public static final int DEFAULT_THRESHOLD_MB = 512;
+    public static final int DEFAULT_SEGMENTS = 4;
+    public static final int MAX_SEGMENTS = 16;
+    static final long MIN_SEGMENT_SIZE = 16 * 1024 * 1024;
+    // per range, so a file can have segments * READS_IN_FLIGHT reads waiting on the server, each holding a 32 KB buffer
+    // and a thread of the agent-wide pool PipelinedRemoteReader caps at MAX_READ_THREADS; past that, reads queue
+    private static final int READS_IN_FLIGHT = 8;
+
+    private static final ExecutorService RANGES = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "ssh-segment-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final SharedConnection connection;
+    private final RemoteDownloader downloader;
+    private final ResumableDownloader resumer;
+    private final long thresholdBytes;
+    private final int segments;
+    private final TaskMetrics metrics;
+    private final ScriptLogger logger;
+    // ranges of broken downloads, so a retry only fetches what is missing
+    private final Map<File, Progress> unfinished = new ConcurrentHashMap<File, Progress>();
+
+    /**
+     * @param downloader for directories and files below the threshold
+     * @param resumer retries those, null if they have to start over
+     */
+    public SegmentedDownloader(SharedConnection connection, RemoteDownloader downloader, ResumableDownloader resumer,
+            long thresholdBytes, int segments, TaskMetrics metrics, ScriptLogger logger)
+    {
+        this.connection = connection;
+        this.downloader = downloader;
+        this.resumer = resumer;
+        this.thresholdBytes = Math.max(MIN_SEGMENT_SIZE, thresholdBytes);
+        this.segments = Math.max(2, Math.min(MAX_SEGMENTS, segments));
+        this.metrics = metrics;
+        this.logger = logger;
+    }
+
+    @Override
+    public void download(SSHClient ssh, String remotePath, File localDirectory) throws IOException
+    {
+        download(ssh, remotePath, localDirectory, false);
+    }
+
+    @Override
+    public void resume(SSHClient ssh, String remotePath, File localDirectory) throws IOException
+    {
+        download(ssh, remotePath, localDirectory, true);
+    }
+
+    private void download(SSHClient ssh, String remotePath, File localDirectory, boolean resume) throws IOException
+    {
+        final FileAttributes attributes;
+        final SFTPClient sftp = SftpDownloader.open(ssh);
+        try
+        {
+            attributes = sftp.stat(remotePath);
+        }
+        finally
+        {
+            sftp.close();
+        }
+        if (attributes.getType() != FileMode.Type.REGULAR || attributes.getSize() < thresholdBytes)
+        {
+            if (resume && resumer != null)
+            {
+                resumer.resume(ssh, remotePath, localDirectory);
+            }
+            else
+            {
+                downloader.download(ssh, remotePath, localDirectory);
+            }
+            return;
+        }
+
+        final File local = new File(localDirectory, SftpDownloader.baseName(remotePath)).getAbsoluteFile();
+        final Progress progress = progressFor(local, attributes.getSize(), attributes.getMtime(), resume);
+        if (progress.remaining() < progress.size)
+        {
+            logger.addBuildLogEntry(String.format("Resuming '%s', %,d of %,d bytes still to fetch", remotePath,
+                    progress.remaining(), attributes.getSize()));
+        }
+
+        final long started = System.nanoTime();
+        final long transferred = fetch(ssh, remotePath, local, progress);
+        if (local.length() != attributes.getSize())
+        {
+            throw new IOException("'" + remotePath + "' has " + local.length() + " bytes locally, " + attributes.getSize() + " remotely");
+        }
+        unfinished.remove(local);
+        metrics.countFile();
+        if (!local.setLastModified(attributes.getMtime() * 1000L))
+        {
+            logger.addBuildLogEntry("Could not preserve modification time of " + local);
+        }
+        logger.addBuildLogEntry(SftpDownloader.describeThroughput(remotePath, transferred, System.nanoTime() - started)
+                + " in " + progress.ranges.size() + " ranges");
+    }
+
+    /**
+     * @return the ranges left over from a broken download of the same file if this is a retry that may continue them,
+     *         otherwise new ones covering the whole file
+     */
+    Progress progressFor(File local, long size, long mtime, boolean resume)
+    {
+        final Progress previous = resume ? unfinished.get(local) : null;
+        if (previous != null && previous.isFor(size, mtime, local))
+        {
+            return previous;
+        }
+        final Progress progress = new Progress(size, mtime, split(size, segments, MIN_SEGMENT_SIZE));
+        unfinished.put(local, progress);
+        return progress;
+    }
+
+    /**
+     * Fetches every unfinished range, waiting for all of them even if one fails so none is left writing.
+     *
+     * @return bytes fetched
+     */
+    private long fetch(SSHClient ssh, final String remotePath, File local, final Progress progress) throws IOException
+    {
+        final List<Range> pending = progress.pending();
+        final List<PooledSshConnection> borrowed = new ArrayList<PooledSshConnection>();
+        final List<SSHClient> clients = new ArrayList<SSHClient>();
+        clients.add(ssh);
+        final RandomAccessFile file = new RandomAccessFile(local, "rw");
+        IOException failure = null;
+        long transferred = 0;
+        try
+        {
+            while (clients.size() < pending.size())
+            {
+                final PooledSshConnection another = connection.tryBorrowAnother();
+                if (another == null)
+                {
+                    break;
+                }
+                borrowed.add(another);
+                clients.add(another.getClient());
+            }
+            if (file.length() != progress.size)
+            {
+                file.setLength(progress.size);
+            }
+            final FileChannel channel = file.getChannel();
+            final List<Future<Long>> running = new ArrayList<Future<Long>>();
+            for (int i = 0; i < pending.size(); i++)
+            {
+                final SSHClient client = clients.get(i % clients.size());
+                final Range range = pending.get(i);
+                running.add(RANGES.submit(new Callable<Long>()
+                {
+                    @Override
+                    public Long call() throws IOException
+                    {
+                        return fetch(client, remotePath, range, channel, metrics);
+                    }
+                }));
+            }
+            for (Future<Long> range : running)
+            {
+                try
+                {
+                    transferred += range.get();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    for (Future<Long> other : running)
+                    {
+                        other.cancel(true);
+                    }
+                    throw new IOException("Interrupted while downloading '" + remotePath + "'");
+                }
+                catch (ExecutionException e)
+                {
+                    if (failure == null)
+                    {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+            }
+        }
+        finally
+        {
+            file.close();
+            for (PooledSshConnection another : borrowed)
+            {
+                if (another.getClient().isConnected())
+                {
+                    another.release();
+                }
+                else
+                {
+                    another.invalidate();
+                }
+            }
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+        return transferred;
+    }
+
+    /**
+     * Fetches one range with several reads in flight. The range only moves on over data written in order, so a retry
+     * never skips a gap.
+     */
+    private static long fetch(SSHClient ssh, final String remotePath, final Range range, final FileChannel channel, final TaskMetrics metrics) throws IOException
+    {
+        final SFTPClient sftp = ssh.newSFTPClient();
+        try
+        {
+            final RemoteFile remoteFile = sftp.open(remotePath, EnumSet.of(OpenMode.READ));
+            try
+            {
+                return PipelinedRemoteReader.read(remoteFile, remotePath, range.position.get(), range.end, READS_IN_FLIGHT, new PipelinedRemoteReader.Sink()
+                {
+                    @Override
+                    public void write(long position, byte[] data, int length) throws IOException
+                    {
+                        final ByteBuffer bytes = ByteBuffer.wrap(data, 0, length);
+                        while (bytes.hasRemaining())
+                        {
+                            // positional writes leave the channel's own position alone, so the ranges do not interfere
+                            channel.write(bytes, position + bytes.position());
+                        }
+                        range.position.set(position + length);
+                        metrics.countBytes(length);
+                    }
+                });
+            }
+            finally
+            {
+                remoteFile.close();
+            }
+        }
+        finally
+        {
+            sftp.close();
+        }
+    }
+
+    /**
+     * Splits a file into at most <code>segments</code> contiguous ranges of at least <code>minSegmentSize</code> bytes,
+     * the last one taking the remainder.
+     *
+     * @return start offsets of the ranges, followed by the size as end of the last one
+     */
+    static long[] split(long size, int segments, long minSegmentSize)
+    {
+        final int count = (int) Math.max(1, Math.min(segments, size / Math.max(1, minSegmentSize)));
+        final long[] bounds = new long[count + 1];
+        final long length = size / count;
+        for (int i = 0; i < count; i++)
+        {
+            bounds[i] = i * length;
+        }
+        bounds[count] = size;
+        return bounds;
+    }
+
+    static final class Range
+    {
+        private final AtomicLong position;
+        private final long end;
+
+        Range(long start, long end)
+        {
+            this.position = new AtomicLong(start);
+            this.end = end;
+        }
+
+        long getPosition()
+        {
+            return position.get();
+        }
+
+        /**
+         * Records that everything before <code>position</code> was written.
+         */
+        void advance(long position)
+        {
+            this.position.set(position);
+        }
+
+        long getEnd()
+        {
+            return end;
+        }
+
+        boolean isDone()
+        {
+            return position.get() >= end;
+        }
+    }
+
+    static final class Progress
+    {
+        private final long size;
+        private final long mtime;
+        private final List<Range> ranges = new ArrayList<Range>();
+
+        Progress(long size, long mtime, long[] bounds)
+        {
+            this.size = size;
+            this.mtime = mtime;
+            for (int i = 0; i + 1 < bounds.length; i++)
+            {
+                ranges.add(new Range(bounds[i], bounds[i + 1]));
+            }
+        }
+
+        /**
+         * Ranges fetched before only count if the remote file did not change and the local one is still the one written.
+         */
+        boolean isFor(long remoteSize, long remoteMtime, File local)
+        {
+            return remoteSize == size && remoteMtime == mtime && local.length() == size;
+        }
+
+        List<Range> getRanges()
+        {
+            return ranges;
+        }
+
+        /**
+         * @return the ranges still to fetch, each from where it stopped
+         */
+        List<Range> pending()
+        {
+            final List<Range> pending = new ArrayList<Range>();
+            for (Range range : ranges)
+            {
+                if (!range.isDone())
+                {
+                    pending.add(range);
+                }
+            }
+            return pending;
+        }
+
+        long remaining()
+        {
+            long remaining = 0;
+            for (Range range : ranges)
+            {
+                remaining += range.end - range.position.get();
+            }
+            return remaining;
+        }
+    }
+}
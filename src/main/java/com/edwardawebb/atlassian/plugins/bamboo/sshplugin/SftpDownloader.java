@@ -0,0 +1,228 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumSet;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.FileMode;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.RemoteResourceInfo;
+import net.schmizz.sshj.sftp.SFTPClient;
+
+/**
+ * SFTP download that keeps a window of read requests in flight for every file instead of SCP's stop-and-wait,
+ * so a high-latency link stays busy. Each file's throughput is written to the build log.
+ * <p>
+ * {@link #resume(SSHClient, String, File)} continues an interrupted download of the same entry: complete files are
+ * skipped and partial ones are appended to from their local length, with the same window of reads in flight.
+ */
+public class SftpDownloader implements ResumableDownloader
+{
+    public static final int DEFAULT_READ_AHEAD = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int readAhead;
+    private final ScriptLogger logger;
+    private final LocalFileWriter writer;
+
+    public SftpDownloader(int readAhead, ScriptLogger logger)
+    {
+        this(readAhead, logger, LocalFileWriter.DEFAULT);
+    }
+
+    public SftpDownloader(int readAhead, ScriptLogger logger, LocalFileWriter writer)
+    {
+        this.readAhead = Math.max(1, readAhead);
+        this.logger = logger;
+        this.writer = writer;
+    }
+
+    @Override
+    public void download(SSHClient ssh, String remotePath, File localDirectory) throws IOException
+    {
+        download(ssh, remotePath, localDirectory, false);
+    }
+
+    /**
+     * Only for an entry this task already started downloading: a shorter local file is taken to be the start of the
+     * remote one, which would be wrong for a stale file left behind by something else.
+     */
+    @Override
+    public void resume(SSHClient ssh, String remotePath, File localDirectory) throws IOException
+    {
+        download(ssh, remotePath, localDirectory, true);
+    }
+
+    private void download(SSHClient ssh, String remotePath, File localDirectory, boolean resume) throws IOException
+    {
+        final SFTPClient sftp = open(ssh);
+        try
+        {
+            final FileAttributes attributes = sftp.stat(remotePath);
+            download(sftp, remotePath, attributes, new File(localDirectory, baseName(remotePath)), resume);
+        }
+        finally
+        {
+            sftp.close();
+        }
+    }
+
+    private void download(SFTPClient sftp, String remotePath, FileAttributes attributes, File local, boolean resume) throws IOException
+    {
+        if (attributes.getType() == FileMode.Type.DIRECTORY)
+        {
+            if (!local.isDirectory() && !local.mkdirs())
+            {
+                throw new IOException("Could not create local directory " + local);
+            }
+            for (RemoteResourceInfo child : sftp.ls(remotePath))
+            {
+                FileAttributes childAttributes = child.getAttributes();
+                if (childAttributes.getType() == FileMode.Type.SYMLINK)
+                {
+                    // follow links like scp does
+                    childAttributes = sftp.stat(child.getPath());
+                }
+                download(sftp, child.getPath(), childAttributes, new File(local, child.getName()), resume);
+            }
+        }
+        else
+        {
+            downloadFile(sftp, remotePath, attributes, local, resume);
+        }
+    }
+
+    private void downloadFile(SFTPClient sftp, String remotePath, FileAttributes attributes, File local, boolean resume) throws IOException
+    {
+        long offset = 0;
+        if (resume && local.isFile())
+        {
+            // the modification time is only set once a file is complete
+            if (local.length() == attributes.getSize() && local.lastModified() / 1000L == attributes.getMtime())
+            {
+                return;
+            }
+            if (local.length() < attributes.getSize())
+            {
+                offset = local.length();
+                logger.addBuildLogEntry(String.format("Resuming '%s' at %,d of %,d bytes", remotePath, offset, attributes.getSize()));
+            }
+        }
+        final long started = System.nanoTime();
+        final long transferred;
+        final RemoteFile remoteFile = sftp.open(remotePath, EnumSet.of(OpenMode.READ));
+        try
+        {
+            transferred = offset > 0 ? append(remoteFile, remotePath, offset, attributes.getSize(), local) : create(remoteFile, attributes.getSize(), local);
+        }
+        finally
+        {
+            remoteFile.close();
+        }
+        if (!local.setLastModified(attributes.getMtime() * 1000L))
+        {
+            // a build can live with the download time as modification time
+            logger.addBuildLogEntry("Could not preserve modification time of " + local);
+        }
+        logger.addBuildLogEntry(describeThroughput(remotePath, transferred, System.nanoTime() - started));
+    }
+
+    private long create(RemoteFile remoteFile, long size, File local) throws IOException
+    {
+        long transferred = 0;
+        final InputStream in = remoteFile.new ReadAheadRemoteFileInputStream(readAhead);
+        final OutputStream out = writer.create(local, size);
+        try
+        {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+            {
+                out.write(buffer, 0, read);
+                transferred += read;
+            }
+        }
+        finally
+        {
+            out.close();
+            in.close();
+        }
+        return transferred;
+    }
+
+    /**
+     * sshj's read-ahead stream always starts at the beginning of the file, the rest of a partial one is read with the
+     * same number of requests in flight from where the local file ends.
+     */
+    private long append(RemoteFile remoteFile, String remotePath, long offset, long size, File local) throws IOException
+    {
+        final OutputStream out = writer.append(local, size);
+        try
+        {
+            return PipelinedRemoteReader.read(remoteFile, remotePath, offset, size, readAhead, new PipelinedRemoteReader.Sink()
+            {
+                @Override
+                public void write(long position, byte[] data, int length) throws IOException
+                {
+                    out.write(data, 0, length);
+                }
+            });
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * @throws SftpUnavailableException if the server refuses SFTP on a connection that is still up
+     */
+    static SFTPClient open(SSHClient ssh) throws IOException
+    {
+        try
+        {
+            return ssh.newSFTPClient();
+        }
+        catch (IOException e)
+        {
+            if (ssh.isConnected())
+            {
+                throw new SftpUnavailableException(e);
+            }
+            throw e;
+        }
+    }
+
+    static String describeThroughput(String remotePath, long bytes, long elapsedNanos)
+    {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        return String.format("'%s': %,d bytes in %.2f s (%.2f MB/s)", remotePath, bytes, seconds, bytes / seconds / (1024 * 1024));
+    }
+
+    static String baseName(String remotePath)
+    {
+        String path = remotePath;
+        while (path.length() > 1 && path.endsWith("/"))
+        {
+            path = path.substring(0, path.length() - 1);
+        }
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? path : path.substring(slash + 1);
+    }
+
+    /**
+     * The server has no SFTP subsystem, or does not let this user start it, so SFTP is no way to resume on this host.
+     */
+    public static class SftpUnavailableException extends IOException
+    {
+        public SftpUnavailableException(IOException cause)
+        {
+            super("SFTP is not available: " + cause.getMessage(), cause);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.EnumSet;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.SFTPClient;
+
+/**
+ * SFTP upload over one session per transfer thread, keeping a window of unacknowledged writes in flight so a
+ * high-latency link stays busy. Modification time and the execute bit are preserved.
+ */
+public class SftpUploader implements RemoteUploader
+{
+    public static final int DEFAULT_WRITE_AHEAD = 16;
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final SFTPClient sftp;
+    private final int writeAhead;
+    private final ScriptLogger logger;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    public SftpUploader(SSHClient ssh, int writeAhead, ScriptLogger logger) throws IOException
+    {
+        this.sftp = ssh.newSFTPClient();
+        this.writeAhead = Math.max(1, writeAhead);
+        this.logger = logger;
+    }
+
+    @Override
+    public void upload(File local, String remotePath) throws IOException
+    {
+        final long started = System.nanoTime();
+        long transferred = 0;
+        final FileChannel channel = new FileInputStream(local).getChannel();
+        try
+        {
+            final RemoteFile remoteFile = sftp.open(remotePath, EnumSet.of(OpenMode.WRITE, OpenMode.CREAT, OpenMode.TRUNC));
+            try
+            {
+                final OutputStream out = remoteFile.new RemoteFileOutputStream(0, writeAhead);
+                int read;
+                while ((read = channel.read(buffer)) != -1)
+                {
+                    out.write(buffer.array(), 0, read);
+                    buffer.clear();
+                    transferred += read;
+                }
+                // waits for the outstanding writes to be acknowledged
+                out.close();
+            }
+            finally
+            {
+                remoteFile.close();
+            }
+        }
+        finally
+        {
+            buffer.clear();
+            channel.close();
+        }
+        final long modified = local.lastModified() / 1000L;
+        sftp.setattr(remotePath, new FileAttributes.Builder()
+                .withAtimeMtime(modified, modified)
+                .withPermissions(local.canExecute() ? 0755 : 0644)
+                .build());
+        logger.addBuildLogEntry(SftpDownloader.describeThroughput(local.getName(), transferred, System.nanoTime() - started));
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        sftp.close();
+    }
+}
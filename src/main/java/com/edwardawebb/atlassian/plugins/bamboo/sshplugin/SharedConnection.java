@@ -0,0 +1,74 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.IOException;
+
+import net.schmizz.sshj.SSHClient;
+
+/**
+ * The pooled connection a task's transfer threads share. When it drops, the first thread to notice swaps in a fresh
+ * one from the pool and the other threads pick that up instead of each opening their own.
+ */
+public class SharedConnection
+{
+    private final SshConnectionPool pool;
+    private final SshConnectionKey key;
+    private final SshCredentials credentials;
+    private final TaskMetrics metrics;
+    private PooledSshConnection current;
+
+    public SharedConnection(SshConnectionPool pool, SshConnectionKey key, SshCredentials credentials, TaskMetrics metrics) throws IOException
+    {
+        this.pool = pool;
+        this.key = key;
+        this.credentials = credentials;
+        this.metrics = metrics;
+        this.current = pool.borrow(key, credentials, metrics);
+    }
+
+    public synchronized SSHClient getClient()
+    {
+        return current.getClient();
+    }
+
+    /**
+     * @param broken the client an attempt failed on
+     * @return a connected client, <code>broken</code> itself if it is in fact still connected
+     * @throws IOException if a new connection cannot be opened
+     */
+    public synchronized SSHClient reconnect(SSHClient broken) throws IOException
+    {
+        if (current.getClient() == broken && !broken.isConnected())
+        {
+            current.invalidate();
+            current = pool.borrow(key, credentials, metrics);
+        }
+        return current.getClient();
+    }
+
+    /**
+     * A further connection to the same host, for work that should not share this one's bandwidth and CPU.
+     * Its lease has to be ended by the caller.
+     *
+     * @return null if the host is at its connection limit
+     * @throws IOException if a new connection cannot be opened
+     */
+    public PooledSshConnection tryBorrowAnother() throws IOException
+    {
+        return pool.tryBorrow(key, credentials, metrics);
+    }
+
+    /**
+     * Ends the lease on the current connection, keeping it pooled only if the task finished cleanly.
+     */
+    public synchronized void close(boolean healthy)
+    {
+        if (healthy)
+        {
+            current.release();
+        }
+        else
+        {
+            current.invalidate();
+        }
+    }
+}
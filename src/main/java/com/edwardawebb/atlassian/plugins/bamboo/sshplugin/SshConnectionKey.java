@@ -0,0 +1,117 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+/**
+ * Identifies connections that may be shared between task executions: same host, port, user, credentials, transport settings
+ * and jump host.
+ */
+public final class SshConnectionKey
+{
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String credentialFingerprint;
+    private final TransportSettings transport;
+    private final JumpHost jumpHost;
+
+    public SshConnectionKey(String host, int port, String username, String credentialFingerprint)
+    {
+        this(host, port, username, credentialFingerprint, TransportSettings.DEFAULTS);
+    }
+
+    public SshConnectionKey(String host, int port, String username, String credentialFingerprint, TransportSettings transport)
+    {
+        this(host, port, username, credentialFingerprint, transport, null);
+    }
+
+    /**
+     * @param jumpHost bastion to connect through, null to connect directly
+     */
+    public SshConnectionKey(String host, int port, String username, String credentialFingerprint, TransportSettings transport,
+                            JumpHost jumpHost)
+    {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.credentialFingerprint = credentialFingerprint;
+        this.transport = transport == null ? TransportSettings.DEFAULTS : transport;
+        this.jumpHost = jumpHost;
+    }
+
+    public String getHost()
+    {
+        return host;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public String getUsername()
+    {
+        return username;
+    }
+
+    public String getCredentialFingerprint()
+    {
+        return credentialFingerprint;
+    }
+
+    public TransportSettings getTransport()
+    {
+        return transport;
+    }
+
+    public JumpHost getJumpHost()
+    {
+        return jumpHost;
+    }
+
+    /**
+     * @return the key of the connection to the jump host itself, with the same credentials and algorithms but without
+     * compression, which would only squeeze the already encrypted target traffic again
+     */
+    public SshConnectionKey getJumpHostKey()
+    {
+        return new SshConnectionKey(jumpHost.getHost(), jumpHost.getPort(), jumpHost.getUsername(), credentialFingerprint,
+                transport.withCompression(false));
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (!(o instanceof SshConnectionKey))
+        {
+            return false;
+        }
+        SshConnectionKey that = (SshConnectionKey) o;
+        return port == that.port
+                && host.equals(that.host)
+                && username.equals(that.username)
+                && credentialFingerprint.equals(that.credentialFingerprint)
+                && transport.equals(that.transport)
+                && (jumpHost == null ? that.jumpHost == null : jumpHost.equals(that.jumpHost));
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = host.hashCode();
+        result = 31 * result + port;
+        result = 31 * result + username.hashCode();
+        result = 31 * result + credentialFingerprint.hashCode();
+        result = 31 * result + transport.hashCode();
+        result = 31 * result + (jumpHost == null ? 0 : jumpHost.hashCode());
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return username + "@" + host + ":" + port + (jumpHost == null ? "" : " via " + jumpHost);
+    }
+}
@@ -0,0 +1,293 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.schmizz.sshj.SSHClient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Agent-wide pool of authenticated SSH connections, shared by every task running on this agent.
+ * <p>
+ * Connections are keyed by host, port, user and credential fingerprint, leased exclusively to one task at a time,
+ * kept alive with SSH keepalives while idle and closed once they have been idle for too long.
+ * Limits can be tuned per agent with system properties:
+ * <ul>
+ *     <li><code>bamboo.ssh.pool.maxPerHost</code> - connections per key, leased or idle (default 8)</li>
+ *     <li><code>bamboo.ssh.pool.idleTimeout</code> - seconds an idle connection is kept (default 300, 0 disables pooling)</li>
+ *     <li><code>bamboo.ssh.pool.keepAlive</code> - keepalive interval in seconds (default 30)</li>
+ *     <li><code>bamboo.ssh.pool.borrowTimeout</code> - seconds to wait for a free slot when a host is at its limit (default 600)</li>
+ *     <li><code>bamboo.ssh.connect.timeout</code> - seconds to wait for a TCP connection to any of a host's addresses (default 10)</li>
+ *     <li><code>bamboo.ssh.connect.attempts</code> - attempts to open a new connection before giving up (default 3)</li>
+ * </ul>
+ */
+public class SshConnectionPool
+{
+    private static final Logger LOG = LoggerFactory.getLogger(SshConnectionPool.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+    public static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 300;
+    public static final int DEFAULT_KEEP_ALIVE_SECONDS = 30;
+    public static final int DEFAULT_BORROW_TIMEOUT_SECONDS = 600;
+
+    private static final SshConnectionPool INSTANCE = new SshConnectionPool(
+            Integer.getInteger("bamboo.ssh.pool.maxPerHost", DEFAULT_MAX_CONNECTIONS_PER_HOST),
+            Integer.getInteger("bamboo.ssh.pool.idleTimeout", DEFAULT_IDLE_TIMEOUT_SECONDS),
+            Integer.getInteger("bamboo.ssh.pool.borrowTimeout", DEFAULT_BORROW_TIMEOUT_SECONDS),
+            new SshConnector(Integer.getInteger("bamboo.ssh.pool.keepAlive", DEFAULT_KEEP_ALIVE_SECONDS),
+                    Integer.getInteger("bamboo.ssh.connect.timeout", SshConnector.DEFAULT_CONNECT_TIMEOUT_SECONDS),
+                    Integer.getInteger("bamboo.ssh.connect.attempts", SshConnector.DEFAULT_CONNECT_ATTEMPTS)));
+
+    private final int maxConnectionsPerHost;
+    private final long idleTimeoutMillis;
+    private final long borrowTimeoutMillis;
+    private final SshConnector connector;
+    private final ConcurrentMap<SshConnectionKey, HostPool> pools = new ConcurrentHashMap<SshConnectionKey, HostPool>();
+
+    public static SshConnectionPool getInstance()
+    {
+        return INSTANCE;
+    }
+
+    SshConnectionPool(int maxConnectionsPerHost, int idleTimeoutSeconds, int borrowTimeoutSeconds, SshConnector connector)
+    {
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+        this.idleTimeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(0, idleTimeoutSeconds));
+        this.borrowTimeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(0, borrowTimeoutSeconds));
+        this.connector = connector;
+
+        if (idleTimeoutMillis > 0)
+        {
+            ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "ssh-connection-pool-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long period = Math.max(1000L, idleTimeoutMillis / 4);
+            evictor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    evictIdle();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Leases a healthy connection for the key, reusing an idle one when possible and opening a new one otherwise.
+     * Blocks while the key already has the maximum number of connections leased.
+     *
+     * The wait for a slot and the setup of a new connection are recorded in the task's metrics.
+     *
+     * @throws IOException if a new connection cannot be established or no slot frees up in time
+     */
+    public PooledSshConnection borrow(SshConnectionKey key, SshCredentials credentials, TaskMetrics metrics) throws IOException
+    {
+        return borrow(key, credentials, metrics, true);
+    }
+
+    /**
+     * Like {@link #borrow(SshConnectionKey, SshCredentials, TaskMetrics)}, but for a connection the caller can do
+     * without: never waits for a slot.
+     *
+     * @return null if the key already has the maximum number of connections leased
+     */
+    public PooledSshConnection tryBorrow(SshConnectionKey key, SshCredentials credentials, TaskMetrics metrics) throws IOException
+    {
+        return borrow(key, credentials, metrics, false);
+    }
+
+    private PooledSshConnection borrow(SshConnectionKey key, SshCredentials credentials, TaskMetrics metrics, boolean wait) throws IOException
+    {
+        final HostPool hostPool = hostPool(key);
+        final long deadline = System.currentTimeMillis() + borrowTimeoutMillis;
+        final long waitStarted = metrics.start();
+
+        synchronized (hostPool)
+        {
+            while (true)
+            {
+                IdleConnection idle;
+                while ((idle = hostPool.idle.pollFirst()) != null)
+                {
+                    if (isHealthy(idle.client))
+                    {
+                        LOG.debug("Reusing pooled SSH connection to {}", key);
+                        metrics.stop(TaskMetrics.Phase.POOL_WAIT, waitStarted);
+                        metrics.connectionReused();
+                        return new PooledSshConnection(this, key, idle.client, true);
+                    }
+                    LOG.debug("Discarding dead pooled SSH connection to {}", key);
+                    hostPool.open--;
+                    SshConnector.closeQuietly(idle.client);
+                }
+                if (hostPool.open < maxConnectionsPerHost)
+                {
+                    // reserve the slot now, connect outside the lock so other hosts' tasks and releases are not held up
+                    hostPool.open++;
+                    break;
+                }
+                if (!wait)
+                {
+                    metrics.stop(TaskMetrics.Phase.POOL_WAIT, waitStarted);
+                    return null;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    throw new IOException("Timed out waiting for a free SSH connection to " + key
+                            + ", all " + maxConnectionsPerHost + " are in use");
+                }
+                try
+                {
+                    hostPool.wait(remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for a free SSH connection to " + key);
+                }
+            }
+        }
+
+        metrics.stop(TaskMetrics.Phase.POOL_WAIT, waitStarted);
+        try
+        {
+            SSHClient client = connector.connect(key, credentials, metrics);
+            LOG.debug("Opened new SSH connection to {}", key);
+            return new PooledSshConnection(this, key, client, false);
+        }
+        catch (IOException e)
+        {
+            freeSlot(hostPool);
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            freeSlot(hostPool);
+            throw e;
+        }
+    }
+
+    void giveBack(SshConnectionKey key, SSHClient client, boolean reusable)
+    {
+        final HostPool hostPool = hostPool(key);
+        if (reusable && idleTimeoutMillis > 0 && isHealthy(client))
+        {
+            synchronized (hostPool)
+            {
+                // most recently used first, so the warmest connections are handed out and the rest age out
+                hostPool.idle.addFirst(new IdleConnection(client, System.currentTimeMillis()));
+                hostPool.notifyAll();
+            }
+            return;
+        }
+        SshConnector.closeQuietly(client);
+        freeSlot(hostPool);
+    }
+
+    void evictIdle()
+    {
+        final long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        final List<SSHClient> toClose = new ArrayList<SSHClient>();
+        for (HostPool hostPool : pools.values())
+        {
+            synchronized (hostPool)
+            {
+                int evicted = 0;
+                Iterator<IdleConnection> it = hostPool.idle.iterator();
+                while (it.hasNext())
+                {
+                    IdleConnection idle = it.next();
+                    if (idle.idleSince < cutoff || !isHealthy(idle.client))
+                    {
+                        it.remove();
+                        hostPool.open--;
+                        toClose.add(idle.client);
+                        evicted++;
+                    }
+                }
+                if (evicted > 0)
+                {
+                    hostPool.notifyAll();
+                }
+            }
+        }
+        for (SSHClient client : toClose)
+        {
+            SshConnector.closeQuietly(client);
+        }
+        if (!toClose.isEmpty())
+        {
+            LOG.debug("Closed {} idle SSH connections", toClose.size());
+        }
+    }
+
+    private void freeSlot(HostPool hostPool)
+    {
+        synchronized (hostPool)
+        {
+            hostPool.open--;
+            hostPool.notifyAll();
+        }
+    }
+
+    private HostPool hostPool(SshConnectionKey key)
+    {
+        HostPool hostPool = pools.get(key);
+        if (hostPool == null)
+        {
+            HostPool created = new HostPool();
+            hostPool = pools.putIfAbsent(key, created);
+            if (hostPool == null)
+            {
+                hostPool = created;
+            }
+        }
+        return hostPool;
+    }
+
+    private static boolean isHealthy(SSHClient client)
+    {
+        // the keepalive thread disconnects the transport once the server stops answering
+        return client.isConnected() && client.isAuthenticated();
+    }
+
+    private static final class HostPool
+    {
+        /** connections for this key that exist or are being opened, leased or idle */
+        private int open;
+        private final Deque<IdleConnection> idle = new ArrayDeque<IdleConnection>();
+    }
+
+    private static final class IdleConnection
+    {
+        private final SSHClient client;
+        private final long idleSince;
+
+        private IdleConnection(SSHClient client, long idleSince)
+        {
+            this.client = client;
+            this.idleSince = idleSince;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.schmizz.keepalive.KeepAliveProvider;
+import net.schmizz.sshj.DefaultConfig;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.transport.verification.HostKeyVerifier;
+import net.schmizz.sshj.userauth.UserAuthException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Opens and authenticates new SSH connections. All tasks go through here (via {@link SshConnectionPool})
+ * so connection setup behaves the same regardless of which task asked for it.
+ * <p>
+ * Hosts with several addresses are connected to through an {@link AddressRacer}, and a connection that fails before it
+ * is authenticated is tried again, unless the credentials were rejected. Targets behind a {@link JumpHost} are reached
+ * through a connection to the jump host shared by all of them, see {@link JumpHostTunnels}.
+ */
+public class SshConnector
+{
+    private static final Logger LOG = LoggerFactory.getLogger(SshConnector.class);
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 10;
+    public static final int DEFAULT_CONNECT_ATTEMPTS = 3;
+    static final long CONNECT_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    private final int keepAliveIntervalSeconds;
+    private final int connectTimeoutMillis;
+    private final RetryPolicy retryPolicy;
+    private final JumpHostTunnels jumpHostTunnels = new JumpHostTunnels(this);
+
+    /**
+     * @param connectTimeoutSeconds for the TCP connect to all of a host's addresses together, 0 leaves it to the operating system
+     * @param connectAttempts total attempts to connect and authenticate, 1 never retries
+     */
+    public SshConnector(int keepAliveIntervalSeconds, int connectTimeoutSeconds, int connectAttempts)
+    {
+        this.keepAliveIntervalSeconds = keepAliveIntervalSeconds;
+        this.connectTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(Math.max(0, connectTimeoutSeconds));
+        this.retryPolicy = new RetryPolicy(connectAttempts, CONNECT_BACKOFF_MILLIS, RetryPolicy.MAX_BACKOFF_MILLIS, RetryPolicy.DEFAULT_JITTER);
+    }
+
+    /**
+     * Connects and authenticates, timing name resolution, TCP connect, key exchange and authentication separately.
+     */
+    public SSHClient connect(SshConnectionKey key, SshCredentials credentials, TaskMetrics metrics) throws IOException
+    {
+        final List<InetAddress> addresses;
+        if (key.getJumpHost() == null)
+        {
+            final long resolveStarted = metrics.start();
+            addresses = Arrays.asList(InetAddress.getAllByName(key.getHost()));
+            metrics.stop(TaskMetrics.Phase.RESOLVE, resolveStarted);
+        }
+        else
+        {
+            // the jump host resolves the target, it may not even be known here
+            addresses = null;
+        }
+
+        for (int attempt = 1; ; attempt++)
+        {
+            try
+            {
+                return connectOnce(key, credentials, addresses, metrics);
+            }
+            catch (IOException e)
+            {
+                if (!isRetryable(e) || !retryPolicy.canRetry(attempt))
+                {
+                    throw e;
+                }
+                final long backoff = retryPolicy.backoffMillis(attempt);
+                LOG.warn("Connecting to " + key + " failed (attempt " + attempt + " of " + retryPolicy.getAttempts()
+                        + "), retrying in " + backoff + " ms: " + e.getMessage());
+                try
+                {
+                    Thread.sleep(backoff);
+                }
+                catch (InterruptedException interrupted)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to reconnect to " + key);
+                }
+            }
+        }
+    }
+
+    private SSHClient connectOnce(SshConnectionKey key, SshCredentials credentials, List<InetAddress> addresses,
+                                  final TaskMetrics metrics) throws IOException
+    {
+        // taken once the client exists, so whatever fails after that gives it back by disconnecting
+        final JumpHostTunnels.Lease[] lease = new JumpHostTunnels.Lease[1];
+        final DefaultConfig config = new DefaultConfig();
+        config.setKeepAliveProvider(KeepAliveProvider.KEEP_ALIVE);
+        key.getTransport().applyTo(config);
+        final long[] phaseStart = new long[1];
+        final SSHClient ssh = new SSHClient(config)
+        {
+            @Override
+            protected void onConnect() throws IOException
+            {
+                // the socket is connected once this is called, the key exchange happens in here
+                metrics.stop(TaskMetrics.Phase.CONNECT, phaseStart[0]);
+                phaseStart[0] = metrics.start();
+                super.onConnect();
+                metrics.stop(TaskMetrics.Phase.KEY_EXCHANGE, phaseStart[0]);
+            }
+
+            @Override
+            public void disconnect() throws IOException
+            {
+                try
+                {
+                    super.disconnect();
+                }
+                finally
+                {
+                    if (lease[0] != null)
+                    {
+                        lease[0].release();
+                    }
+                }
+            }
+        };
+
+        //Always validate
+        ssh.addHostKeyVerifier(new HostKeyVerifier()
+        {
+            @Override
+            public boolean verify(final String s, final int i, final PublicKey publicKey)
+            {
+                return true;
+            }
+        });
+
+        try
+        {
+            if (key.getTransport().isCompression())
+            {
+                ssh.useCompression();
+            }
+            ssh.setConnectTimeout(connectTimeoutMillis);
+            if (key.getJumpHost() != null)
+            {
+                lease[0] = jumpHostTunnels.open(key, credentials, metrics);
+            }
+            phaseStart[0] = metrics.start();
+            if (lease[0] != null)
+            {
+                ssh.setSocketFactory(lease[0].socketFactory());
+                ssh.connect(lease[0].getTargetAddress(), key.getPort());
+            }
+            else
+            {
+                if (addresses.size() > 1)
+                {
+                    ssh.setSocketFactory(AddressRacer.socketFactory(addresses, connectTimeoutMillis));
+                }
+                ssh.connect(addresses.get(0), key.getPort());
+            }
+            final long authStarted = metrics.start();
+            credentials.authenticate(ssh, key.getUsername());
+            metrics.stop(TaskMetrics.Phase.AUTHENTICATE, authStarted);
+            metrics.connectionOpened();
+            ssh.getConnection().getKeepAlive().setKeepAliveInterval(keepAliveIntervalSeconds);
+            key.getTransport().applyTo(ssh.getConnection());
+            return ssh;
+        }
+        catch (IOException e)
+        {
+            closeQuietly(ssh);
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            // sshj reports some protocol failures unchecked, the socket and the lease still have to go
+            closeQuietly(ssh);
+            throw e;
+        }
+    }
+
+    /**
+     * @return false for failures another attempt cannot fix
+     */
+    static boolean isRetryable(IOException e)
+    {
+        // wrong credentials stay wrong
+        return !(e instanceof UserAuthException);
+    }
+
+    static void closeQuietly(SSHClient ssh)
+    {
+        try
+        {
+            ssh.disconnect();
+        }
+        catch (IOException e)
+        {
+            // nothing left to clean up on a connection that cannot even say goodbye
+        }
+        catch (RuntimeException e)
+        {
+            // nor on one that never got far enough to say hello
+        }
+    }
+}
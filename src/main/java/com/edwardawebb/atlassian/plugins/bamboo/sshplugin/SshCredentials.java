@@ -0,0 +1,104 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
+import net.schmizz.sshj.userauth.password.PasswordUtils;
+
+/**
+ * The decrypted secrets used to authenticate against a remote host.
+ * Only a fingerprint of these values ever leaves this class, so pooled connections can be matched
+ * to the credentials that opened them without keeping the secrets in a map key.
+ * A private key is parsed once and the resulting provider reused by every connection made with these credentials.
+ */
+public class SshCredentials
+{
+    private final AuthType authType;
+    private final String password;
+    private final String privateKey;
+    private final String passphrase;
+    private final String fingerprint;
+    private KeyProvider keyProvider;
+
+    public SshCredentials(AuthType authType, String password, String privateKey, String passphrase)
+    {
+        this.authType = authType == null ? AuthType.PASSWORD : authType;
+        this.password = password;
+        this.privateKey = privateKey;
+        this.passphrase = passphrase;
+        this.fingerprint = sha256(this.authType.name(), password, privateKey, passphrase);
+    }
+
+    public AuthType getAuthType()
+    {
+        return authType;
+    }
+
+    /**
+     * @return a SHA-256 hex digest of the auth type and secrets, safe to use in keys and logs
+     */
+    public String getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    public void authenticate(SSHClient ssh, String username) throws IOException
+    {
+        if (authType == AuthType.PASSWORD)
+        {
+            ssh.authPassword(username, password);
+        }
+        else
+        {
+            ssh.authPublickey(username, loadKeyProvider(ssh));
+        }
+    }
+
+    /**
+     * Fills the password into a prompt response in place of {@link PromptResponses#PASSWORD}.
+     */
+    String fillPassword(String response)
+    {
+        return password == null ? response : response.replace(PromptResponses.PASSWORD, password);
+    }
+
+    synchronized KeyProvider loadKeyProvider(SSHClient ssh) throws IOException
+    {
+        if (keyProvider == null)
+        {
+            final KeyProvider provider = passphrase == null ? ssh.loadKeys(privateKey, null, null)
+                    : ssh.loadKeys(privateKey, null, PasswordUtils.createOneOff(passphrase.toCharArray()));
+            // the key file providers decode lazily and keep the decoded pair, so decode it once while we hold the lock
+            provider.getPrivate();
+            keyProvider = provider;
+        }
+        return keyProvider;
+    }
+
+    static String sha256(String... values)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String value : values)
+            {
+                if (value != null)
+                {
+                    digest.update(value.getBytes(StandardCharsets.UTF_8));
+                }
+                // separator keeps ("ab", "c") and ("a", "bc") apart
+                digest.update((byte) 0);
+            }
+            return String.format("%064x", new BigInteger(1, digest.digest()));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available on this JVM", e);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import net.schmizz.sshj.connection.channel.direct.Session.Command;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs an inline script against one host over a pooled connection.
+ */
+public class SshScriptRunner
+{
+    private static final Logger LOG = LoggerFactory.getLogger(SshScriptRunner.class);
+
+    private final String inlineScript;
+    private final ExecutionMode executionMode;
+    private final CommandWatchdog watchdog;
+    private final OutputLimiter.Policy outputPolicy;
+    private final PromptResponses promptResponses;
+
+    /**
+     * @param promptResponses how an interactive shell answers prompts, only used by {@link ExecutionMode#SHELL}
+     */
+    public SshScriptRunner(String inlineScript, ExecutionMode executionMode, CommandWatchdog watchdog, OutputLimiter.Policy outputPolicy,
+            PromptResponses promptResponses)
+    {
+        this.inlineScript = inlineScript;
+        this.executionMode = executionMode;
+        this.watchdog = watchdog;
+        this.outputPolicy = outputPolicy;
+        this.promptResponses = promptResponses;
+    }
+
+    /**
+     * @return true if every command exited with status 0
+     */
+    public boolean run(final SshConnectionKey connectionKey, final SshCredentials credentials, final ScriptLogger logger, final TaskMetrics metrics)
+    {
+        logger.addBuildLogEntry("Attempting SSH connection");
+
+        final PooledSshConnection connection;
+        try
+        {
+            connection = SshConnectionPool.getInstance().borrow(connectionKey, credentials, metrics);
+            logger.addBuildLogEntry((connection.isReused() ? "Reusing connection to " : "Connected to ")
+                    + connectionKey.getHost() + " as " + connectionKey.getUsername());
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Failed to connect to " + connectionKey, e);
+            logger.addErrorLogEntry("Failed to connect to host: " + e.getMessage());
+            return false;
+        }
+
+        try
+        {
+            if (executionMode == ExecutionMode.BATCH)
+            {
+                executeBatch(connection.getClient(), logger, metrics);
+            }
+            else if (executionMode == ExecutionMode.SHELL)
+            {
+                executeShell(connection.getClient(), credentials, logger, metrics);
+            }
+            else
+            {
+                executePerCommand(connection.getClient(), logger, metrics);
+            }
+            logger.addBuildLogEntry("Successfully executed SSH commands");
+            return true;
+        }
+        catch (IOException e)
+        {
+            LOG.warn("SSH execution against " + connectionKey + " failed", e);
+            logger.addErrorLogEntry("SSH execution failed: " + e.getMessage());
+            // the channel or transport broke, do not hand it to the next task
+            connection.invalidate();
+            return false;
+        }
+        catch (SSHExecutionException e)
+        {
+            return false;
+        }
+        finally
+        {
+            connection.release();
+            logger.addBuildLogEntry("Released connection to " + connectionKey.getHost());
+        }
+    }
+
+    /**
+     * Runs every line of the script in its own session, stopping at the first failure.
+     */
+    private void executePerCommand(final SSHClient ssh, final ScriptLogger logger, final TaskMetrics metrics) throws IOException
+    {
+        final OutputLimiter output = new OutputLimiter(logger, outputPolicy);
+        for (String commandLine : inlineScript.split("\n"))
+        {
+            watchdog.checkTaskDeadline();
+            logger.addBuildLogEntry("Exec: " + commandLine);
+            final long sessionStarted = metrics.start();
+            final Session session = ssh.startSession();
+            metrics.stop(TaskMetrics.Phase.SESSION, sessionStarted);
+            final long executeStarted = metrics.start();
+            try
+            {
+                final Command cmd = session.exec(commandLine);
+                final CommandWatchdog.Watch watch = watchdog.watch(cmd, commandLine, logger);
+                try
+                {
+                    pump(cmd, watch, new StreamPump.LineHandler()
+                    {
+                        @Override
+                        public void line(String line, boolean stderr)
+                        {
+                            log(output, line, stderr);
+                        }
+                    });
+                    output.flush();
+                    finish(cmd, watch);
+                }
+                finally
+                {
+                    watch.close();
+                }
+                if (cmd.getExitStatus() == null || cmd.getExitStatus() != 0 || null != cmd.getExitErrorMessage())
+                {
+                    logger.addErrorLogEntry("SSH script failed with error code: " + cmd.getExitStatus());
+                    logErrorDetails(cmd, logger);
+                    throw new SSHExecutionException("Failed to execute " + commandLine + ", return code: " + cmd.getExitStatus());
+                }
+            }
+            finally
+            {
+                session.close();
+                metrics.stop(TaskMetrics.Phase.EXECUTE, executeStarted);
+            }
+        }
+    }
+
+    /**
+     * Runs the whole script through a single exec channel, see {@link BatchScript} for how per-line exit
+     * statuses are recovered from the combined output.
+     */
+    private void executeBatch(final SSHClient ssh, final ScriptLogger logger, final TaskMetrics metrics) throws IOException
+    {
+        final BatchScript script = new BatchScript(inlineScript);
+        final OutputLimiter output = new OutputLimiter(logger, outputPolicy);
+        logger.addBuildLogEntry("Executing " + script.getCommands().size() + " commands in a single session");
+        watchdog.checkTaskDeadline();
+        final long sessionStarted = metrics.start();
+        final Session session = ssh.startSession();
+        metrics.stop(TaskMetrics.Phase.SESSION, sessionStarted);
+        final long executeStarted = metrics.start();
+        try
+        {
+            final Command cmd = session.exec(script.toRemoteScript());
+            final CommandWatchdog.Watch watch = watchdog.watch(cmd, "script", logger);
+            try
+            {
+                pump(cmd, watch, markerHandler(script, output, watch, logger));
+                output.flush();
+                finish(cmd, watch);
+            }
+            finally
+            {
+                watch.close();
+            }
+            if (!script.isComplete() || cmd.getExitStatus() == null || cmd.getExitStatus() != 0 || null != cmd.getExitErrorMessage())
+            {
+                logger.addErrorLogEntry("SSH script failed with error code: " + cmd.getExitStatus());
+                logErrorDetails(cmd, logger);
+                final String failed = script.getCurrent() < 0 ? "script" : script.getCommands().get(script.getCurrent());
+                throw new SSHExecutionException("Failed to execute " + failed + ", return code: " + cmd.getExitStatus());
+            }
+        }
+        finally
+        {
+            session.close();
+            metrics.stop(TaskMetrics.Phase.EXECUTE, executeStarted);
+        }
+    }
+
+    /**
+     * Runs the script line by line in one interactive shell on a pseudo-terminal, answering prompts such as
+     * <code>sudo</code>'s password prompt, see {@link InteractiveShell}. Stops at the first non-zero exit status.
+     */
+    private void executeShell(final SSHClient ssh, final SshCredentials credentials, final ScriptLogger logger, final TaskMetrics metrics) throws IOException
+    {
+        final BatchScript script = new BatchScript(inlineScript);
+        final OutputLimiter output = new OutputLimiter(logger, outputPolicy);
+        logger.addBuildLogEntry("Executing " + script.getCommands().size() + " commands in an interactive shell");
+        watchdog.checkTaskDeadline();
+        final long sessionStarted = metrics.start();
+        final Session session = ssh.startSession();
+        metrics.stop(TaskMetrics.Phase.SESSION, sessionStarted);
+        final long executeStarted = metrics.start();
+        try
+        {
+            session.allocateDefaultPTY();
+            final Session.Shell shell = session.startShell();
+            final CommandWatchdog.Watch watch = watchdog.watch(shell, "shell setup", logger);
+            final InteractiveShell interactive = new InteractiveShell(shell, script, promptResponses, credentials, logger);
+            try
+            {
+                interactive.start(watch);
+                final StreamPump.LineHandler handler = markerHandler(script, output, watch, logger);
+                for (int i = 0; i < script.getCommands().size(); i++)
+                {
+                    final int exitStatus = interactive.run(i, handler, watch);
+                    if (watch.getExpiry() != null)
+                    {
+                        throw new SSHExecutionException("Command " + watch.getExpiry());
+                    }
+                    if (exitStatus != 0)
+                    {
+                        throw new SSHExecutionException("Failed to execute " + script.getCommands().get(i) + ", return code: " + exitStatus);
+                    }
+                }
+            }
+            catch (EOFException e)
+            {
+                // the watchdog closed the shell, or a command such as exit ended it
+                final String failed = script.getCurrent() < 0 ? "shell setup" : script.getCommands().get(script.getCurrent());
+                logger.addErrorLogEntry("Shell ended while running " + failed);
+                throw new SSHExecutionException(watch.getExpiry() != null ? "Command " + watch.getExpiry() : "Shell ended while running " + failed);
+            }
+            finally
+            {
+                output.flush();
+                watch.close();
+                interactive.close();
+            }
+        }
+        finally
+        {
+            session.close();
+            metrics.stop(TaskMetrics.Phase.EXECUTE, executeStarted);
+        }
+    }
+
+    /**
+     * Logs the output of a script wrapped in {@link BatchScript} markers, giving every command its own timeout and
+     * its own head and tail of output.
+     */
+    private static StreamPump.LineHandler markerHandler(final BatchScript script, final OutputLimiter output, final CommandWatchdog.Watch watch,
+            final ScriptLogger logger)
+    {
+        return new StreamPump.LineHandler()
+        {
+            @Override
+            public void line(String line, boolean stderr)
+            {
+                if (stderr)
+                {
+                    log(output, line, true);
+                    return;
+                }
+                final BatchScript.Event event = script.accept(line);
+                if (!event.getOutput().isEmpty() || event.getType() == BatchScript.EventType.OUTPUT)
+                {
+                    output.addBuildLogEntry(event.getOutput());
+                }
+                if (event.getType() != BatchScript.EventType.OUTPUT)
+                {
+                    // every command gets its own head and tail
+                    output.flush();
+                }
+                if (event.getType() == BatchScript.EventType.BEGIN)
+                {
+                    watch.restart(script.getCommands().get(event.getCommand()));
+                    logger.addBuildLogEntry("Exec: " + script.getCommands().get(event.getCommand()));
+                }
+                else if (event.getType() == BatchScript.EventType.END && event.getExitStatus() != 0)
+                {
+                    logger.addErrorLogEntry("Command " + (event.getCommand() + 1) + " exited with status "
+                            + event.getExitStatus() + ": " + script.getCommands().get(event.getCommand()));
+                }
+            }
+        };
+    }
+
+    /**
+     * Logs stdout and stderr while the command runs and returns once both streams are closed.
+     */
+    private void pump(final Command cmd, final CommandWatchdog.Watch watch, final StreamPump.LineHandler handler) throws IOException
+    {
+        final StreamPump pump = new StreamPump();
+        pump.start(cmd.getInputStream(), cmd.getErrorStream(), handler);
+        try
+        {
+            pump.await();
+        }
+        catch (InterruptedException e)
+        {
+            // Bamboo interrupts the task when the build is stopped, do not leave the command running
+            watch.abort("was stopped because the build was stopped");
+            pump.cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading command output");
+        }
+    }
+
+    /**
+     * Collects the exit status once output has ended, failing if the watchdog had to end the command.
+     */
+    private void finish(final Command cmd, final CommandWatchdog.Watch watch) throws IOException
+    {
+        watch.close();
+        cmd.join((int) CommandWatchdog.GRACE_SECONDS, TimeUnit.SECONDS);
+        if (watch.getExpiry() != null)
+        {
+            throw new SSHExecutionException("Command " + watch.getExpiry());
+        }
+    }
+
+    private static void log(final ScriptLogger logger, final String line, final boolean stderr)
+    {
+        if (stderr)
+        {
+            logger.addErrorLogEntry(line);
+        }
+        else
+        {
+            logger.addBuildLogEntry(line);
+        }
+    }
+
+    private void logErrorDetails(final Command cmd, final ScriptLogger logger)
+    {
+        // stderr has already been logged line by line as it arrived
+        if (null != cmd.getExitErrorMessage())
+        {
+            logger.addErrorLogEntry("Error Details (if any): " + cmd.getExitErrorMessage());
+        }
+    }
+}
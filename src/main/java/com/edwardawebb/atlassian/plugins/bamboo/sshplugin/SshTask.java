@@ -1,17 +1,11 @@
 package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.security.PublicKey;
-import java.util.concurrent.TimeUnit;
-
-import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.common.IOUtils;
-import net.schmizz.sshj.connection.channel.direct.Session;
-import net.schmizz.sshj.connection.channel.direct.Session.Command;
-import net.schmizz.sshj.transport.verification.HostKeyVerifier;
+import java.util.List;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.jetbrains.annotations.NotNull;
 
 import com.atlassian.bamboo.build.logger.BuildLogger;
@@ -34,96 +28,96 @@ public class SshTask implements CommonTaskType {
                 TaskResultBuilder taskResultBuilder = TaskResultBuilder
                                 .newBuilder(taskContext);
 
-                boolean failure = false;
                 final BuildLogger buildLogger = taskContext.getBuildLogger();
 
                 final ConfigurationMap config = taskContext.getConfigurationMap();
 
-                final String host = config.get("host");
                 final String username = config.get("username");
-                String decrypted;
-                try{
-                         decrypted =encryptionService.decrypt(config.get("password"));
-                }catch(EncryptionException e){
-                        buildLogger.addBuildLogEntry("Decryption of SSH password failed, will attempt to use value as it exists in DB.");
-                        decrypted = config.get("password");
-                }
-                final String password = decrypted;
+                final SshCredentials credentials = CredentialCache.getInstance().get(AuthType.PASSWORD,
+                                config.get("password"), null, null, new CredentialCache.Decrypter() {
+                                        @Override
+                                        public String decrypt(String encrypted) {
+                                                if (encrypted == null) {
+                                                        return null;
+                                                }
+                                                try {
+                                                        return encryptionService.decrypt(encrypted);
+                                                } catch (EncryptionException e) {
+                                                        buildLogger.addBuildLogEntry("Decryption of SSH password failed, will attempt to use value as it exists in DB.");
+                                                        return encrypted;
+                                                }
+                                        }
+                                });
 
                 final String inlineScript = config.get("inlineScript");
-                final long timeout = config.getAsLong("timeout");
-
-                final SSHClient ssh = new SSHClient();
+                // the task budget starts now and is shared by every host
+                final CommandWatchdog watchdog = new CommandWatchdog(config.getAsLong("timeout"),
+                                NumberUtils.toLong(config.get("taskTimeout"), 0));
+                final ExecutionMode executionMode = ExecutionMode.fromConfig(config.get(ExecutionMode.CONFIG_KEY));
 
-                buildLogger.addBuildLogEntry("Attempting SSH connection");
-        
-                ssh.addHostKeyVerifier(new HostKeyVerifier() {
-                        @Override
-                        public boolean verify(final String s, final int i,
-                                        final PublicKey publicKey) {
-                                return true;
-                        }
-                });
+                int portNumber = BaseSshTaskConfigurator.DEFAULT_SSH_PORT_NUMBER;
+                if (StringUtils.isNotBlank(config.get("port"))) {
+                        portNumber = NumberUtils.toInt(config.get("port"), BaseSshTaskConfigurator.DEFAULT_SSH_PORT_NUMBER);
+                }
 
+                final List<HostList.Host> hosts;
                 try {
-                        ssh.connect(host);
-                        ssh.authPassword(username, password);
-                        buildLogger.addBuildLogEntry("Connected to " + host + " as " + username);
+                        final String hostsFile = config.get("hostsFile");
+                        hosts = HostList.resolve(config.get("host"),
+                                        StringUtils.isBlank(hostsFile) ? null : new File(taskContext.getWorkingDirectory(), hostsFile.trim()),
+                                        portNumber);
                 } catch (IOException e) {
-                        buildLogger.addErrorLogEntry("Failed to connect to host", e);
+                        buildLogger.addErrorLogEntry("Unable to read hosts file", e);
                         return taskResultBuilder.failedWithError().build();
                 }
-                
-                
-                try{
-                        
-					for (String commandLine : inlineScript.split("\n")){
-						buildLogger.addBuildLogEntry("Exec: " + commandLine);
-						final Session session = ssh.startSession();
-						try{
-								final Command cmd = session.exec(commandLine);
-								
-								BufferedReader in = new BufferedReader(new InputStreamReader(cmd.getInputStream()));
-								String line = null;
-								while((line = in.readLine()) != null) {
-										buildLogger.addBuildLogEntry(line);
-								}
-								cmd.join((int)timeout, TimeUnit.SECONDS);
-								if ( cmd.getExitStatus() != 0 || null != cmd.getExitErrorMessage() ){
-										buildLogger.addErrorLogEntry("SSH script failed with error code: "
-														+ cmd.getExitStatus());
-										String error = cmd.getExitErrorMessage();
-										if ( null == error){
-												error = IOUtils.readFully(cmd.getErrorStream()).toString();
-										}
-										buildLogger.addErrorLogEntry("Error Details (if any): "
-														+ error);
-										
-										throw new SSHExecutionException("Failed to execute " + commandLine + ", return code: " + cmd.getExitStatus());
-								}                                       
-						} finally {
-								session.close();
-						}
-						taskResultBuilder = taskResultBuilder.success();                        
-						buildLogger.addBuildLogEntry("Successfully executed SSH commands");
-					}
-                        
-                } catch (IOException e) {
-                        taskResultBuilder = taskResultBuilder.failedWithError();
-                        e.printStackTrace();
-                }catch (SSHExecutionException e) {
-                        taskResultBuilder = taskResultBuilder.failedWithError();                        
-                }finally {
-                        try {
-                                ssh.disconnect();
-								ssh.close();
-                                buildLogger.addBuildLogEntry("Disconnected from server");
-                        } catch (IOException e) {
-                                taskResultBuilder = taskResultBuilder.failedWithError();
-                                e.printStackTrace();
+                if (hosts.isEmpty()) {
+                        buildLogger.addErrorLogEntry("No hosts to connect to");
+                        return taskResultBuilder.failedWithError().build();
+                }
+
+                final OutputLimiter.Policy outputPolicy = OutputLimiter.Policy.fromConfig(config.get("outputHeadLines"),
+                                config.get("outputTailLines"), config.get("outputKeepPattern"));
+                final PromptResponses promptResponses;
+                try {
+                        promptResponses = PromptResponses.parse(executionMode == ExecutionMode.SHELL ? config.get(PromptResponses.CONFIG_KEY) : null);
+                } catch (IllegalArgumentException e) {
+                        buildLogger.addErrorLogEntry("Invalid prompt responses: " + e.getMessage());
+                        return taskResultBuilder.failedWithError().build();
+                }
+                final SshScriptRunner runner = new SshScriptRunner(inlineScript, executionMode, watchdog, outputPolicy, promptResponses);
+                final TransportSettings transport = TransportSettings.fromConfig(config);
+                // script output is too small to measure, adaptive tasks follow what transfers to the host have shown
+                final boolean adaptiveCompression = CompressionMode.fromConfig(config.get(CompressionMode.CONFIG_KEY)) == CompressionMode.ADAPTIVE;
+                final JumpHost jumpHost = JumpHost.fromConfig(config, username);
+                final TaskMetrics metrics = new TaskMetrics();
+                final MultiHostRunner.HostTask hostTask = new MultiHostRunner.HostTask() {
+                        @Override
+                        public boolean run(HostList.Host host, ScriptLogger logger) {
+                                final SshConnectionKey connectionKey = new SshConnectionKey(host.getName(), host.getPort(), username, credentials.getFingerprint(),
+                                                adaptiveCompression ? transport.withCompression(CompressionAdvisor.getInstance().isCompressionPreferred(host.getName(), host.getPort())) : transport,
+                                                jumpHost);
+                                return runner.run(connectionKey, credentials, logger, metrics);
                         }
+                };
+
+                final ScriptLogger logger = new BuildLogScriptLogger(buildLogger);
+                final boolean success;
+                if (hosts.size() == 1) {
+                        success = hostTask.run(hosts.get(0), logger);
+                } else {
+                        final MultiHostRunner fanOut = new MultiHostRunner(
+                                        NumberUtils.toInt(config.get("parallelism"), MultiHostRunner.DEFAULT_PARALLELISM),
+                                        config.get("maxFailedHosts"));
+                        success = fanOut.run(hosts, hostTask, logger);
+                }
+
+                buildLogger.addBuildLogEntry(metrics.summary());
+                taskResultBuilder.setCustomResultData(metrics.toResultData());
+                if (success) {
+                        taskResultBuilder = taskResultBuilder.success();
+                } else {
+                        taskResultBuilder = taskResultBuilder.failedWithError();
                 }
-                
                 return taskResultBuilder.build();
         }
 
@@ -133,4 +127,4 @@ public class SshTask implements CommonTaskType {
             this.encryptionService = encryptionService;
         }
         
-}
\ No newline at end of file
+}
@@ -1,9 +1,13 @@
 package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
 
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -26,8 +30,15 @@ public class SshTaskConfigurator extends AbstractTaskConfigurator
     public static final String EDIT_MODE = "edit";
     public static final String MODE = "mode";
 
-    private static final List<String> FIELDS_TO_COPY_ALWAYS = ImmutableList.of("host", "username","timeout","inlineScript");
-    private static final List<String> FIELDS_TO_COPY_SECURE = ImmutableList.of("host", "username","timeout","inlineScript","password");
+    private static final List<String> FIELDS_TO_COPY_ALWAYS = ImmutableList.of("host", "username","timeout","inlineScript", ExecutionMode.CONFIG_KEY,
+            PromptResponses.CONFIG_KEY, "hostsFile", "parallelism", "maxFailedHosts", "outputHeadLines", "outputTailLines", "outputKeepPattern", "taskTimeout",
+            "customCiphers", "customMacs", "customKex", TransportProfile.CONFIG_KEY, CompressionMode.CONFIG_KEY,
+            JumpHost.HOST_KEY, JumpHost.PORT_KEY, JumpHost.USERNAME_KEY);
+    private static final List<String> FIELDS_TO_COPY_SECURE = ImmutableList.of("host", "username","timeout","inlineScript","password", ExecutionMode.CONFIG_KEY,
+            PromptResponses.CONFIG_KEY, "hostsFile", "parallelism", "maxFailedHosts", "outputHeadLines", "outputTailLines", "outputKeepPattern", "taskTimeout",
+            "customCiphers", "customMacs", "customKex", JumpHost.HOST_KEY, JumpHost.PORT_KEY, JumpHost.USERNAME_KEY);
+    private static final Pattern FAILURE_THRESHOLD = Pattern.compile("\\d+%?");
+    private static final EnumSet<ExecutionMode> EXECUTION_MODES = EnumSet.allOf(ExecutionMode.class);
     
 
 
@@ -73,6 +84,15 @@ public class SshTaskConfigurator extends AbstractTaskConfigurator
 
         context.put("host", "example.com");
         context.put("username", "release");
+        context.put(ExecutionMode.CONFIG_KEY, ExecutionMode.PER_COMMAND.getKey());
+        context.put("executionModes", EXECUTION_MODES);
+        context.put(PromptResponses.CONFIG_KEY, PromptResponses.DEFAULT_RULES);
+        context.put("parallelism", MultiHostRunner.DEFAULT_PARALLELISM);
+        context.put("outputKeepPattern", "(?i)error|fatal|fail");
+        context.put(TransportProfile.CONFIG_KEY, TransportProfile.COMPAT.getKey());
+        context.put("transportProfiles", BaseSshTaskConfigurator.TRANSPORT_PROFILES);
+        context.put(CompressionMode.CONFIG_KEY, CompressionMode.OFF.getKey());
+        context.put("compressionModes", BaseSshTaskConfigurator.COMPRESSION_MODES);
         context.put(MODE, CREATE_MODE);
     }
 
@@ -81,6 +101,9 @@ public class SshTaskConfigurator extends AbstractTaskConfigurator
     {
         super.populateContextForEdit(context, taskDefinition);
         taskConfiguratorHelper.populateContextWithConfiguration(context, taskDefinition, FIELDS_TO_COPY_SECURE);
+        context.put(ExecutionMode.CONFIG_KEY, ExecutionMode.fromConfig(taskDefinition.getConfiguration().get(ExecutionMode.CONFIG_KEY)).getKey());
+        context.put("executionModes", EXECUTION_MODES);
+        BaseSshTaskConfigurator.populateTransportContext(context, taskDefinition);
         context.put(MODE, EDIT_MODE);
     }
 
@@ -99,11 +122,57 @@ public class SshTaskConfigurator extends AbstractTaskConfigurator
         super.validate(params, errorCollection);
 
         String host = params.getString("host");
-        if (StringUtils.isEmpty(host))
+        if (StringUtils.isEmpty(host) && StringUtils.isEmpty(params.getString("hostsFile")))
         {
             errorCollection.addError("host", "You must specify a host to connect to");
         }
 
+        String parallelism = params.getString("parallelism");
+        if (StringUtils.isNotEmpty(parallelism) && NumberUtils.toInt(parallelism, 0) < 1)
+        {
+            errorCollection.addError("parallelism", "Parallelism must be a positive number of hosts");
+        }
+
+        String maxFailedHosts = params.getString("maxFailedHosts");
+        if (StringUtils.isNotEmpty(maxFailedHosts) && !FAILURE_THRESHOLD.matcher(maxFailedHosts.trim()).matches())
+        {
+            errorCollection.addError("maxFailedHosts", "Specify a number of hosts, or a percentage such as 10%");
+        }
+
+        for (String limit : new String[] {"outputHeadLines", "outputTailLines"})
+        {
+            String lines = params.getString(limit);
+            if (StringUtils.isNotEmpty(lines) && (!NumberUtils.isDigits(lines.trim()) || NumberUtils.toInt(lines.trim(), -1) < 0))
+            {
+                errorCollection.addError(limit, "Specify a number of lines, or leave empty to keep every line");
+            }
+        }
+
+        String keepPattern = params.getString("outputKeepPattern");
+        if (StringUtils.isNotEmpty(keepPattern))
+        {
+            try
+            {
+                Pattern.compile(keepPattern);
+            }
+            catch (PatternSyntaxException e)
+            {
+                errorCollection.addError("outputKeepPattern", "Not a valid regular expression: " + e.getDescription());
+            }
+        }
+
+        if (ExecutionMode.SHELL.getKey().equals(params.getString(ExecutionMode.CONFIG_KEY)))
+        {
+            String promptError = PromptResponses.validate(params.getString(PromptResponses.CONFIG_KEY));
+            if (promptError != null)
+            {
+                errorCollection.addError(PromptResponses.CONFIG_KEY, promptError);
+            }
+        }
+
+        BaseSshTaskConfigurator.validateTransport(params, errorCollection);
+        BaseSshTaskConfigurator.validateJumpHost(params, errorCollection);
+
         String username = params.getString("username");
         if (StringUtils.isEmpty(username))
         {
@@ -121,6 +190,12 @@ public class SshTaskConfigurator extends AbstractTaskConfigurator
         {
             errorCollection.addError("timeout", "Specify the number of seconds to wait before giving up");
         }
+
+        String taskTimeout = params.getString("taskTimeout");
+        if (StringUtils.isNotEmpty(taskTimeout) && !NumberUtils.isDigits(taskTimeout.trim()))
+        {
+            errorCollection.addError("taskTimeout", "Specify the number of seconds the whole task may take, or leave empty");
+        }
         
         String commandChange = params.getString("change_command");
         if ("true".equals(commandChange))
@@ -0,0 +1,245 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Drains a remote command's stdout and stderr at the same time and hands the lines to a {@link LineHandler}
+ * on a separate thread.
+ * <p>
+ * Reading the streams one after the other stalls as soon as the unread one fills its channel window: the remote
+ * process blocks on write and never closes the stream being read. Here each stream has its own reader, both feed
+ * one bounded queue in arrival order, and a third thread delivers the lines, so a slow build log does not hold up
+ * the readers until the queue is full.
+ * <p>
+ * Once delivery stops early, because the command was abandoned or the handler failed, the readers give up too instead
+ * of waiting for room in a queue nobody takes from any more.
+ */
+public class StreamPump
+{
+    public static final int DEFAULT_CAPACITY = 10000;
+    private static final long OFFER_MILLIS = 100;
+
+    private static final Line END_OF_STREAM = new Line(null, false);
+    private static final ExecutorService THREADS = Executors.newCachedThreadPool(new ThreadFactory()
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "ssh-stream-pump-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final BlockingQueue<Line> queue;
+    private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+    private final Future<?>[] readers = new Future<?>[2];
+    private volatile boolean stopped;
+    private Future<?> dispatcher;
+
+    public StreamPump()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public StreamPump(int capacity)
+    {
+        this.queue = new ArrayBlockingQueue<Line>(capacity);
+    }
+
+    /**
+     * Starts reading both streams, returns immediately.
+     */
+    public void start(final InputStream stdout, final InputStream stderr, final LineHandler handler)
+    {
+        readers[0] = THREADS.submit(reader(stdout, false));
+        readers[1] = THREADS.submit(reader(stderr, true));
+        dispatcher = THREADS.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                int open = 2;
+                try
+                {
+                    while (open > 0)
+                    {
+                        final Line line = queue.take();
+                        if (line == END_OF_STREAM)
+                        {
+                            open--;
+                        }
+                        else
+                        {
+                            handler.line(line.text, line.stderr);
+                        }
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                finally
+                {
+                    if (open > 0)
+                    {
+                        // the handler failed or delivery was cancelled, release readers waiting for room
+                        stop();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Blocks until both streams reached EOF and every line was delivered.
+     *
+     * @throws IOException if either stream could not be read
+     */
+    public void await() throws IOException, InterruptedException
+    {
+        try
+        {
+            dispatcher.get();
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+        if (failure.get() != null)
+        {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Stops delivering lines and reading the streams, used when the command is abandoned.
+     */
+    public void cancel()
+    {
+        stop();
+        if (dispatcher != null)
+        {
+            dispatcher.cancel(true);
+        }
+        for (Future<?> reader : readers)
+        {
+            if (reader != null)
+            {
+                reader.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @return true once neither stream is read any more
+     */
+    boolean isDrained()
+    {
+        for (Future<?> reader : readers)
+        {
+            if (reader == null || !reader.isDone())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void stop()
+    {
+        stopped = true;
+        queue.clear();
+    }
+
+    /**
+     * Waits for room in the queue unless delivery has stopped, in which case the line is dropped.
+     */
+    private void offer(Line line) throws InterruptedException
+    {
+        while (!stopped && !queue.offer(line, OFFER_MILLIS, TimeUnit.MILLISECONDS))
+        {
+            // the dispatcher is behind, try again
+        }
+    }
+
+    private Runnable reader(final InputStream stream, final boolean stderr)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    final BufferedReader in = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+                    String line;
+                    while (!stopped && (line = in.readLine()) != null)
+                    {
+                        offer(new Line(line, stderr));
+                    }
+                }
+                catch (IOException e)
+                {
+                    failure.compareAndSet(null, e);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                finally
+                {
+                    try
+                    {
+                        offer(END_OF_STREAM);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Receives lines on the pump's delivery thread, one at a time and in the order they were read.
+     */
+    public interface LineHandler
+    {
+        void line(String line, boolean stderr);
+    }
+
+    private static final class Line
+    {
+        private final String text;
+        private final boolean stderr;
+
+        Line(String text, boolean stderr)
+        {
+            this.text = text;
+            this.stderr = stderr;
+        }
+    }
+}
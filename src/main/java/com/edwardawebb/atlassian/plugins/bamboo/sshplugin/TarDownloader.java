@@ -0,0 +1,153 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.IOUtils;
+import net.schmizz.sshj.connection.channel.direct.Session;
+
+/**
+ * Streams a whole remote tree as one <code>tar</code> archive over a single exec channel and unpacks it while it arrives.
+ * SCP and SFTP pay at least one round trip per file, which dominates for trees of many small files; here the only
+ * per-file cost is a 512 byte header in a sequential stream.
+ */
+public class TarDownloader implements RemoteDownloader
+{
+    private static final int STREAM_BUFFER = 64 * 1024;
+    private static final int EXIT_TIMEOUT_SECONDS = 30;
+    // a pipeline exits with gzip's status, tar's own is reported on stderr behind this
+    static final String TAR_STATUS = "__BAMBOO_TAR_STATUS";
+
+    private final boolean gzip;
+    private final ScriptLogger logger;
+    private final LocalFileWriter writer;
+
+    /**
+     * @param gzip compress on the remote side with <code>gzip -1</code>, worth it on links slower than the remote CPU
+     */
+    public TarDownloader(boolean gzip, ScriptLogger logger)
+    {
+        this(gzip, logger, LocalFileWriter.DEFAULT);
+    }
+
+    public TarDownloader(boolean gzip, ScriptLogger logger, LocalFileWriter writer)
+    {
+        this.gzip = gzip;
+        this.logger = logger;
+        this.writer = writer;
+    }
+
+    @Override
+    public void download(SSHClient ssh, String remotePath, File localDirectory) throws IOException
+    {
+        final String command = command(remotePath, gzip);
+        final long started = System.nanoTime();
+        final Session session = ssh.startSession();
+        try
+        {
+            final Session.Command cmd = session.exec(command);
+            InputStream in = new BufferedInputStream(cmd.getInputStream(), STREAM_BUFFER);
+            if (gzip)
+            {
+                in = new GZIPInputStream(in, STREAM_BUFFER);
+            }
+            localDirectory.mkdirs();
+            final TarStreamExtractor extractor = new TarStreamExtractor(localDirectory, writer);
+            try
+            {
+                extractor.extract(in);
+            }
+            catch (IOException e)
+            {
+                throw new IOException(e.getMessage() + describeError(errors(cmd)), e);
+            }
+            // drain the end-of-archive padding so the remote tar can exit cleanly
+            IOUtils.readFully(in);
+            cmd.join(EXIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            final String errors = errors(cmd);
+            if (cmd.getExitStatus() == null || cmd.getExitStatus() != 0)
+            {
+                throw new IOException("Remote " + (gzip ? "tar | gzip" : "tar") + " exited with status " + cmd.getExitStatus() + describeError(errors));
+            }
+            if (gzip)
+            {
+                final Integer tarStatus = tarStatus(errors);
+                if (tarStatus == null || tarStatus != 0)
+                {
+                    // the archive may have been cut short or be missing files, even though gzip was happy
+                    throw new IOException("Remote tar exited with status " + tarStatus + describeError(errors));
+                }
+            }
+            logger.addBuildLogEntry("Unpacked " + extractor.getFiles() + " files, "
+                    + SftpDownloader.describeThroughput(remotePath, extractor.getBytes(), System.nanoTime() - started));
+        }
+        finally
+        {
+            session.close();
+        }
+    }
+
+    static String command(String remotePath, boolean gzip)
+    {
+        String path = remotePath.length() > 1 && remotePath.endsWith("/") ? remotePath.substring(0, remotePath.length() - 1) : remotePath;
+        final int slash = path.lastIndexOf('/');
+        final String parent = slash < 0 ? "." : slash == 0 ? "/" : path.substring(0, slash);
+        final String name = slash < 0 ? path : path.substring(slash + 1);
+        final String tar = "tar cf - " + RemoteShell.quote(name.isEmpty() ? "." : name);
+        return "cd " + RemoteShell.quote(parent) + " && "
+                + (gzip ? "{ " + tar + "; echo \"" + TAR_STATUS + " $?\" >&2; } | gzip -1" : tar);
+    }
+
+    /**
+     * @return the exit status tar reported on stderr, null if it never got to report one
+     */
+    static Integer tarStatus(String errors)
+    {
+        Integer status = null;
+        for (String line : errors.split("\n"))
+        {
+            if (line.startsWith(TAR_STATUS + " "))
+            {
+                try
+                {
+                    status = Integer.valueOf(line.substring(TAR_STATUS.length() + 1).trim());
+                }
+                catch (NumberFormatException e)
+                {
+                    status = null;
+                }
+            }
+        }
+        return status;
+    }
+
+    private static String errors(Session.Command cmd)
+    {
+        try
+        {
+            return IOUtils.readFully(cmd.getErrorStream()).toString();
+        }
+        catch (IOException e)
+        {
+            return "";
+        }
+    }
+
+    static String describeError(String errors)
+    {
+        final StringBuilder stderr = new StringBuilder();
+        for (String line : errors.split("\n"))
+        {
+            if (!line.startsWith(TAR_STATUS + " ") && !line.trim().isEmpty())
+            {
+                stderr.append(stderr.length() == 0 ? "" : "\n").append(line.trim());
+            }
+        }
+        return stderr.length() == 0 ? "" : " (" + stderr + ")";
+    }
+}
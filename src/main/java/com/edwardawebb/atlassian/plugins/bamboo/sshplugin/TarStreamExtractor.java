@@ -0,0 +1,334 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Unpacks a tar stream straight into a directory while it is being read, so no archive is ever written locally.
+ * Understands ustar, GNU long names and pax path headers, which covers what GNU tar and busybox produce.
+ * Entries that would end up outside the destination directory are rejected, and so are symbolic links pointing
+ * outside of it, which later entries could otherwise be written through. Leading slashes are dropped like tar does.
+ */
+public class TarStreamExtractor
+{
+    private static final int BLOCK = 512;
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    private final File destination;
+    private final String canonicalDestination;
+    private final byte[] header = new byte[BLOCK];
+    private final byte[] buffer = new byte[COPY_BUFFER];
+    private final LocalFileWriter writer;
+    private long files;
+    private long bytes;
+
+    public TarStreamExtractor(File destination) throws IOException
+    {
+        this(destination, LocalFileWriter.DEFAULT);
+    }
+
+    public TarStreamExtractor(File destination, LocalFileWriter writer) throws IOException
+    {
+        this.destination = destination;
+        this.canonicalDestination = destination.getCanonicalPath();
+        this.writer = writer;
+    }
+
+    /**
+     * Reads the stream up to the end-of-archive marker.
+     *
+     * @throws EOFException if the stream ends before the archive does, e.g. because the remote tar failed
+     */
+    public void extract(InputStream in) throws IOException
+    {
+        String longName = null;
+        String longLink = null;
+        while (true)
+        {
+            readFully(in, header, BLOCK);
+            if (isZeroBlock(header))
+            {
+                return;
+            }
+            final char type = (char) header[156];
+            final long size = size(header);
+            String name = longName != null ? longName : name(header);
+            String link = longLink != null ? longLink : string(header, 157, 100);
+            longName = null;
+            longLink = null;
+
+            if (type == 'L' || type == 'K')
+            {
+                final String value = trimNul(new String(readEntry(in, size), StandardCharsets.UTF_8));
+                if (type == 'L')
+                {
+                    longName = value;
+                }
+                else
+                {
+                    longLink = value;
+                }
+                continue;
+            }
+            if (type == 'x')
+            {
+                final String[] pax = pax(readEntry(in, size));
+                longName = pax[0];
+                longLink = pax[1];
+                continue;
+            }
+            if (type == 'g')
+            {
+                readEntry(in, size);
+                continue;
+            }
+
+            final File target = resolve(name);
+            if (type == '5')
+            {
+                target.mkdirs();
+            }
+            else if (type == '2')
+            {
+                checkLink(name, target, link);
+                target.getParentFile().mkdirs();
+                Files.deleteIfExists(target.toPath());
+                Files.createSymbolicLink(target.toPath(), Paths.get(link));
+            }
+            else if (type == '0' || type == '\0' || type == '7')
+            {
+                writeFile(in, target, size, (int) octal(header, 100, 8));
+                target.setLastModified(octal(header, 136, 12) * 1000L);
+                files++;
+                bytes += size;
+                continue;
+            }
+            // hard links, devices and fifos are not worth recreating in a build workspace
+            skip(in, padded(size));
+        }
+    }
+
+    public long getFiles()
+    {
+        return files;
+    }
+
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    private File resolve(String name) throws IOException
+    {
+        final File target = new File(destination, name);
+        final String path = target.getCanonicalPath();
+        if (!path.equals(canonicalDestination) && !path.startsWith(canonicalDestination + File.separator))
+        {
+            throw new IOException("Refusing to extract '" + name + "' outside of " + destination);
+        }
+        return target;
+    }
+
+    private void checkLink(String name, File target, String link) throws IOException
+    {
+        final File linked = new File(link).isAbsolute() ? new File(link) : new File(target.getParentFile(), link);
+        final String path = linked.getCanonicalPath();
+        if (!path.equals(canonicalDestination) && !path.startsWith(canonicalDestination + File.separator))
+        {
+            throw new IOException("Refusing to link '" + name + "' to '" + link + "' outside of " + destination);
+        }
+    }
+
+    private void writeFile(InputStream in, File target, long size, int mode) throws IOException
+    {
+        target.getParentFile().mkdirs();
+        final OutputStream out = writer.create(target, size);
+        try
+        {
+            long remaining = size;
+            while (remaining > 0)
+            {
+                final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0)
+                {
+                    throw new EOFException("Tar stream ended inside " + target);
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if ((mode & 0100) != 0)
+        {
+            target.setExecutable(true, (mode & 011) == 0);
+        }
+        skip(in, padded(size) - size);
+    }
+
+    private byte[] readEntry(InputStream in, long size) throws IOException
+    {
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IOException("Tar header entry of " + size + " bytes is too large");
+        }
+        final byte[] data = new byte[(int) size];
+        readFully(in, data, data.length);
+        skip(in, padded(size) - size);
+        return data;
+    }
+
+    private static String[] pax(byte[] data) throws IOException
+    {
+        // records are "<length> <key>=<value>\n", the length counts the whole record
+        final String[] result = new String[2];
+        int offset = 0;
+        while (offset < data.length)
+        {
+            int space = offset;
+            while (space < data.length && data[space] != ' ')
+            {
+                space++;
+            }
+            if (space >= data.length)
+            {
+                break;
+            }
+            final int length;
+            try
+            {
+                length = Integer.parseInt(new String(data, offset, space - offset, StandardCharsets.US_ASCII));
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IOException("Malformed pax header record at offset " + offset);
+            }
+            if (length < space - offset + 2 || offset + length > data.length)
+            {
+                throw new IOException("Malformed pax header record at offset " + offset);
+            }
+            final String record = new String(data, space + 1, length - (space - offset) - 2, StandardCharsets.UTF_8);
+            final int equals = record.indexOf('=');
+            if (record.startsWith("path="))
+            {
+                result[0] = record.substring(equals + 1);
+            }
+            else if (record.startsWith("linkpath="))
+            {
+                result[1] = record.substring(equals + 1);
+            }
+            offset += length;
+        }
+        return result;
+    }
+
+    private static String name(byte[] header)
+    {
+        final String name = string(header, 0, 100);
+        final String magic = string(header, 257, 6);
+        final String prefix = magic.startsWith("ustar") && header[263] == '0' ? string(header, 345, 155) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    private static long size(byte[] header)
+    {
+        if ((header[124] & 0x80) != 0)
+        {
+            // GNU base-256 encoding for entries of 8GB and more
+            long size = 0;
+            for (int i = 125; i < 136; i++)
+            {
+                size = (size << 8) | (header[i] & 0xff);
+            }
+            return size;
+        }
+        return octal(header, 124, 12);
+    }
+
+    private static long octal(byte[] header, int offset, int length)
+    {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++)
+        {
+            final byte b = header[i];
+            if (b >= '0' && b <= '7')
+            {
+                value = (value << 3) + (b - '0');
+            }
+            else if (b == 0 || (b == ' ' && value > 0))
+            {
+                break;
+            }
+        }
+        return value;
+    }
+
+    private static String string(byte[] header, int offset, int length)
+    {
+        int end = offset;
+        while (end < offset + length && header[end] != 0)
+        {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static String trimNul(String value)
+    {
+        final int nul = value.indexOf('\0');
+        return nul < 0 ? value : value.substring(0, nul);
+    }
+
+    private static boolean isZeroBlock(byte[] block)
+    {
+        for (byte b : block)
+        {
+            if (b != 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long padded(long size)
+    {
+        return (size + BLOCK - 1) / BLOCK * BLOCK;
+    }
+
+    private static void readFully(InputStream in, byte[] target, int length) throws IOException
+    {
+        int offset = 0;
+        while (offset < length)
+        {
+            final int read = in.read(target, offset, length - offset);
+            if (read < 0)
+            {
+                throw new EOFException("Tar stream ended before the end-of-archive marker");
+            }
+            offset += read;
+        }
+    }
+
+    private void skip(InputStream in, long count) throws IOException
+    {
+        long remaining = count;
+        while (remaining > 0)
+        {
+            final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0)
+            {
+                throw new EOFException("Tar stream ended before the end-of-archive marker");
+            }
+            remaining -= read;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time spent per phase of a task's SSH work, plus what was transferred, so slow deploys can be broken down
+ * into network, handshake and remote time and charted across builds.
+ * <p>
+ * Phases are summed over every connection, session and worker thread of the task, so with several hosts or
+ * transfer threads a phase can add up to more than the task's wall clock time.
+ * Published as custom result data under <code>ssh.*</code> keys, see {@link #toResultData()}.
+ */
+public class TaskMetrics
+{
+    public enum Phase
+    {
+        RESOLVE("dns"),
+        POOL_WAIT("poolWait"),
+        CONNECT("connect"),
+        KEY_EXCHANGE("kex"),
+        AUTHENTICATE("auth"),
+        SESSION("session"),
+        EXECUTE("exec"),
+        TRANSFER("transfer");
+
+        private final String key;
+
+        Phase(String key)
+        {
+            this.key = key;
+        }
+
+        public String getKey()
+        {
+            return key;
+        }
+    }
+
+    public static final String RESULT_DATA_PREFIX = "ssh.";
+
+    private final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger files = new AtomicInteger();
+    private final AtomicInteger connectionsOpened = new AtomicInteger();
+    private final AtomicInteger connectionsReused = new AtomicInteger();
+
+    /**
+     * @return a start time to hand to {@link #stop(Phase, long)}
+     */
+    public long start()
+    {
+        return System.nanoTime();
+    }
+
+    public void stop(Phase phase, long started)
+    {
+        nanos.addAndGet(phase.ordinal(), System.nanoTime() - started);
+    }
+
+    public long getMillis(Phase phase)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(nanos.get(phase.ordinal()));
+    }
+
+    public void connectionOpened()
+    {
+        connectionsOpened.incrementAndGet();
+    }
+
+    public void connectionReused()
+    {
+        connectionsReused.incrementAndGet();
+    }
+
+    /**
+     * Counts a file sent or written, once per file however many attempts it takes.
+     */
+    public void countFile()
+    {
+        files.incrementAndGet();
+    }
+
+    /**
+     * Counts bytes where they are sent or written, so a retry only adds what it transferred itself.
+     */
+    public void countBytes(long count)
+    {
+        bytes.addAndGet(count);
+    }
+
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+
+    public int getFiles()
+    {
+        return files.get();
+    }
+
+    /**
+     * @return every phase in milliseconds and the transfer counters, always the same keys so builds chart alike
+     */
+    public Map<String, String> toResultData()
+    {
+        final Map<String, String> data = new LinkedHashMap<String, String>();
+        for (Phase phase : Phase.values())
+        {
+            data.put(RESULT_DATA_PREFIX + phase.getKey() + "Ms", Long.toString(getMillis(phase)));
+        }
+        data.put(RESULT_DATA_PREFIX + "connectionsOpened", Integer.toString(connectionsOpened.get()));
+        data.put(RESULT_DATA_PREFIX + "connectionsReused", Integer.toString(connectionsReused.get()));
+        data.put(RESULT_DATA_PREFIX + "files", Integer.toString(getFiles()));
+        data.put(RESULT_DATA_PREFIX + "bytes", Long.toString(getBytes()));
+        data.put(RESULT_DATA_PREFIX + "transferKBps", Long.toString(kilobytesPerSecond()));
+        return data;
+    }
+
+    /**
+     * @return one line for the build log, leaving out phases that did not happen
+     */
+    public String summary()
+    {
+        final StringBuilder line = new StringBuilder("SSH timings:");
+        for (Phase phase : Phase.values())
+        {
+            if (nanos.get(phase.ordinal()) > 0)
+            {
+                line.append(' ').append(phase.getKey()).append(' ').append(getMillis(phase)).append(" ms,");
+            }
+        }
+        line.append(' ').append(connectionsOpened.get()).append(" new / ").append(connectionsReused.get()).append(" reused connections");
+        if (getFiles() > 0)
+        {
+            line.append(", ").append(getFiles()).append(" files, ").append(getBytes()).append(" bytes at ")
+                    .append(kilobytesPerSecond()).append(" KB/s");
+        }
+        return line.toString();
+    }
+
+    private long kilobytesPerSecond()
+    {
+        final long transferNanos = nanos.get(Phase.TRANSFER.ordinal());
+        return transferNanos <= 0 ? 0 : (long) (getBytes() / 1024.0 / (transferNanos / 1e9));
+    }
+}
@@ -0,0 +1,38 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+public enum TransferEngine
+{
+    SCP("SCP"),
+    SFTP("SFTP with pipelined reads"),
+    TAR("Single tar stream (many small files)");
+
+    public static final String CONFIG_KEY = "transferEngine";
+    private final String display;
+
+    TransferEngine(String display)
+    {
+        this.display = display;
+    }
+
+    public String getKey()
+    {
+        return name();
+    }
+
+    public String getDisplayName()
+    {
+        return display;
+    }
+
+    /**
+     * Tasks saved before the engine could be chosen used SCP.
+     */
+    public static TransferEngine fromConfig(String value)
+    {
+        if (value == null || value.trim().isEmpty())
+        {
+            return SCP;
+        }
+        return valueOf(value.trim());
+    }
+}
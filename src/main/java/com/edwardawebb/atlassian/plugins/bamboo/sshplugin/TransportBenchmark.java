@@ -0,0 +1,180 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.PrintStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.schmizz.sshj.DefaultConfig;
+import net.schmizz.sshj.common.Factory;
+import net.schmizz.sshj.transport.cipher.Cipher;
+import net.schmizz.sshj.transport.mac.MAC;
+
+/**
+ * Measures how fast this JVM encrypts and authenticates SSH packets with every cipher and MAC the client supports,
+ * so a {@link TransportProfile} can be chosen on data rather than guesswork. Run it on an agent with the plugin's
+ * libraries on the classpath:
+ * <pre>
+ * java -cp bamboo-ssh-plugin.jar:sshj.jar:bcprov.jar:slf4j-api.jar \
+ *      com.edwardawebb.atlassian.plugins.bamboo.sshplugin.TransportBenchmark [megabytes]
+ * </pre>
+ * Key exchange is a one-off cost per connection and not measured here.
+ */
+public class TransportBenchmark
+{
+    private static final int PACKET_SIZE = 32 * 1024;
+    private static final int DEFAULT_MEGABYTES = 256;
+
+    private final int megabytes;
+    private final byte[] packet = new byte[PACKET_SIZE];
+    private final SecureRandom random = new SecureRandom();
+
+    public TransportBenchmark(int megabytes)
+    {
+        this.megabytes = megabytes;
+        random.nextBytes(packet);
+    }
+
+    public static void main(String[] args)
+    {
+        final int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MEGABYTES;
+        final DefaultConfig config = new DefaultConfig();
+        final TransportBenchmark benchmark = new TransportBenchmark(megabytes);
+        final PrintStream out = System.out;
+        out.println("Java " + System.getProperty("java.version") + " (" + System.getProperty("java.vendor") + "), "
+                + megabytes + " MB per algorithm in " + PACKET_SIZE + " byte packets");
+        print(out, "Ciphers", benchmark.ciphers(config.getCipherFactories()));
+        print(out, "MACs", benchmark.macs(config.getMACFactories()));
+    }
+
+    public List<Result> ciphers(List<Factory.Named<Cipher>> factories)
+    {
+        final List<Result> results = new ArrayList<Result>();
+        for (Factory.Named<Cipher> factory : factories)
+        {
+            try
+            {
+                final Cipher cipher = factory.create();
+                cipher.init(Cipher.Mode.Encrypt, randomBytes(cipher.getBlockSize()), randomBytes(cipher.getIVSize()));
+                run(cipher, null, 1);
+                results.add(new Result(factory.getName(), run(cipher, null, megabytes), null));
+            }
+            catch (Exception e)
+            {
+                // e.g. AES-256 without the unlimited strength policy
+                results.add(new Result(factory.getName(), 0, e.toString()));
+            }
+        }
+        return sorted(results);
+    }
+
+    public List<Result> macs(List<Factory.Named<MAC>> factories)
+    {
+        final List<Result> results = new ArrayList<Result>();
+        for (Factory.Named<MAC> factory : factories)
+        {
+            try
+            {
+                final MAC mac = factory.create();
+                mac.init(randomBytes(mac.getBlockSize()));
+                run(null, mac, 1);
+                results.add(new Result(factory.getName(), run(null, mac, megabytes), null));
+            }
+            catch (Exception e)
+            {
+                results.add(new Result(factory.getName(), 0, e.toString()));
+            }
+        }
+        return sorted(results);
+    }
+
+    /**
+     * @return MB/s for pushing the given amount of packets through the cipher or MAC
+     */
+    private double run(Cipher cipher, MAC mac, int amountMegabytes)
+    {
+        final long packets = (long) amountMegabytes * 1024 * 1024 / PACKET_SIZE;
+        final long started = System.nanoTime();
+        for (long sequence = 0; sequence < packets; sequence++)
+        {
+            if (cipher != null)
+            {
+                cipher.update(packet, 0, packet.length);
+            }
+            else
+            {
+                mac.update(sequence);
+                mac.update(packet, 0, packet.length);
+                mac.doFinal();
+            }
+        }
+        final double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+        return packets * (double) PACKET_SIZE / seconds / (1024 * 1024);
+    }
+
+    private byte[] randomBytes(int length)
+    {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static List<Result> sorted(List<Result> results)
+    {
+        Collections.sort(results, new Comparator<Result>()
+        {
+            @Override
+            public int compare(Result a, Result b)
+            {
+                return Double.compare(b.megabytesPerSecond, a.megabytesPerSecond);
+            }
+        });
+        return results;
+    }
+
+    private static void print(PrintStream out, String title, List<Result> results)
+    {
+        out.println();
+        out.println(title + ", fastest first:");
+        for (Result result : results)
+        {
+            out.println(result.error == null
+                    ? String.format("  %-32s %10.1f MB/s", result.name, result.megabytesPerSecond)
+                    : String.format("  %-32s   unavailable: %s", result.name, result.error));
+        }
+    }
+
+    public static final class Result
+    {
+        private final String name;
+        private final double megabytesPerSecond;
+        private final String error;
+
+        Result(String name, double megabytesPerSecond, String error)
+        {
+            this.name = name;
+            this.megabytesPerSecond = megabytesPerSecond;
+            this.error = error;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public double getMegabytesPerSecond()
+        {
+            return megabytesPerSecond;
+        }
+
+        /**
+         * @return why the algorithm could not be used on this JVM, or null
+         */
+        public String getError()
+        {
+            return error;
+        }
+    }
+}
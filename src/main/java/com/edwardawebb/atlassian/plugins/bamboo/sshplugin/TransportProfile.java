@@ -0,0 +1,150 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.schmizz.sshj.DefaultConfig;
+import net.schmizz.sshj.common.Factory;
+
+/**
+ * Which ciphers, MACs and key exchanges a connection offers, and in what order.
+ * The server picks the first algorithm in our list it also supports, so the order decides what is negotiated.
+ * Use {@link TransportBenchmark} to see which algorithms are fastest on an agent's JVM.
+ */
+public enum TransportProfile
+{
+    COMPAT("Library defaults (widest compatibility)"),
+    THROUGHPUT("Fastest algorithms first"),
+    CUSTOM("Custom algorithm lists");
+
+    public static final String CONFIG_KEY = "transportProfile";
+
+    private static final List<String> FAST_CIPHERS = Arrays.asList("aes128-ctr", "aes192-ctr", "aes256-ctr");
+    private static final List<String> FAST_MACS = Arrays.asList("hmac-sha2-256", "hmac-sha1");
+    private static final List<String> FAST_KEX = Arrays.asList("curve25519-sha256@libssh.org", "ecdh-sha2-nistp256");
+
+    private final String display;
+
+    TransportProfile(String display)
+    {
+        this.display = display;
+    }
+
+    public String getKey()
+    {
+        return name();
+    }
+
+    public String getDisplayName()
+    {
+        return display;
+    }
+
+    /**
+     * Tasks saved before profiles existed negotiated with the library defaults.
+     */
+    public static TransportProfile fromConfig(String value)
+    {
+        if (value == null || value.trim().isEmpty())
+        {
+            return COMPAT;
+        }
+        return valueOf(value.trim());
+    }
+
+    /**
+     * Reorders (or, for {@link #CUSTOM}, restricts) the algorithm factories of the config.
+     * Custom lists that are left empty keep the library defaults for that kind of algorithm.
+     */
+    public void apply(DefaultConfig config, String ciphers, String macs, String keyExchanges)
+    {
+        switch (this)
+        {
+            case THROUGHPUT:
+                config.setCipherFactories(prefer(config.getCipherFactories(), FAST_CIPHERS, false));
+                config.setMACFactories(prefer(config.getMACFactories(), FAST_MACS, false));
+                config.setKeyExchangeFactories(prefer(config.getKeyExchangeFactories(), FAST_KEX, false));
+                break;
+            case CUSTOM:
+                if (!split(ciphers).isEmpty())
+                {
+                    config.setCipherFactories(prefer(config.getCipherFactories(), split(ciphers), true));
+                }
+                if (!split(macs).isEmpty())
+                {
+                    config.setMACFactories(prefer(config.getMACFactories(), split(macs), true));
+                }
+                if (!split(keyExchanges).isEmpty())
+                {
+                    config.setKeyExchangeFactories(prefer(config.getKeyExchangeFactories(), split(keyExchanges), true));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return the named algorithms first, in the given order, followed by the rest unless only the named ones are wanted
+     */
+    static <T> List<Factory.Named<T>> prefer(List<Factory.Named<T>> available, List<String> names, boolean onlyNamed)
+    {
+        final List<Factory.Named<T>> ordered = new ArrayList<Factory.Named<T>>();
+        for (String name : names)
+        {
+            for (Factory.Named<T> factory : available)
+            {
+                if (factory.getName().equals(name) && !ordered.contains(factory))
+                {
+                    ordered.add(factory);
+                }
+            }
+        }
+        if (!onlyNamed)
+        {
+            for (Factory.Named<T> factory : available)
+            {
+                if (!ordered.contains(factory))
+                {
+                    ordered.add(factory);
+                }
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * @return the names in the comma separated list that this client does not implement
+     */
+    static <T> List<String> unsupported(List<Factory.Named<T>> available, String names)
+    {
+        final List<String> unknown = new ArrayList<String>();
+        for (String name : split(names))
+        {
+            if (Factory.Named.Util.create(available, name) == null)
+            {
+                unknown.add(name);
+            }
+        }
+        return unknown;
+    }
+
+    static List<String> split(String names)
+    {
+        if (names == null || names.trim().isEmpty())
+        {
+            return Collections.emptyList();
+        }
+        final List<String> result = new ArrayList<String>();
+        for (String name : names.split("[,\\s]+"))
+        {
+            if (!name.isEmpty())
+            {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,158 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.Map;
+
+import org.apache.commons.lang.math.NumberUtils;
+
+import net.schmizz.sshj.DefaultConfig;
+import net.schmizz.sshj.connection.Connection;
+
+/**
+ * Per-task choices about how the SSH transport is set up. Part of {@link SshConnectionKey}, so a pooled connection
+ * is only reused by tasks that would have negotiated it the same way.
+ */
+public final class TransportSettings
+{
+    public static final TransportSettings DEFAULTS = new TransportSettings(TransportProfile.COMPAT, null, null, null);
+    public static final String CHANNEL_WINDOW_KEY = "channelWindow";
+    public static final String MAX_PACKET_KEY = "maxPacketSize";
+    /** the largest packet OpenSSH accepts, in KB */
+    public static final int MAX_PACKET_LIMIT_KB = 256;
+
+    private final TransportProfile profile;
+    private final String ciphers;
+    private final String macs;
+    private final String keyExchanges;
+    private final boolean compression;
+    private final long windowSize;
+    private final int maxPacketSize;
+
+    public TransportSettings(TransportProfile profile, String ciphers, String macs, String keyExchanges)
+    {
+        this(profile, ciphers, macs, keyExchanges, false);
+    }
+
+    public TransportSettings(TransportProfile profile, String ciphers, String macs, String keyExchanges, boolean compression)
+    {
+        this(profile, ciphers, macs, keyExchanges, compression, 0, 0);
+    }
+
+    /**
+     * @param windowSize bytes the server may send on a channel before waiting for us, 0 for the library default (2 MB)
+     * @param maxPacketSize largest data packet we accept, 0 for the library default (32 KB)
+     */
+    public TransportSettings(TransportProfile profile, String ciphers, String macs, String keyExchanges, boolean compression,
+                             long windowSize, int maxPacketSize)
+    {
+        this.compression = compression;
+        this.windowSize = Math.max(0, windowSize);
+        this.maxPacketSize = Math.max(0, maxPacketSize);
+        this.profile = profile == null ? TransportProfile.COMPAT : profile;
+        // the custom lists only matter, and only take part in equality, for the custom profile
+        final boolean custom = this.profile == TransportProfile.CUSTOM;
+        this.ciphers = custom ? normalize(ciphers) : "";
+        this.macs = custom ? normalize(macs) : "";
+        this.keyExchanges = custom ? normalize(keyExchanges) : "";
+    }
+
+    /**
+     * Compression is only switched on for {@link CompressionMode#ON}, adaptive tasks decide per host with {@link #withCompression(boolean)}.
+     */
+    public static TransportSettings fromConfig(Map<String, String> config)
+    {
+        return new TransportSettings(TransportProfile.fromConfig(config.get(TransportProfile.CONFIG_KEY)),
+                config.get("customCiphers"), config.get("customMacs"), config.get("customKex"),
+                CompressionMode.fromConfig(config.get(CompressionMode.CONFIG_KEY)) == CompressionMode.ON,
+                NumberUtils.toLong(config.get(CHANNEL_WINDOW_KEY), 0) * 1024 * 1024,
+                NumberUtils.toInt(config.get(MAX_PACKET_KEY), 0) * 1024);
+    }
+
+    public TransportSettings withCompression(boolean compress)
+    {
+        return new TransportSettings(profile, ciphers, macs, keyExchanges, compress, windowSize, maxPacketSize);
+    }
+
+    public boolean isCompression()
+    {
+        return compression;
+    }
+
+    public TransportProfile getProfile()
+    {
+        return profile;
+    }
+
+    public void applyTo(DefaultConfig config)
+    {
+        profile.apply(config, ciphers, macs, keyExchanges);
+    }
+
+    /**
+     * Channels take the window and packet size from the connection when they are opened, so this has to happen
+     * before the first channel. A window larger than bandwidth times round trip time keeps a fast, distant link busy.
+     */
+    public void applyTo(Connection connection)
+    {
+        if (windowSize > 0)
+        {
+            connection.setWindowSize(windowSize);
+        }
+        if (maxPacketSize > 0)
+        {
+            connection.setMaxPacketSize(maxPacketSize);
+        }
+    }
+
+    private static String normalize(String names)
+    {
+        final StringBuilder normalized = new StringBuilder();
+        for (String name : TransportProfile.split(names))
+        {
+            normalized.append(normalized.length() == 0 ? "" : ",").append(name);
+        }
+        return normalized.toString();
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (!(o instanceof TransportSettings))
+        {
+            return false;
+        }
+        TransportSettings that = (TransportSettings) o;
+        return profile == that.profile
+                && compression == that.compression
+                && ciphers.equals(that.ciphers)
+                && macs.equals(that.macs)
+                && keyExchanges.equals(that.keyExchanges)
+                && windowSize == that.windowSize
+                && maxPacketSize == that.maxPacketSize;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = profile.hashCode();
+        result = 31 * result + ciphers.hashCode();
+        result = 31 * result + macs.hashCode();
+        result = 31 * result + keyExchanges.hashCode();
+        result = 31 * result + (compression ? 1 : 0);
+        result = 31 * result + (int) (windowSize ^ (windowSize >>> 32));
+        result = 31 * result + maxPacketSize;
+        return result;
+    }
+
+    @Override
+    public String toString()
+    {
+        return (profile == TransportProfile.CUSTOM ? "CUSTOM[" + ciphers + ";" + macs + ";" + keyExchanges + "]" : profile.name())
+                + (compression ? "+zlib" : "")
+                + (windowSize > 0 ? "+window=" + windowSize : "")
+                + (maxPacketSize > 0 ? "+packet=" + maxPacketSize : "");
+    }
+}
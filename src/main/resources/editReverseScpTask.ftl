@@ -40,6 +40,42 @@
     [/#if]
 [/@ui.bambooSection]
 
+[@ww.select labelKey="scp.task.transport.profile" name="transportProfile" list=transportProfiles listKey="key" listValue="displayName" toggle=true/]
+[@ui.bambooSection dependsOn="transportProfile" showOn="CUSTOM"]
+    [@ww.textfield labelKey="scp.task.transport.ciphers" name="customCiphers"/]
+    [@ww.textfield labelKey="scp.task.transport.macs" name="customMacs"/]
+    [@ww.textfield labelKey="scp.task.transport.kex" name="customKex"/]
+[/@ui.bambooSection]
+[@ww.select labelKey="scp.task.transport.compression" name="compression" list=compressionModes listKey="key" listValue="displayName"/]
+[@ww.textfield labelKey="scp.task.transport.window" name="channelWindow"/]
+[@ww.textfield labelKey="scp.task.transport.packet" name="maxPacketSize"/]
+[@ww.textfield labelKey="scp.task.jump.host" name="jumpHost"/]
+[@ww.textfield labelKey="scp.task.jump.port" name="jumpPort"/]
+[@ww.textfield labelKey="scp.task.jump.username" name="jumpUsername"/]
+
 [@ww.textfield labelKey="reversescp.task.remote.path" name="remotePath" required='true'/]
 [@ww.textfield labelKey="reversescp.task.remote.pattern" name="remotePattern"/]
-[@ww.textfield labelKey="reversescp.task.local.path" name="localPath" required='true'/]
\ No newline at end of file
+[@ww.textfield labelKey="reversescp.task.local.path" name="localPath" required='true'/]
+[@ww.textfield labelKey="reversescp.task.transfer.threads" name="transferThreads"/]
+[@ww.checkbox labelKey="reversescp.task.continue.on.error" name="continueOnError"/]
+[@ww.textfield labelKey="reversescp.task.retry.attempts" name="retryAttempts"/]
+[@ww.textfield labelKey="reversescp.task.retry.backoff" name="retryBackoff"/]
+[@ww.select labelKey="reversescp.task.transfer.engine" name="transferEngine" list=transferEngines listKey="key" listValue="displayName" toggle=true/]
+[@ui.bambooSection dependsOn="transferEngine" showOn="SFTP"]
+    [@ww.textfield labelKey="reversescp.task.sftp.readahead" name="sftpReadAhead"/]
+[/@ui.bambooSection]
+[@ui.bambooSection dependsOn="transferEngine" showOn="TAR"]
+    [@ww.checkbox labelKey="reversescp.task.tar.gzip" name="tarGzip"/]
+[/@ui.bambooSection]
+[@ww.checkbox labelKey="reversescp.task.incremental" name="incrementalSync" toggle=true/]
+[@ui.bambooSection dependsOn="incrementalSync" showOn=true]
+    [@ww.checkbox labelKey="reversescp.task.incremental.hash" name="incrementalHash"/]
+[/@ui.bambooSection]
+[@ww.checkbox labelKey="reversescp.task.verify.checksums" name="verifyChecksums"/]
+[@ww.textfield labelKey="reversescp.task.write.buffer" name="writeBuffer"/]
+[@ww.checkbox labelKey="reversescp.task.preallocate" name="preallocate"/]
+[@ww.checkbox labelKey="reversescp.task.segmented" name="segmentedDownload" toggle=true/]
+[@ui.bambooSection dependsOn="segmentedDownload" showOn=true]
+    [@ww.textfield labelKey="reversescp.task.segment.threshold" name="segmentThreshold"/]
+    [@ww.textfield labelKey="reversescp.task.segments" name="segments"/]
+[/@ui.bambooSection]
\ No newline at end of file
@@ -1,4 +1,5 @@
-[@ww.textfield labelKey="com.edwardawebb.ssh.task.Host" name="host" required='true'/]
+[@ww.textarea labelKey="com.edwardawebb.ssh.task.host" name="host" required='true' rows='2'/]
+[@ww.textfield labelKey="com.edwardawebb.ssh.task.hostsfile" name="hostsFile"/]
 [@ww.textfield labelKey="com.edwardawebb.ssh.task.Username" name="username" required='true'/]
 
 [#if mode == "create"]
@@ -12,4 +13,24 @@
     [/@ui.bambooSection]
 [/#if]
 
-[@ww.textfield labelKey="Timeout" name="timeout" required='true'/]
\ No newline at end of file
+[@ww.textfield labelKey="Timeout" name="timeout" required='true'/]
+[@ww.textfield labelKey="com.edwardawebb.ssh.task.tasktimeout" name="taskTimeout"/]
+[@ww.select labelKey="com.edwardawebb.ssh.task.executionmode" name="executionMode" list=executionModes listKey="key" listValue="displayName" toggle=true/]
+[@ui.bambooSection dependsOn="executionMode" showOn="SHELL"]
+    [@ww.textarea labelKey="com.edwardawebb.ssh.task.shellresponses" name="shellResponses" rows='3'/]
+[/@ui.bambooSection]
+[@ww.textfield labelKey="com.edwardawebb.ssh.task.parallelism" name="parallelism"/]
+[@ww.textfield labelKey="com.edwardawebb.ssh.task.maxfailedhosts" name="maxFailedHosts"/]
+[@ww.select labelKey="scp.task.transport.profile" name="transportProfile" list=transportProfiles listKey="key" listValue="displayName" toggle=true/]
+[@ui.bambooSection dependsOn="transportProfile" showOn="CUSTOM"]
+    [@ww.textfield labelKey="scp.task.transport.ciphers" name="customCiphers"/]
+    [@ww.textfield labelKey="scp.task.transport.macs" name="customMacs"/]
+    [@ww.textfield labelKey="scp.task.transport.kex" name="customKex"/]
+[/@ui.bambooSection]
+[@ww.select labelKey="scp.task.transport.compression" name="compression" list=compressionModes listKey="key" listValue="displayName"/]
+[@ww.textfield labelKey="scp.task.jump.host" name="jumpHost"/]
+[@ww.textfield labelKey="scp.task.jump.port" name="jumpPort"/]
+[@ww.textfield labelKey="scp.task.jump.username" name="jumpUsername"/]
+[@ww.textfield labelKey="com.edwardawebb.ssh.task.output.head" name="outputHeadLines"/]
+[@ww.textfield labelKey="com.edwardawebb.ssh.task.output.tail" name="outputTailLines"/]
+[@ww.textfield labelKey="com.edwardawebb.ssh.task.output.keep" name="outputKeepPattern"/]
\ No newline at end of file
@@ -2,4 +2,5 @@
 [@ww.label labelKey="Username" name="username"/]
 [@ww.label labelKey="Local Path" name="localPath"/]
 [@ww.label labelKey="Remote Path" name="remotePath"/]
-[@ww.label labelKey="SSH Command" name="command"/]
\ No newline at end of file
+[@ww.label labelKey="SSH Command" name="command"/]
+[@ww.label labelKey="Transfer Engine" name="transferEngine"/]
\ No newline at end of file
@@ -0,0 +1,5 @@
+[@ww.label labelKey="Host" name="host"/]
+[@ww.label labelKey="Username" name="username"/]
+[@ww.label labelKey="Local Files" name="localPath"/]
+[@ww.label labelKey="Remote Path" name="remotePath"/]
+[@ww.label labelKey="Transfer Engine" name="transferEngine"/]
\ No newline at end of file
@@ -0,0 +1,84 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class AddressRacerTest extends TestCase
+{
+    public void testAlternatesFamiliesStartingWithTheFirstListed() throws Exception
+    {
+        List<InetAddress> ordered = AddressRacer.interleave(addresses("2001:db8::1", "2001:db8::2", "2001:db8::3", "192.0.2.1", "192.0.2.2"));
+
+        assertEquals(addresses("2001:db8::1", "192.0.2.1", "2001:db8::2", "192.0.2.2", "2001:db8::3"), ordered);
+    }
+
+    public void testIpv4FirstWhenListedFirst() throws Exception
+    {
+        List<InetAddress> ordered = AddressRacer.interleave(addresses("192.0.2.1", "192.0.2.2", "2001:db8::1"));
+
+        assertEquals(addresses("192.0.2.1", "2001:db8::1", "192.0.2.2"), ordered);
+    }
+
+    public void testSingleFamilyKeepsItsOrder() throws Exception
+    {
+        List<InetAddress> addresses = addresses("192.0.2.3", "192.0.2.1", "192.0.2.2");
+
+        assertEquals(addresses, AddressRacer.interleave(addresses));
+    }
+
+    public void testConnectsToTheAddressThatAnswers() throws Exception
+    {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try
+        {
+            // nothing listens on 127.0.0.2 at this port, the attempt is refused and the next address wins
+            Socket socket = AddressRacer.connect(addresses("127.0.0.2", "127.0.0.1"), server.getLocalPort(), 5000, 50);
+            try
+            {
+                assertTrue(socket.isConnected());
+                assertEquals(InetAddress.getByName("127.0.0.1"), socket.getInetAddress());
+            }
+            finally
+            {
+                socket.close();
+            }
+        }
+        finally
+        {
+            server.close();
+        }
+    }
+
+    public void testFailsWhenNoAddressAnswers() throws Exception
+    {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        int port = server.getLocalPort();
+        server.close();
+        try
+        {
+            AddressRacer.connect(Collections.singletonList(InetAddress.getByName("127.0.0.1")), port, 5000, 50).close();
+            fail("connected to a closed port");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    private static List<InetAddress> addresses(String... literals) throws Exception
+    {
+        InetAddress[] addresses = new InetAddress[literals.length];
+        for (int i = 0; i < literals.length; i++)
+        {
+            addresses[i] = InetAddress.getByName(literals[i]);
+        }
+        return Arrays.asList(addresses);
+    }
+}
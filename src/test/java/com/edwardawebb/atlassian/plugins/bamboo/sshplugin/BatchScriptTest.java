@@ -0,0 +1,85 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import junit.framework.TestCase;
+
+public class BatchScriptTest extends TestCase
+{
+    private static final String MARKER = "__MARK__";
+
+    public void testBlankLinesAreNotCommands()
+    {
+        BatchScript script = new BatchScript("cd /opt\r\n\r\n  \nls", MARKER);
+        assertEquals(2, script.getCommands().size());
+        assertEquals("cd /opt", script.getCommands().get(0));
+        assertEquals("ls", script.getCommands().get(1));
+    }
+
+    public void testRemoteScriptStopsOnFirstFailure()
+    {
+        String remote = new BatchScript("false\nls", MARKER).toShellScript();
+        assertTrue(remote.contains("echo '__MARK__ begin 0'\nfalse\n__bamboo_rc=$?\n"));
+        assertTrue(remote.contains("[ $__bamboo_rc -eq 0 ] || exit $__bamboo_rc"));
+        assertTrue(remote.indexOf("begin 0") < remote.indexOf("begin 1"));
+    }
+
+    public void testRemoteScriptRunsUnderPosixShell()
+    {
+        BatchScript script = new BatchScript("echo 'it works'\nls", MARKER);
+        String remote = script.toRemoteScript();
+        assertTrue(remote, remote.startsWith("exec /bin/sh -c '"));
+        assertEquals("exec /bin/sh -c " + RemoteShell.quote(script.toShellScript()), remote);
+    }
+
+    public void testMarkersAreStrippedAndStatusesTracked()
+    {
+        BatchScript script = new BatchScript("echo hi\nprintf partial\ngrep missing file", MARKER);
+
+        assertEquals(BatchScript.EventType.BEGIN, script.accept("__MARK__ begin 0").getType());
+        BatchScript.Event output = script.accept("hi");
+        assertEquals(BatchScript.EventType.OUTPUT, output.getType());
+        assertEquals(0, output.getCommand());
+        assertEquals("hi", output.getOutput());
+        assertEquals(BatchScript.EventType.END, script.accept("__MARK__ end 0 0").getType());
+
+        script.accept("__MARK__ begin 1");
+        BatchScript.Event unterminated = script.accept("partial__MARK__ end 1 0");
+        assertEquals(BatchScript.EventType.END, unterminated.getType());
+        assertEquals("partial", unterminated.getOutput());
+
+        script.accept("__MARK__ begin 2");
+        BatchScript.Event failed = script.accept("__MARK__ end 2 2");
+        assertEquals(2, failed.getExitStatus());
+        assertEquals(2, script.getCurrent());
+        assertFalse(script.isComplete());
+    }
+
+    public void testCompleteWhenEveryCommandSucceeded()
+    {
+        BatchScript script = new BatchScript("true\ntrue", MARKER);
+        script.accept("__MARK__ begin 0");
+        script.accept("__MARK__ end 0 0");
+        assertFalse(script.isComplete());
+        script.accept("__MARK__ begin 1");
+        script.accept("__MARK__ end 1 0");
+        assertTrue(script.isComplete());
+    }
+
+    public void testShellCommandIsOneLineBetweenMarkers()
+    {
+        BatchScript script = new BatchScript("cd /opt # it's here\nls", MARKER);
+        assertEquals("echo '__MARK__ begin 0'; eval 'cd /opt # it'\\''s here'; __bamboo_rc=$?; echo \"__MARK__ end 0 $__bamboo_rc\"",
+                script.toShellCommand(0));
+        assertFalse(script.hasFinished(0));
+        script.accept("__MARK__ begin 0");
+        script.accept("__MARK__ end 0 0");
+        assertTrue(script.hasFinished(0));
+        assertFalse(script.hasFinished(1));
+    }
+
+    public void testEchoOfTheSetupLineIsNotReady()
+    {
+        BatchScript script = new BatchScript("ls", MARKER);
+        assertFalse(script.isReady("$ " + script.toShellSetup()));
+        assertTrue(script.isReady("__MARK__ ready"));
+    }
+}
@@ -0,0 +1,139 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class CommandWatchdogTest extends TestCase
+{
+    private final List<String> logged = new ArrayList<String>();
+    private final ScriptLogger recorder = new ScriptLogger()
+    {
+        @Override
+        public synchronized void addBuildLogEntry(String line)
+        {
+            logged.add(line);
+        }
+
+        @Override
+        public synchronized void addErrorLogEntry(String line)
+        {
+            logged.add("E " + line);
+        }
+    };
+
+    public void testCommandTimeoutStopsTheCommand() throws Exception
+    {
+        FakeTarget target = new FakeTarget();
+        CommandWatchdog.Watch watch = new CommandWatchdog(50, 0, TimeUnit.MILLISECONDS).startWatch(target, "sleep 60", recorder);
+
+        assertTrue("command was not stopped", target.awaitStop(5000));
+        assertEquals("'sleep 60' exceeded its timeout of 50 milliseconds", watch.getExpiry());
+        watch.close();
+    }
+
+    public void testTaskDeadlineCapsTheCommandTimeout() throws Exception
+    {
+        FakeTarget target = new FakeTarget();
+        CommandWatchdog watchdog = new CommandWatchdog(60000, 50, TimeUnit.MILLISECONDS);
+        CommandWatchdog.Watch watch = watchdog.startWatch(target, "make", recorder);
+
+        assertTrue("command was not stopped", target.awaitStop(5000));
+        assertEquals("'make' was stopped because the task timeout was reached", watch.getExpiry());
+        try
+        {
+            watchdog.checkTaskDeadline();
+            fail("started a command after the task timeout");
+        }
+        catch (SSHExecutionException e)
+        {
+            // expected
+        }
+    }
+
+    public void testNoTimeoutWithoutLimits() throws Exception
+    {
+        FakeTarget target = new FakeTarget();
+        CommandWatchdog watchdog = new CommandWatchdog(0, 0);
+        CommandWatchdog.Watch watch = watchdog.startWatch(target, "true", recorder);
+        watchdog.checkTaskDeadline();
+
+        assertFalse(target.awaitStop(100));
+        assertNull(watch.getExpiry());
+        watch.close();
+    }
+
+    public void testAbortAfterCloseLeavesTheCommandAlone()
+    {
+        FakeTarget target = new FakeTarget();
+        CommandWatchdog.Watch watch = new CommandWatchdog(0, 0).startWatch(target, "true", recorder);
+        watch.close();
+        watch.abort("was stopped because the build was stopped");
+
+        assertNull(watch.getExpiry());
+        assertEquals(0, target.stops.get());
+    }
+
+    public void testCloseRacingTheTimer() throws Exception
+    {
+        for (int i = 0; i < 200; i++)
+        {
+            FakeTarget target = new FakeTarget();
+            CommandWatchdog.Watch watch = new CommandWatchdog(1, 0, TimeUnit.MILLISECONDS).startWatch(target, "race", recorder);
+            Thread.sleep(i % 2, i * 5000 % 1000000);
+            watch.close();
+            final int stops = target.stops.get();
+            final String expiry = watch.getExpiry();
+            Thread.sleep(5);
+
+            // whatever won, nothing is stopped after close() returned and the expiry tells whether it was
+            assertEquals(stops, target.stops.get());
+            assertEquals(expiry != null, stops == 1);
+        }
+    }
+
+    private static final class FakeTarget extends CommandWatchdog.Target
+    {
+        private final AtomicInteger stops = new AtomicInteger();
+
+        FakeTarget()
+        {
+            super("TERM");
+        }
+
+        @Override
+        void stop()
+        {
+            synchronized (this)
+            {
+                stops.incrementAndGet();
+                notifyAll();
+            }
+        }
+
+        @Override
+        boolean isOpen()
+        {
+            return false;
+        }
+
+        @Override
+        void close()
+        {
+            // nothing to close
+        }
+
+        synchronized boolean awaitStop(long millis) throws InterruptedException
+        {
+            final long deadline = System.currentTimeMillis() + millis;
+            while (stops.get() == 0 && System.currentTimeMillis() < deadline)
+            {
+                wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            return stops.get() > 0;
+        }
+    }
+}
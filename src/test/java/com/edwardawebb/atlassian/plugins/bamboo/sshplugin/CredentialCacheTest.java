@@ -0,0 +1,95 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class CredentialCacheTest extends TestCase
+{
+    private final List<String> decrypted = new ArrayList<String>();
+    private final CredentialCache.Decrypter decrypter = new CredentialCache.Decrypter()
+    {
+        @Override
+        public String decrypt(String encrypted)
+        {
+            if (encrypted != null)
+            {
+                decrypted.add(encrypted);
+            }
+            return encrypted;
+        }
+    };
+
+    public void testReusesLiveEntries()
+    {
+        CredentialCache cache = new CredentialCache(600, 4);
+        SshCredentials first = get(cache, "a");
+
+        assertTrue(first == get(cache, "a"));
+        assertEquals(Arrays.asList("a"), decrypted);
+    }
+
+    public void testChangedValueIsAnotherEntry()
+    {
+        CredentialCache cache = new CredentialCache(600, 4);
+        get(cache, "a");
+        get(cache, "b");
+
+        assertEquals(Arrays.asList("a", "b"), decrypted);
+    }
+
+    public void testEntriesExpireAfterTtl() throws Exception
+    {
+        CredentialCache cache = new CredentialCache(50, TimeUnit.MILLISECONDS, 4);
+        SshCredentials first = get(cache, "a");
+        Thread.sleep(100);
+
+        assertFalse(first == get(cache, "a"));
+        assertEquals(Arrays.asList("a", "a"), decrypted);
+        get(cache, "a");
+        assertEquals(2, decrypted.size());
+    }
+
+    public void testZeroTtlDisablesCaching()
+    {
+        CredentialCache cache = new CredentialCache(0, 4);
+        get(cache, "a");
+        get(cache, "a");
+
+        assertEquals(Arrays.asList("a", "a"), decrypted);
+    }
+
+    public void testLeastRecentlyUsedIsEvicted()
+    {
+        CredentialCache cache = new CredentialCache(600, 2);
+        get(cache, "a");
+        get(cache, "b");
+        get(cache, "a");
+        get(cache, "c");
+        decrypted.clear();
+
+        get(cache, "a");
+        get(cache, "c");
+        assertTrue(decrypted.isEmpty());
+        get(cache, "b");
+        assertEquals(Arrays.asList("b"), decrypted);
+    }
+
+    public void testClear()
+    {
+        CredentialCache cache = new CredentialCache(600, 4);
+        get(cache, "a");
+        cache.clear();
+        get(cache, "a");
+
+        assertEquals(Arrays.asList("a", "a"), decrypted);
+    }
+
+    private SshCredentials get(CredentialCache cache, String password)
+    {
+        return cache.get(AuthType.PASSWORD, password, null, null, decrypter);
+    }
+}
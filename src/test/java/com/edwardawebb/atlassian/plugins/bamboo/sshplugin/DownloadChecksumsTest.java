@@ -0,0 +1,105 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+public class DownloadChecksumsTest extends TestCase
+{
+    private static final String HELLO_SHA256 = "5891b5b522d5df086d0ff0b110fbd9d21bb4fc7163af34d08286a2e846f6be03";
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile("checksums", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    public void testParsesSha256sumOutput()
+    {
+        Map<String, String> checksums = DownloadChecksums.parse(HELLO_SHA256 + "  /var/log/app.log\n"
+                + "\\" + HELLO_SHA256 + "  /var/log/two\\nlines\\\\name\n");
+        assertEquals(HELLO_SHA256, checksums.get("/var/log/app.log"));
+        assertEquals(HELLO_SHA256, checksums.get("/var/log/two\nlines\\name"));
+        assertEquals(2, checksums.size());
+    }
+
+    public void testMatchesWhatWasWritten() throws Exception
+    {
+        DownloadChecksums checksums = new DownloadChecksums();
+        write(checksums.digesting(new File(directory, "app.log"), new FileOutputStream(new File(directory, "app.log"))), "hello\n");
+
+        assertTrue(checksums.mismatches(remote("/var/log/app.log", HELLO_SHA256), null, "/var/log/app.log", directory).isEmpty());
+    }
+
+    public void testResumedFilesIncludeTheirExistingContent() throws Exception
+    {
+        DownloadChecksums checksums = new DownloadChecksums();
+        File dir = new File(directory, "logs");
+        dir.mkdirs();
+        File file = new File(dir, "app.log");
+        FileUtils.writeStringToFile(file, "hel");
+        write(checksums.appending(file, file.length(), new FileOutputStream(file, true)), "lo\n");
+
+        assertTrue(checksums.mismatches(remote("/var/logs/app.log", HELLO_SHA256), null, "/var/logs/", directory).isEmpty());
+    }
+
+    public void testReportsDifferentAndMissingFiles() throws Exception
+    {
+        DownloadChecksums checksums = new DownloadChecksums();
+        write(checksums.digesting(new File(directory, "app.log"), new FileOutputStream(new File(directory, "app.log"))), "hello!\n");
+
+        List<String> mismatches = checksums.mismatches(remote("/var/log/app.log", HELLO_SHA256), null, "/var/log/app.log", directory);
+        assertEquals(1, mismatches.size());
+        assertTrue(mismatches.get(0).startsWith("/var/log/app.log"));
+
+        mismatches = checksums.mismatches(remote("/var/log/gone.log", HELLO_SHA256), null, "/var/log/gone.log", directory);
+        assertTrue(mismatches.get(0).contains("missing"));
+    }
+
+    private static void write(OutputStream out, String content) throws IOException
+    {
+        try
+        {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private static FutureTask<Map<String, String>> remote(final String path, final String sha256)
+    {
+        FutureTask<Map<String, String>> remote = new FutureTask<Map<String, String>>(new Callable<Map<String, String>>()
+        {
+            @Override
+            public Map<String, String> call()
+            {
+                return Collections.singletonMap(path, sha256);
+            }
+        });
+        remote.run();
+        return remote;
+    }
+}
@@ -0,0 +1,36 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import junit.framework.TestCase;
+
+public class GlobPatternTest extends TestCase
+{
+    public void testDoubleStarSpansDirectories()
+    {
+        GlobPattern pattern = GlobPattern.compile("**/*.log");
+        assertTrue(pattern.matches("a.log"));
+        assertTrue(pattern.matches("x/y/a.log"));
+        assertFalse(pattern.matches("x/a.log.gz"));
+    }
+
+    public void testSingleStarStaysInSegment()
+    {
+        GlobPattern pattern = GlobPattern.compile("logs/app-*.gz");
+        assertTrue(pattern.matches("logs/app-1.gz"));
+        assertFalse(pattern.matches("logs/old/app-1.gz"));
+        assertFalse(GlobPattern.compile("*.log").matches("x/a.log"));
+    }
+
+    public void testCharacterClassesAndTrailingSlash()
+    {
+        assertTrue(GlobPattern.compile("[!a]*.txt").matches("b.txt"));
+        assertFalse(GlobPattern.compile("[!a]*.txt").matches("a.txt"));
+        assertTrue(GlobPattern.compile("build/").matches("build/a/b"));
+    }
+
+    public void testStaticPrefixLimitsSearch()
+    {
+        assertEquals("a/b", GlobPattern.compile("a/b/**/c*.x").getStaticPrefix());
+        assertEquals("", GlobPattern.compile("**/*.log").getStaticPrefix());
+        assertFalse(GlobPattern.isPattern("target/app.jar"));
+    }
+}
@@ -0,0 +1,66 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+public class HostListTest extends TestCase
+{
+    private File hostsFile;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        hostsFile = File.createTempFile("hosts", ".txt");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        hostsFile.delete();
+    }
+
+    public void testSeparatorsAndPorts() throws Exception
+    {
+        List<HostList.Host> hosts = HostList.resolve("web1, web2:2222\tweb3\r\n[::1]:2200 [fe80::1]", null, 22);
+
+        assertEquals(Arrays.asList(new HostList.Host("web1", 22), new HostList.Host("web2", 2222), new HostList.Host("web3", 22),
+                new HostList.Host("::1", 2200), new HostList.Host("fe80::1", 22)), hosts);
+    }
+
+    public void testHostsFileSkipsBlankLinesAndComments() throws Exception
+    {
+        FileUtils.writeStringToFile(hostsFile, "# production web tier\n\nweb1\n   \nweb2:2222  # behind the firewall\n#web3\n",
+                StandardCharsets.UTF_8.name());
+
+        List<HostList.Host> hosts = HostList.resolve(null, hostsFile, 22);
+
+        assertEquals(Arrays.asList(new HostList.Host("web1", 22), new HostList.Host("web2", 2222)), hosts);
+    }
+
+    public void testDuplicatesAcrossListAndFileAreRunOnce() throws Exception
+    {
+        FileUtils.writeStringToFile(hostsFile, "web2\nweb1:22\n", StandardCharsets.UTF_8.name());
+
+        List<HostList.Host> hosts = HostList.resolve("web1", hostsFile, 22);
+
+        assertEquals(Arrays.asList(new HostList.Host("web1", 22), new HostList.Host("web2", 22)), hosts);
+    }
+
+    public void testNothingToResolve() throws Exception
+    {
+        assertEquals(Collections.<HostList.Host>emptyList(), HostList.resolve("  ", null, 22));
+    }
+
+    public void testDefaultPortIsLeftOutOfTheName()
+    {
+        assertEquals("web1", HostList.parse("web1", 22).toString());
+        assertEquals("web1:2222", HostList.parse("web1:2222", 22).toString());
+    }
+}
@@ -0,0 +1,97 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.schmizz.sshj.SSHClient;
+
+public class JumpHostTunnelsTest extends TestCase
+{
+    private static final JumpHost BASTION = new JumpHost("bastion.example.com", 22, "bamboo");
+
+    private final List<FakeClient> opened = new ArrayList<FakeClient>();
+    private int failures;
+    private final JumpHostTunnels tunnels = new JumpHostTunnels(new SshConnector(0, 0, 1)
+    {
+        @Override
+        public SSHClient connect(SshConnectionKey key, SshCredentials credentials, TaskMetrics metrics) throws IOException
+        {
+            if (failures > 0)
+            {
+                failures--;
+                throw new IOException("Connection refused");
+            }
+            final FakeClient client = new FakeClient();
+            opened.add(client);
+            return client;
+        }
+    });
+
+    public void testTargetsShareOneJumpHostConnection() throws Exception
+    {
+        JumpHostTunnels.Lease first = tunnels.open(target("web1"), null, new TaskMetrics());
+        JumpHostTunnels.Lease second = tunnels.open(target("web2"), null, new TaskMetrics());
+
+        assertEquals(1, opened.size());
+        assertEquals(1, tunnels.size());
+        first.release();
+        first.release();
+        assertFalse(opened.get(0).disconnected);
+        second.release();
+        assertTrue(opened.get(0).disconnected);
+    }
+
+    public void testClosedTunnelIsForgotten() throws Exception
+    {
+        tunnels.open(target("web1"), null, new TaskMetrics()).release();
+        assertEquals(0, tunnels.size());
+
+        JumpHostTunnels.Lease again = tunnels.open(target("web1"), null, new TaskMetrics());
+
+        assertEquals(2, opened.size());
+        assertFalse(opened.get(1).disconnected);
+        assertEquals(1, tunnels.size());
+        again.release();
+    }
+
+    public void testFailedConnectIsTriedAgainByTheNextTarget() throws Exception
+    {
+        failures = 1;
+        try
+        {
+            tunnels.open(target("web1"), null, new TaskMetrics());
+            fail();
+        }
+        catch (IOException expected)
+        {
+            assertEquals(0, tunnels.size());
+        }
+
+        tunnels.open(target("web1"), null, new TaskMetrics());
+        assertEquals(1, opened.size());
+    }
+
+    private static SshConnectionKey target(String host)
+    {
+        return new SshConnectionKey(host, 22, "bamboo", "fingerprint", null, BASTION);
+    }
+
+    private static final class FakeClient extends SSHClient
+    {
+        private volatile boolean disconnected;
+
+        @Override
+        public boolean isConnected()
+        {
+            return !disconnected;
+        }
+
+        @Override
+        public void disconnect()
+        {
+            disconnected = true;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+public class LocalFileSetTest extends TestCase
+{
+    private File base;
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        base = File.createTempFile("fileset", "");
+        assertTrue(base.delete() && base.mkdirs());
+        touch("target/app.jar");
+        touch("target/lib/a.jar");
+        touch("target/lib/b.txt");
+        touch("dist/bin/run.sh");
+        touch("dist/README");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        FileUtils.deleteQuietly(base);
+    }
+
+    public void testLiteralFileKeepsItsName()
+    {
+        Map<File, String> files = LocalFileSet.resolve(base, "target/app.jar").getFiles();
+        assertEquals(1, files.size());
+        assertEquals("app.jar", files.get(new File(base, "target/app.jar")));
+    }
+
+    public void testLiteralDirectoryIsCopiedWithItsName()
+    {
+        Map<File, String> files = LocalFileSet.resolve(base, "dist").getFiles();
+        assertEquals(2, files.size());
+        assertEquals("dist/bin/run.sh", files.get(new File(base, "dist/bin/run.sh")));
+    }
+
+    public void testPatternKeepsPathBelowStaticPrefix()
+    {
+        Map<File, String> files = LocalFileSet.resolve(base, "target/**/*.jar").getFiles();
+        assertEquals(2, files.size());
+        assertEquals("lib/a.jar", files.get(new File(base, "target/lib/a.jar")));
+        assertEquals("app.jar", files.get(new File(base, "target/app.jar")));
+    }
+
+    public void testExcludesAndMissingNames()
+    {
+        LocalFileSet fileSet = LocalFileSet.resolve(base, "target/, !**/*.txt, nothing-here");
+        assertEquals(2, fileSet.getFiles().size());
+        assertFalse(fileSet.getFiles().containsKey(new File(base, "target/lib/b.txt")));
+        assertEquals("nothing-here", fileSet.getMissing().get(0));
+    }
+
+    private void touch(String path) throws IOException
+    {
+        FileUtils.writeStringToFile(new File(base, path), path);
+    }
+}
@@ -0,0 +1,100 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+public class LocalFileWriterTest extends TestCase
+{
+    private File directory;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile("writer", "");
+        directory.delete();
+        directory.mkdirs();
+        file = new File(directory, "download");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    public void testPreallocatesTheExpectedSize() throws Exception
+    {
+        LocalFileWriter writer = new LocalFileWriter(8 * 1024, true, null, null);
+        OutputStream out = writer.create(file, 100000);
+        assertEquals(100000, file.length());
+
+        write(out, "complete");
+        out.close();
+        assertEquals("complete", read(file));
+    }
+
+    public void testBrokenDownloadIsCutBackToWhatWasWritten() throws Exception
+    {
+        LocalFileWriter writer = new LocalFileWriter(8 * 1024, true, null, null);
+        OutputStream out = writer.create(file, 100000);
+        byte[] chunk = new byte[20000];
+        out.write(chunk);
+        out.close();
+
+        assertEquals(20000, file.length());
+    }
+
+    public void testCreateReplacesPreviousContent() throws Exception
+    {
+        FileUtils.writeStringToFile(file, "an older and longer version", "UTF-8");
+        OutputStream out = LocalFileWriter.DEFAULT.create(file, -1);
+        write(out, "new");
+        out.close();
+
+        assertEquals("new", read(file));
+    }
+
+    public void testAppendContinuesAPartialFile() throws Exception
+    {
+        FileUtils.writeStringToFile(file, "first half, ", "UTF-8");
+        LocalFileWriter writer = new LocalFileWriter(8 * 1024, true, null, null);
+        OutputStream out = writer.append(file, 100);
+        assertEquals(100, file.length());
+
+        write(out, "second half");
+        out.close();
+        assertEquals("first half, second half", read(file));
+    }
+
+    public void testCountsFilesAndBytesAsWritten() throws Exception
+    {
+        TaskMetrics metrics = new TaskMetrics();
+        LocalFileWriter writer = new LocalFileWriter(8 * 1024, false, null, metrics);
+        OutputStream out = writer.create(file, -1);
+        write(out, "12345");
+        out.close();
+        out = writer.append(file, -1);
+        write(out, "678");
+        out.close();
+
+        assertEquals(1, metrics.getFiles());
+        assertEquals(8, metrics.getBytes());
+    }
+
+    private static void write(OutputStream out, String content) throws IOException
+    {
+        out.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(File file) throws IOException
+    {
+        return FileUtils.readFileToString(file, "UTF-8");
+    }
+}
@@ -0,0 +1,91 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MultiHostRunnerTest extends TestCase
+{
+    private final List<String> logged = Collections.synchronizedList(new ArrayList<String>());
+    private final ScriptLogger recorder = new ScriptLogger()
+    {
+        @Override
+        public void addBuildLogEntry(String line)
+        {
+            logged.add(line);
+        }
+
+        @Override
+        public void addErrorLogEntry(String line)
+        {
+            logged.add("E " + line);
+        }
+    };
+
+    public void testNoThresholdToleratesNoFailures()
+    {
+        assertEquals(0, MultiHostRunner.allowedFailures(null, 7));
+        assertEquals(0, MultiHostRunner.allowedFailures("  ", 7));
+        assertEquals(0, MultiHostRunner.allowedFailures("some", 7));
+    }
+
+    public void testCountThreshold()
+    {
+        assertEquals(2, MultiHostRunner.allowedFailures(" 2 ", 7));
+        assertEquals(0, MultiHostRunner.allowedFailures("-1", 7));
+    }
+
+    public void testPercentageThresholdRoundsDown()
+    {
+        // 0.7 hosts, a single failure is already too many
+        assertEquals(0, MultiHostRunner.allowedFailures("10%", 7));
+        assertEquals(1, MultiHostRunner.allowedFailures("10%", 10));
+        assertEquals(3, MultiHostRunner.allowedFailures("50 %", 7));
+        assertEquals(7, MultiHostRunner.allowedFailures("150%", 7));
+        assertEquals(0, MultiHostRunner.allowedFailures("-10%", 7));
+    }
+
+    public void testFailuresWithinTheThresholdPass()
+    {
+        MultiHostRunner runner = new MultiHostRunner(3, "1");
+
+        assertTrue(runner.run(hosts("web1", "web2", "web3"), failing("web2"), recorder));
+        assertTrue(logged.contains("E   FAIL web2"));
+        assertTrue(logged.contains("2 passed, 1 failed, 0 skipped"));
+    }
+
+    public void testHostsAfterTooManyFailuresAreSkipped()
+    {
+        MultiHostRunner runner = new MultiHostRunner(1, "10%");
+
+        assertFalse(runner.run(hosts("web1", "web2", "web3"), failing("web1"), recorder));
+        assertTrue(logged.contains("E   SKIP web2"));
+        assertTrue(logged.contains("E   SKIP web3"));
+        assertTrue(logged.contains("0 passed, 1 failed, 2 skipped"));
+    }
+
+    private static List<HostList.Host> hosts(String... names)
+    {
+        List<HostList.Host> hosts = new ArrayList<HostList.Host>();
+        for (String name : names)
+        {
+            hosts.add(HostList.parse(name, 22));
+        }
+        return hosts;
+    }
+
+    private static MultiHostRunner.HostTask failing(final String... names)
+    {
+        return new MultiHostRunner.HostTask()
+        {
+            @Override
+            public boolean run(HostList.Host host, ScriptLogger logger)
+            {
+                return !Arrays.asList(names).contains(host.getName());
+            }
+        };
+    }
+}
@@ -0,0 +1,60 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class OutputLimiterTest extends TestCase
+{
+    private final List<String> logged = new ArrayList<String>();
+    private final ScriptLogger recorder = new ScriptLogger()
+    {
+        @Override
+        public void addBuildLogEntry(String line)
+        {
+            logged.add(line);
+        }
+
+        @Override
+        public void addErrorLogEntry(String line)
+        {
+            logged.add("E " + line);
+        }
+    };
+
+    public void testHeadAndTailAroundSuppressedLines()
+    {
+        OutputLimiter output = new OutputLimiter(recorder, OutputLimiter.Policy.fromConfig("2", "2", null));
+        for (int i = 0; i < 10; i++)
+        {
+            output.addBuildLogEntry("line" + i);
+        }
+        output.flush();
+        assertEquals(Arrays.asList("line0", "line1", "[... 6 lines suppressed ...]", "line8", "line9"), logged);
+    }
+
+    public void testKeptLinesStayInOrder()
+    {
+        OutputLimiter output = new OutputLimiter(recorder, OutputLimiter.Policy.fromConfig("1", "1", "ERROR"));
+        output.addBuildLogEntry("a");
+        output.addBuildLogEntry("b");
+        output.addBuildLogEntry("c");
+        output.addErrorLogEntry("ERROR d");
+        output.addBuildLogEntry("e");
+        output.flush();
+        assertEquals(Arrays.asList("a", "[... 1 lines suppressed ...]", "c", "E ERROR d", "e"), logged);
+    }
+
+    public void testBlankLimitsLogEverything()
+    {
+        assertTrue(OutputLimiter.Policy.fromConfig("", null, "x").isUnlimited());
+        OutputLimiter output = new OutputLimiter(recorder, OutputLimiter.Policy.UNLIMITED);
+        for (int i = 0; i < 100; i++)
+        {
+            output.addBuildLogEntry("line");
+        }
+        assertEquals(100, logged.size());
+    }
+}
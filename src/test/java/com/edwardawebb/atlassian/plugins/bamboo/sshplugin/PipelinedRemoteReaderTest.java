@@ -0,0 +1,120 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.schmizz.sshj.sftp.RemoteFile;
+
+public class PipelinedRemoteReaderTest extends TestCase
+{
+    private static final int SIZE = 10 * PipelinedRemoteReader.READ_SIZE + 123;
+
+    private final byte[] remoteContent = new byte[SIZE];
+    private final AtomicInteger reading = new AtomicInteger();
+    private final AtomicInteger mostReading = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        for (int i = 0; i < remoteContent.length; i++)
+        {
+            remoteContent[i] = (byte) (i * 31 + i / 7);
+        }
+    }
+
+    public void testReadsFromAnOffsetInOrder() throws Exception
+    {
+        final long offset = 3 * PipelinedRemoteReader.READ_SIZE + 5;
+        final Recorder sink = new Recorder(offset);
+
+        assertEquals(SIZE - offset, PipelinedRemoteReader.read(remoteFile(Integer.MAX_VALUE), "/var/log/app.log", offset, SIZE, 4, sink));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(remoteContent, (int) offset, SIZE), sink.bytes.toByteArray()));
+        assertTrue("reads were in flight together: " + mostReading.get(), mostReading.get() > 1);
+        assertTrue(mostReading.get() <= 4);
+    }
+
+    public void testShortReadsAreFilledIn() throws Exception
+    {
+        final Recorder sink = new Recorder(0);
+
+        PipelinedRemoteReader.read(remoteFile(1000), "/var/log/app.log", 0, SIZE, 8, sink);
+
+        assertTrue(Arrays.equals(remoteContent, sink.bytes.toByteArray()));
+    }
+
+    public void testFileShorterThanExpectedFails() throws Exception
+    {
+        final Recorder sink = new Recorder(0);
+        try
+        {
+            PipelinedRemoteReader.read(remoteFile(Integer.MAX_VALUE), "/var/log/app.log", 0, SIZE + 1, 8, sink);
+            fail();
+        }
+        catch (EOFException expected)
+        {
+            // everything that was there is kept, so a retry continues after it
+            assertEquals(SIZE, sink.bytes.size());
+        }
+    }
+
+    /**
+     * Serves {@link #remoteContent}, at most <code>maxRead</code> bytes per request, like a server with a smaller packet limit.
+     */
+    private RemoteFile remoteFile(final int maxRead)
+    {
+        return new RemoteFile(null, "/var/log/app.log", new byte[0])
+        {
+            @Override
+            public int read(long fileOffset, byte[] to, int offset, int len) throws IOException
+            {
+                final int now = reading.incrementAndGet();
+                synchronized (mostReading)
+                {
+                    mostReading.set(Math.max(mostReading.get(), now));
+                }
+                try
+                {
+                    Thread.sleep(2);
+                    if (fileOffset >= remoteContent.length)
+                    {
+                        return -1;
+                    }
+                    final int read = (int) Math.min(Math.min(len, maxRead), remoteContent.length - fileOffset);
+                    System.arraycopy(remoteContent, (int) fileOffset, to, offset, read);
+                    return read;
+                }
+                catch (InterruptedException e)
+                {
+                    throw new IOException(e);
+                }
+                finally
+                {
+                    reading.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    private static final class Recorder implements PipelinedRemoteReader.Sink
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private long expected;
+
+        Recorder(long from)
+        {
+            this.expected = from;
+        }
+
+        @Override
+        public void write(long position, byte[] data, int length)
+        {
+            assertEquals(expected, position);
+            bytes.write(data, 0, length);
+            expected += length;
+        }
+    }
+}
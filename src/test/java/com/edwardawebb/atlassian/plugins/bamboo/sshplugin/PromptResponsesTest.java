@@ -0,0 +1,58 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.regex.Matcher;
+
+import junit.framework.TestCase;
+
+public class PromptResponsesTest extends TestCase
+{
+    public void testDefaultRuleAnswersSudoWithThePassword()
+    {
+        PromptResponses responses = PromptResponses.parse(PromptResponses.DEFAULT_RULES);
+        Matcher match = responses.getPattern().matcher("[sudo] password for deploy: ");
+        assertTrue(match.find());
+        assertEquals(0, responses.ruleFor(match));
+        assertEquals(PromptResponses.PASSWORD, responses.getResponse(0));
+    }
+
+    public void testPromptOnlyCountsAtTheEndOfTheOutput()
+    {
+        PromptResponses responses = PromptResponses.parse("Continue\\? \\[y/N\\] => y");
+        Matcher match = responses.getPattern().matcher("Continue? [y/N] was printed\nmore");
+        assertTrue(match.find());
+        assertTrue(responses.isLineEnd(match));
+        assertEquals(-1, responses.ruleFor(match));
+        assertEquals("Continue? [y/N] was printed".length(), match.start());
+    }
+
+    public void testGroupsInsidePromptsDoNotShiftLaterRules()
+    {
+        PromptResponses responses = PromptResponses.parse("(a|b)(c) => first\n\nPassphrase: => second");
+        assertEquals(2, responses.size());
+        Matcher match = responses.getPattern().matcher("Passphrase: ");
+        assertTrue(match.find());
+        assertEquals(1, responses.ruleFor(match));
+        assertEquals("second", responses.getResponse(1));
+    }
+
+    public void testEndlessLineIsCut()
+    {
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < PromptResponses.MAX_LINE_LENGTH + 10; i++)
+        {
+            output.append('x');
+        }
+        PromptResponses responses = PromptResponses.parse(null);
+        Matcher match = responses.getPattern().matcher(output);
+        assertTrue(match.find());
+        assertTrue(responses.isCut(match));
+        assertEquals(PromptResponses.MAX_LINE_LENGTH, match.end());
+    }
+
+    public void testInvalidRulesAreReported()
+    {
+        assertNull(PromptResponses.validate(" \n"));
+        assertNotNull(PromptResponses.validate("no separator"));
+        assertNotNull(PromptResponses.validate("[unclosed => y"));
+    }
+}
@@ -0,0 +1,86 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+public class RemoteManifestTest extends TestCase
+{
+    private static final String HELLO_SHA256 = "5891b5b522d5df086d0ff0b110fbd9d21bb4fc7163af34d08286a2e846f6be03";
+
+    public void testParsesSizeTimeAndPath()
+    {
+        RemoteManifest manifest = RemoteManifest.parse("6 1700000000.2500000000 /var/log/app.log\0"
+                + "0 1700000001.0000000000 /var/log/my logs/empty file\0");
+
+        Iterator<RemoteManifest.Entry> entries = manifest.getEntries().iterator();
+        RemoteManifest.Entry first = entries.next();
+        assertEquals("/var/log/app.log", first.getPath());
+        assertEquals(6, first.getSize());
+        assertEquals(1700000000L, first.getMtime());
+        assertNull(first.getSha256());
+        RemoteManifest.Entry second = entries.next();
+        assertEquals("/var/log/my logs/empty file", second.getPath());
+        assertEquals(0, second.getSize());
+        assertFalse(entries.hasNext());
+        assertTrue(manifest.getWarnings().isEmpty());
+    }
+
+    public void testKeepsNewlinesInNames()
+    {
+        RemoteManifest manifest = RemoteManifest.parse("6 1700000000.0 /var/log/two\nlines\0");
+
+        assertEquals("/var/log/two\nlines", manifest.getEntries().iterator().next().getPath());
+    }
+
+    public void testAddsHashesFromTheSecondSection()
+    {
+        RemoteManifest manifest = RemoteManifest.parse("6 1700000000.0 /var/log/app.log\0"
+                + "7 1700000000.0 /var/log/other.log\0--sha256--\0"
+                + HELLO_SHA256 + "  /var/log/app.log\n"
+                + HELLO_SHA256 + "  /var/log/vanished.log\n");
+
+        Iterator<RemoteManifest.Entry> entries = manifest.getEntries().iterator();
+        assertEquals(HELLO_SHA256, entries.next().getSha256());
+        // a file sha256sum could not read keeps only its size and time
+        assertNull(entries.next().getSha256());
+        assertFalse(entries.hasNext());
+    }
+
+    public void testEmptyListing()
+    {
+        assertTrue(RemoteManifest.parse("").getEntries().isEmpty());
+        assertTrue(RemoteManifest.parse("\0--sha256--\0").getEntries().isEmpty());
+    }
+
+    public void testRejectsMalformedRecords()
+    {
+        try
+        {
+            RemoteManifest.parse("find: '/var/log/private': Permission denied\0");
+            fail();
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+    }
+
+    public void testWarningsAreTheStderrLines()
+    {
+        assertEquals(Arrays.asList("find: '/var/log/private': Permission denied", "find: '/var/log/gone.log': No such file or directory"),
+                RemoteManifest.warnings("find: '/var/log/private': Permission denied\n\n  find: '/var/log/private': Permission denied\nfind: '/var/log/gone.log': No such file or directory\n"));
+    }
+
+    public void testCommandListsEachRootUnderPosixShell()
+    {
+        String command = RemoteManifest.command(Arrays.asList("/var/log", "/opt/app"), true, false);
+
+        assertTrue(command, command.startsWith("exec /bin/sh -c '"));
+        // one root that cannot be read is only a warning, the others are still listed
+        assertTrue(command, command.contains("|| s=1"));
+        assertTrue(command, command.contains("exit 2"));
+        assertTrue(command, command.endsWith("exit $s'"));
+        assertFalse(RemoteManifest.command(Arrays.asList("/var/log"), false, true).contains("exit 2"));
+    }
+}
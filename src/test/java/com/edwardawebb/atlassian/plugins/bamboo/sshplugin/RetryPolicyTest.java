@@ -0,0 +1,37 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RetryPolicyTest extends TestCase
+{
+    public void testBackoffDoublesUpToTheCeiling()
+    {
+        RetryPolicy policy = new RetryPolicy(10, 1000, 5000, 0);
+        assertEquals(1000, policy.backoffMillis(1));
+        assertEquals(2000, policy.backoffMillis(2));
+        assertEquals(4000, policy.backoffMillis(3));
+        assertEquals(5000, policy.backoffMillis(4));
+        assertEquals(5000, policy.backoffMillis(30));
+    }
+
+    public void testJitterOnlyShortensTheWait()
+    {
+        RetryPolicy policy = new RetryPolicy(3, 1000, 60000, 0.5, new Random(42));
+        for (int i = 0; i < 100; i++)
+        {
+            long backoff = policy.backoffMillis(2);
+            assertTrue(backoff > 1000 && backoff <= 2000);
+        }
+    }
+
+    public void testAttemptsCountTheFirstTry()
+    {
+        RetryPolicy policy = RetryPolicy.fromConfig("2", "0");
+        assertTrue(policy.canRetry(1));
+        assertFalse(policy.canRetry(2));
+        assertFalse(RetryPolicy.fromConfig("1", null).canRetry(1));
+        assertEquals(RetryPolicy.DEFAULT_ATTEMPTS, RetryPolicy.fromConfig(null, null).getAttempts());
+    }
+}
@@ -0,0 +1,106 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SegmentedDownloaderTest extends TestCase
+{
+    private static final long SIZE = 4 * SegmentedDownloader.MIN_SEGMENT_SIZE;
+    private static final long MTIME = 1500000000L;
+
+    private File local;
+    private TaskMetrics metrics;
+    private SegmentedDownloader downloader;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        local = File.createTempFile("segmented", "");
+        final RandomAccessFile file = new RandomAccessFile(local, "rw");
+        try
+        {
+            // sparse, only the length matters
+            file.setLength(SIZE);
+        }
+        finally
+        {
+            file.close();
+        }
+        metrics = new TaskMetrics();
+        downloader = new SegmentedDownloader(null, null, null, SIZE, 4, metrics, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        local.delete();
+    }
+
+    public void testSplitsIntoEqualRangesWithTheRemainderLast()
+    {
+        assertTrue(Arrays.equals(new long[] {0, 333, 666, 1001}, SegmentedDownloader.split(1001, 3, 100)));
+    }
+
+    public void testRangesAreNeverSmallerThanTheMinimum()
+    {
+        assertTrue(Arrays.equals(new long[] {0, 125, 250}, SegmentedDownloader.split(250, 8, 100)));
+    }
+
+    public void testSmallFileIsOneRange()
+    {
+        assertTrue(Arrays.equals(new long[] {0, 50}, SegmentedDownloader.split(50, 4, 100)));
+        assertTrue(Arrays.equals(new long[] {0, 0}, SegmentedDownloader.split(0, 4, 100)));
+    }
+
+    public void testProgressIsForTheSameRemoteAndLocalFile()
+    {
+        SegmentedDownloader.Progress progress = new SegmentedDownloader.Progress(SIZE, MTIME, new long[] {0, SIZE});
+
+        assertTrue(progress.isFor(SIZE, MTIME, local));
+        assertFalse(progress.isFor(SIZE + 1, MTIME, local));
+        assertFalse(progress.isFor(SIZE, MTIME + 1, local));
+        assertFalse(progress.isFor(SIZE, MTIME, new File(local.getPath() + ".missing")));
+    }
+
+    public void testRetryContinuesPartialRanges()
+    {
+        SegmentedDownloader.Progress first = downloader.progressFor(local, SIZE, MTIME, false);
+        List<SegmentedDownloader.Range> ranges = first.getRanges();
+        assertEquals(4, ranges.size());
+        ranges.get(0).advance(ranges.get(0).getEnd());
+        ranges.get(2).advance(ranges.get(2).getPosition() + 1000);
+
+        SegmentedDownloader.Progress retry = downloader.progressFor(local, SIZE, MTIME, true);
+        assertTrue(retry == first);
+        List<SegmentedDownloader.Range> pending = retry.pending();
+        assertEquals(3, pending.size());
+        assertEquals(ranges.get(1).getEnd() + 1000, pending.get(1).getPosition());
+        assertEquals(SIZE - ranges.get(0).getEnd() - 1000, retry.remaining());
+    }
+
+    public void testChangedRemoteFileStartsOver()
+    {
+        SegmentedDownloader.Progress first = downloader.progressFor(local, SIZE, MTIME, false);
+        first.getRanges().get(0).advance(1000);
+
+        SegmentedDownloader.Progress retry = downloader.progressFor(local, SIZE, MTIME + 60, true);
+        assertFalse(retry == first);
+        assertEquals(SIZE, retry.remaining());
+        // the rejected ranges are gone, a later retry does not bring them back
+        assertTrue(downloader.progressFor(local, SIZE, MTIME + 60, true) == retry);
+        // counted once it is complete, not once per start
+        assertEquals(0, metrics.getFiles());
+    }
+
+    public void testFirstAttemptNeverReusesRanges()
+    {
+        SegmentedDownloader.Progress first = downloader.progressFor(local, SIZE, MTIME, false);
+        first.getRanges().get(0).advance(1000);
+
+        assertFalse(downloader.progressFor(local, SIZE, MTIME, false) == first);
+    }
+}
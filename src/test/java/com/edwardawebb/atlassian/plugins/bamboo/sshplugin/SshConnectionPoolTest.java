@@ -0,0 +1,195 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.schmizz.sshj.SSHClient;
+
+public class SshConnectionPoolTest extends TestCase
+{
+    private static final SshConnectionKey KEY = new SshConnectionKey("build.example.com", 22, "bamboo", "fingerprint");
+
+    private final List<FakeClient> opened = new ArrayList<FakeClient>();
+    private final SshConnector connector = new SshConnector(0, 0, 1)
+    {
+        @Override
+        public SSHClient connect(SshConnectionKey key, SshCredentials credentials, TaskMetrics metrics)
+        {
+            final FakeClient client = new FakeClient();
+            synchronized (opened)
+            {
+                opened.add(client);
+            }
+            return client;
+        }
+    };
+
+    public void testReleasedConnectionIsReused() throws Exception
+    {
+        SshConnectionPool pool = new SshConnectionPool(2, 300, 1, connector);
+
+        PooledSshConnection first = pool.borrow(KEY, null, new TaskMetrics());
+        assertFalse(first.isReused());
+        first.release();
+        PooledSshConnection second = pool.borrow(KEY, null, new TaskMetrics());
+
+        assertTrue(second.isReused());
+        assertSame(first.getClient(), second.getClient());
+        assertEquals(1, opened.size());
+    }
+
+    public void testInvalidatedConnectionIsClosed() throws Exception
+    {
+        SshConnectionPool pool = new SshConnectionPool(1, 300, 1, connector);
+
+        PooledSshConnection first = pool.borrow(KEY, null, new TaskMetrics());
+        first.invalidate();
+        // a second call is ignored, the slot is not freed twice
+        first.release();
+        PooledSshConnection second = pool.borrow(KEY, null, new TaskMetrics());
+
+        assertTrue(opened.get(0).disconnected);
+        assertFalse(second.isReused());
+        assertNotSame(first.getClient(), second.getClient());
+        assertNull(pool.tryBorrow(KEY, null, new TaskMetrics()));
+    }
+
+    public void testMostRecentlyUsedIdleConnectionComesFirst() throws Exception
+    {
+        SshConnectionPool pool = new SshConnectionPool(3, 300, 1, connector);
+        PooledSshConnection first = pool.borrow(KEY, null, new TaskMetrics());
+        PooledSshConnection second = pool.borrow(KEY, null, new TaskMetrics());
+
+        first.release();
+        second.release();
+
+        assertSame(second.getClient(), pool.borrow(KEY, null, new TaskMetrics()).getClient());
+        assertSame(first.getClient(), pool.borrow(KEY, null, new TaskMetrics()).getClient());
+    }
+
+    public void testBorrowWaitsForAReleaseAtTheLimit() throws Exception
+    {
+        final SshConnectionPool pool = new SshConnectionPool(1, 300, 10, connector);
+        final PooledSshConnection leased = pool.borrow(KEY, null, new TaskMetrics());
+        FutureTask<PooledSshConnection> waiting = new FutureTask<PooledSshConnection>(new Callable<PooledSshConnection>()
+        {
+            @Override
+            public PooledSshConnection call() throws IOException
+            {
+                return pool.borrow(KEY, null, new TaskMetrics());
+            }
+        });
+        new Thread(waiting).start();
+        Thread.sleep(100);
+        assertFalse(waiting.isDone());
+
+        leased.release();
+
+        assertSame(leased.getClient(), waiting.get(5, TimeUnit.SECONDS).getClient());
+        assertEquals(1, opened.size());
+    }
+
+    public void testBorrowTimesOutAtTheLimit() throws Exception
+    {
+        SshConnectionPool pool = new SshConnectionPool(1, 300, 1, connector);
+        pool.borrow(KEY, null, new TaskMetrics());
+        long started = System.nanoTime();
+        try
+        {
+            pool.borrow(KEY, null, new TaskMetrics());
+            fail();
+        }
+        catch (IOException expected)
+        {
+            assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(900));
+        }
+    }
+
+    public void testTryBorrowAnotherNeverWaits() throws Exception
+    {
+        SshConnectionPool pool = new SshConnectionPool(2, 300, 10, connector);
+        SharedConnection shared = new SharedConnection(pool, KEY, null, new TaskMetrics());
+
+        PooledSshConnection another = shared.tryBorrowAnother();
+        assertNotNull(another);
+        assertNull(shared.tryBorrowAnother());
+
+        another.release();
+        assertNotNull(shared.tryBorrowAnother());
+    }
+
+    public void testDeadIdleConnectionIsNotHandedOut() throws Exception
+    {
+        SshConnectionPool pool = new SshConnectionPool(1, 300, 1, connector);
+        PooledSshConnection first = pool.borrow(KEY, null, new TaskMetrics());
+        first.release();
+        opened.get(0).connected = false;
+
+        PooledSshConnection second = pool.borrow(KEY, null, new TaskMetrics());
+
+        assertFalse(second.isReused());
+        assertTrue(opened.get(0).disconnected);
+    }
+
+    public void testEvictsUnhealthyAndExpiredIdleConnections() throws Exception
+    {
+        SshConnectionPool pool = new SshConnectionPool(2, 1, 1, connector);
+        PooledSshConnection first = pool.borrow(KEY, null, new TaskMetrics());
+        PooledSshConnection second = pool.borrow(KEY, null, new TaskMetrics());
+        first.release();
+        second.release();
+
+        opened.get(0).connected = false;
+        pool.evictIdle();
+        assertTrue(opened.get(0).disconnected);
+        assertFalse(opened.get(1).disconnected);
+
+        Thread.sleep(1100);
+        pool.evictIdle();
+        assertTrue(opened.get(1).disconnected);
+        // both slots are free again
+        assertNotNull(pool.tryBorrow(KEY, null, new TaskMetrics()));
+        assertNotNull(pool.tryBorrow(KEY, null, new TaskMetrics()));
+        assertEquals(4, opened.size());
+    }
+
+    public void testNoPoolingWithoutIdleTimeout() throws Exception
+    {
+        SshConnectionPool pool = new SshConnectionPool(1, 0, 1, connector);
+        PooledSshConnection first = pool.borrow(KEY, null, new TaskMetrics());
+        first.release();
+
+        assertTrue(opened.get(0).disconnected);
+        assertFalse(pool.borrow(KEY, null, new TaskMetrics()).isReused());
+    }
+
+    private static final class FakeClient extends SSHClient
+    {
+        private volatile boolean connected = true;
+        private volatile boolean disconnected;
+
+        @Override
+        public boolean isConnected()
+        {
+            return connected;
+        }
+
+        @Override
+        public boolean isAuthenticated()
+        {
+            return connected;
+        }
+
+        @Override
+        public void disconnect()
+        {
+            connected = false;
+            disconnected = true;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import net.schmizz.sshj.userauth.UserAuthException;
+
+import junit.framework.TestCase;
+
+public class SshConnectorTest extends TestCase
+{
+    public void testRejectedCredentialsAreNotRetried()
+    {
+        assertFalse(SshConnector.isRetryable(new UserAuthException("Exhausted available authentication methods")));
+    }
+
+    public void testNetworkFailuresAreRetried()
+    {
+        assertTrue(SshConnector.isRetryable(new ConnectException("Connection refused")));
+        assertTrue(SshConnector.isRetryable(new SocketTimeoutException("connect timed out")));
+        assertTrue(SshConnector.isRetryable(new IOException("Broken transport; encountered EOF")));
+    }
+}
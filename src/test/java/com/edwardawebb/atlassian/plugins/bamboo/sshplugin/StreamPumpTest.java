@@ -0,0 +1,99 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class StreamPumpTest extends TestCase
+{
+    private final List<String> delivered = new ArrayList<String>();
+    private final StreamPump.LineHandler recorder = new StreamPump.LineHandler()
+    {
+        @Override
+        public void line(String line, boolean stderr)
+        {
+            delivered.add((stderr ? "E " : "") + line);
+        }
+    };
+
+    public void testDeliversBothStreams() throws Exception
+    {
+        StreamPump pump = new StreamPump();
+        pump.start(stream("out\n"), stream("err\n"), recorder);
+        pump.await();
+
+        assertEquals(2, delivered.size());
+        assertTrue(delivered.containsAll(Arrays.asList("out", "E err")));
+        assertTrue(pump.isDrained());
+    }
+
+    public void testDecodesUtf8() throws Exception
+    {
+        StreamPump pump = new StreamPump();
+        pump.start(stream("gr\u00fc\u00df \u2713\n"), stream(""), recorder);
+        pump.await();
+
+        assertEquals(Arrays.asList("gr\u00fc\u00df \u2713"), delivered);
+    }
+
+    public void testReadersFinishWhenTheHandlerFails() throws Exception
+    {
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+        {
+            output.append("line").append(i).append('\n');
+        }
+        StreamPump pump = new StreamPump(1);
+        pump.start(stream(output.toString()), stream(output.toString()), new StreamPump.LineHandler()
+        {
+            @Override
+            public void line(String line, boolean stderr)
+            {
+                throw new IllegalStateException("handler failed");
+            }
+        });
+        try
+        {
+            pump.await();
+            fail("handler failure was not reported");
+        }
+        catch (IllegalStateException e)
+        {
+            assertEquals("handler failed", e.getMessage());
+        }
+        assertTrue("readers still blocked on a full queue", drained(pump));
+    }
+
+    public void testCancelStopsReadersWaitingForInput() throws Exception
+    {
+        PipedOutputStream remote = new PipedOutputStream();
+        StreamPump pump = new StreamPump();
+        pump.start(new PipedInputStream(remote), new PipedInputStream(new PipedOutputStream()), recorder);
+        remote.write("partial".getBytes(StandardCharsets.UTF_8));
+
+        pump.cancel();
+        assertTrue("readers still waiting for input", drained(pump));
+    }
+
+    private static boolean drained(StreamPump pump) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!pump.isDrained() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        return pump.isDrained();
+    }
+
+    private static InputStream stream(String content)
+    {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
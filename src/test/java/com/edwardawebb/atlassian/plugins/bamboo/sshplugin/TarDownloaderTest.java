@@ -0,0 +1,27 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import junit.framework.TestCase;
+
+public class TarDownloaderTest extends TestCase
+{
+    public void testGzipPipelineReportsTarStatus()
+    {
+        assertEquals("cd '/var' && tar cf - 'log'", TarDownloader.command("/var/log/", false));
+        assertEquals("cd '/var' && { tar cf - 'log'; echo \"" + TarDownloader.TAR_STATUS + " $?\" >&2; } | gzip -1",
+                TarDownloader.command("/var/log", true));
+    }
+
+    public void testTarStatusIsTakenFromStderr()
+    {
+        assertEquals(Integer.valueOf(0), TarDownloader.tarStatus(TarDownloader.TAR_STATUS + " 0\n"));
+        assertEquals(Integer.valueOf(2), TarDownloader.tarStatus("tar: log/app.log: Permission denied\n" + TarDownloader.TAR_STATUS + " 2\n"));
+        assertNull(TarDownloader.tarStatus("tar: killed\n"));
+    }
+
+    public void testStatusLineIsLeftOutOfErrors()
+    {
+        assertEquals(" (tar: log/app.log: Permission denied)",
+                TarDownloader.describeError("tar: log/app.log: Permission denied\n" + TarDownloader.TAR_STATUS + " 2\n"));
+        assertEquals("", TarDownloader.describeError(TarDownloader.TAR_STATUS + " 0\n"));
+    }
+}
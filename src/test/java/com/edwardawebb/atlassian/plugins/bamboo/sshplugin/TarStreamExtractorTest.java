@@ -0,0 +1,267 @@
+package com.edwardawebb.atlassian.plugins.bamboo.sshplugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+public class TarStreamExtractorTest extends TestCase
+{
+    private File directory;
+    private File destination;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile("tar", "");
+        directory.delete();
+        destination = new File(directory, "dest");
+        destination.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    public void testExtractsDirectoriesAndFiles() throws Exception
+    {
+        TarStreamExtractor extractor = extract(new Archive().directory("logs/").file("logs/app.log", "hello\n").end());
+
+        assertEquals("hello\n", read(new File(destination, "logs/app.log")));
+        assertEquals(1, extractor.getFiles());
+        assertEquals(6, extractor.getBytes());
+    }
+
+    public void testRejectsParentDirectoryEntries() throws Exception
+    {
+        try
+        {
+            extract(new Archive().file("../escaped", "x").end());
+            fail("extracted outside of the destination");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains("outside"));
+        }
+        assertFalse(new File(directory, "escaped").exists());
+    }
+
+    public void testAbsoluteNamesStayInsideTheDestination() throws Exception
+    {
+        extract(new Archive().file("/abs/file", "x").end());
+
+        assertEquals("x", read(new File(destination, "abs/file")));
+    }
+
+    public void testRejectsLinksPointingOutside() throws Exception
+    {
+        for (String link : new String[] {"../../outside", "/etc"})
+        {
+            try
+            {
+                extract(new Archive().symlink("link", link).end());
+                fail("created a link to " + link);
+            }
+            catch (IOException e)
+            {
+                assertTrue(e.getMessage().contains("outside"));
+            }
+            assertFalse(Files.isSymbolicLink(new File(destination, "link").toPath()));
+        }
+    }
+
+    public void testCreatesLinksInsideTheDestination() throws Exception
+    {
+        extract(new Archive().file("data/file", "x").symlink("data/link", "file").end());
+
+        assertTrue(Files.isSymbolicLink(new File(destination, "data/link").toPath()));
+        assertEquals("x", read(new File(destination, "data/link")));
+    }
+
+    public void testGnuLongNames() throws Exception
+    {
+        String name = repeat("d", 120) + "/" + repeat("f", 120);
+        extract(new Archive().longName(name).file("ignored", "long").end());
+
+        assertEquals("long", read(new File(destination, name)));
+        assertFalse(new File(destination, "ignored").exists());
+    }
+
+    public void testPaxPath() throws Exception
+    {
+        extract(new Archive().pax("path", "pax/named.txt").file("ignored", "pax").end());
+
+        assertEquals("pax", read(new File(destination, "pax/named.txt")));
+    }
+
+    public void testMalformedPaxHeader() throws Exception
+    {
+        try
+        {
+            extract(new Archive().entry("PaxHeaders/x", 'x', "999 path=x\n".getBytes(StandardCharsets.UTF_8), "").end());
+            fail("accepted a pax record longer than its header");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains("pax"));
+        }
+    }
+
+    public void testBase256Size() throws Exception
+    {
+        Archive archive = new Archive().file("big", "12345");
+        byte[] header = archive.lastHeader();
+        Arrays.fill(header, 124, 136, (byte) 0);
+        header[124] = (byte) 0x80;
+        header[135] = 5;
+
+        extract(archive.end());
+        assertEquals("12345", read(new File(destination, "big")));
+    }
+
+    public void testTruncatedFile() throws Exception
+    {
+        byte[] archive = new Archive().file("cut", "0123456789").end();
+        try
+        {
+            extract(Arrays.copyOf(archive, 512 + 4));
+            fail("accepted a truncated file");
+        }
+        catch (EOFException e)
+        {
+            // expected
+        }
+    }
+
+    public void testMissingEndOfArchive() throws Exception
+    {
+        byte[] archive = new Archive().file("whole", "x").end();
+        try
+        {
+            extract(Arrays.copyOf(archive, 1024));
+            fail("accepted an archive without end marker");
+        }
+        catch (EOFException e)
+        {
+            assertEquals("x", read(new File(destination, "whole")));
+        }
+    }
+
+    private TarStreamExtractor extract(byte[] archive) throws IOException
+    {
+        TarStreamExtractor extractor = new TarStreamExtractor(destination);
+        extractor.extract(new ByteArrayInputStream(archive));
+        return extractor;
+    }
+
+    private static String read(File file) throws IOException
+    {
+        return FileUtils.readFileToString(file, "UTF-8");
+    }
+
+    private static String repeat(String value, int times)
+    {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < times; i++)
+        {
+            repeated.append(value);
+        }
+        return repeated.toString();
+    }
+
+    /**
+     * Writes ustar archives the way GNU tar does, just enough for the extractor.
+     */
+    private static final class Archive
+    {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private byte[] lastHeader;
+        private byte[] lastData;
+
+        Archive file(String name, String content)
+        {
+            return entry(name, '0', content.getBytes(StandardCharsets.UTF_8), "");
+        }
+
+        Archive directory(String name)
+        {
+            return entry(name, '5', new byte[0], "");
+        }
+
+        Archive symlink(String name, String target)
+        {
+            return entry(name, '2', new byte[0], target);
+        }
+
+        Archive longName(String name)
+        {
+            return entry("././@LongLink", 'L', (name + "\0").getBytes(StandardCharsets.UTF_8), "");
+        }
+
+        Archive pax(String key, String value)
+        {
+            String record = " " + key + "=" + value + "\n";
+            int length = record.length() + 1;
+            length = record.length() + String.valueOf(length).length();
+            return entry("PaxHeaders/x", 'x', (length + record).getBytes(StandardCharsets.UTF_8), "");
+        }
+
+        Archive entry(String name, char type, byte[] data, String link)
+        {
+            flushLast();
+            byte[] header = new byte[512];
+            put(header, 0, name);
+            put(header, 100, "0000644");
+            put(header, 124, String.format("%011o", data.length));
+            put(header, 136, "00000000000");
+            header[156] = (byte) type;
+            put(header, 157, link);
+            put(header, 257, "ustar");
+            header[263] = '0';
+            header[264] = '0';
+            lastHeader = header;
+            lastData = data;
+            return this;
+        }
+
+        byte[] lastHeader()
+        {
+            return lastHeader;
+        }
+
+        byte[] end()
+        {
+            flushLast();
+            out.write(new byte[1024], 0, 1024);
+            return out.toByteArray();
+        }
+
+        private void flushLast()
+        {
+            if (lastHeader != null)
+            {
+                out.write(lastHeader, 0, 512);
+                out.write(lastData, 0, lastData.length);
+                int padding = (512 - lastData.length % 512) % 512;
+                out.write(new byte[padding], 0, padding);
+                lastHeader = null;
+            }
+        }
+
+        private static void put(byte[] header, int offset, String value)
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(bytes, 0, header, offset, bytes.length);
+        }
+    }
+}